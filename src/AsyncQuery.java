@@ -0,0 +1,216 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Asynchronous facade over the transactions of one {@link Query} session.
+ *
+ * Every call returns at once with a future for the response, so a caller can keep many
+ * sessions in flight without a thread of its own for each. At most {@code maxInFlight}
+ * transactions of all sessions talk to the database at the same time. When the JVM has
+ * virtual threads (Java 21 and later), each transaction gets one and waits for a permit of
+ * a semaphore shared by all sessions, which costs no platform thread. Otherwise they run
+ * on a fixed pool of {@code maxInFlight} daemon threads, and the transactions waiting for
+ * a thread sit in the pool's queue, not on threads of their own.
+ *
+ * A session has a single connection and remembers its login and last search, so the calls
+ * made on one {@code AsyncQuery} run one after the other, in the order they were made.
+ */
+public class AsyncQuery
+{
+  private static ExecutorService executor;
+  // null when the executor is the fixed pool, whose size is the bound
+  private static Semaphore inFlight;
+
+  private final Query query;
+  private final ExecutorService sessionExecutor;
+  private final Semaphore sessionPermits;
+  // completes when the last call made on this session is done
+  private CompletableFuture<?> last = CompletableFuture.completedFuture(null);
+
+  /**
+   * Wraps {@code query}, which must have its connection open and its statements prepared.
+   *
+   * @param maxInFlight how many transactions of all sessions may run at once; only the value
+   * given when the first {@code AsyncQuery} is created is used
+   */
+  public AsyncQuery(Query query, int maxInFlight)
+  {
+    this.query = query;
+    synchronized (AsyncQuery.class) {
+      if (executor == null) {
+        setUp(maxInFlight);
+      }
+      this.sessionExecutor = executor;
+      this.sessionPermits = inFlight;
+    }
+  }
+
+  private static void setUp(int maxInFlight)
+  {
+    try {
+      // looked up at run time so that the code still builds and runs on Java 8
+      Method virtual = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      executor = (ExecutorService) virtual.invoke(null);
+      inFlight = new Semaphore(maxInFlight, true);
+    } catch (ReflectiveOperationException | UnsupportedOperationException error) {
+      executor = Executors.newFixedThreadPool(Math.max(maxInFlight, 1), new ThreadFactory()
+      {
+        @Override
+        public Thread newThread(Runnable r)
+        {
+          Thread thread = new Thread(r, "async-query");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+  }
+
+  public CompletableFuture<String> transaction_login(final String username, final String password)
+  {
+    return submit(new Supplier<String>()
+    {
+      @Override
+      public String get()
+      {
+        return query.transaction_login(username, password);
+      }
+    });
+  }
+
+  public CompletableFuture<String> transaction_createCustomer(final String username, final String password,
+                                                              final int initAmount)
+  {
+    return submit(new Supplier<String>()
+    {
+      @Override
+      public String get()
+      {
+        return query.transaction_createCustomer(username, password, initAmount);
+      }
+    });
+  }
+
+  public CompletableFuture<String> transaction_search(final String originCity, final String destinationCity,
+                                                      final boolean directFlight, final int dayOfMonth,
+                                                      final int numberOfItineraries)
+  {
+    return submit(new Supplier<String>()
+    {
+      @Override
+      public String get()
+      {
+        return query.transaction_search(originCity, destinationCity, directFlight, dayOfMonth,
+                numberOfItineraries);
+      }
+    });
+  }
+
+  public CompletableFuture<String> transaction_book(final int itineraryId)
+  {
+    return submit(new Supplier<String>()
+    {
+      @Override
+      public String get()
+      {
+        return query.transaction_book(itineraryId);
+      }
+    });
+  }
+
+  public CompletableFuture<String> transaction_book_group(final int[] itineraryIds, final int passengers)
+  {
+    final int[] ids = itineraryIds.clone();
+    return submit(new Supplier<String>()
+    {
+      @Override
+      public String get()
+      {
+        return query.transaction_book_group(ids, passengers);
+      }
+    });
+  }
+
+  public CompletableFuture<String> transaction_pay(final int reservationId)
+  {
+    return submit(new Supplier<String>()
+    {
+      @Override
+      public String get()
+      {
+        return query.transaction_pay(reservationId);
+      }
+    });
+  }
+
+  public CompletableFuture<String> transaction_reservations()
+  {
+    return submit(new Supplier<String>()
+    {
+      @Override
+      public String get()
+      {
+        return query.transaction_reservations();
+      }
+    });
+  }
+
+  public CompletableFuture<String> transaction_cancel(final int reservationId)
+  {
+    return submit(new Supplier<String>()
+    {
+      @Override
+      public String get()
+      {
+        return query.transaction_cancel(reservationId);
+      }
+    });
+  }
+
+  // queues the transaction behind the previous call of this session
+  private synchronized CompletableFuture<String> submit(final Supplier<String> transaction)
+  {
+    final CompletableFuture<String> result = new CompletableFuture<>();
+    final Runnable task = new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        if (sessionPermits != null) {
+          try {
+            sessionPermits.acquire();
+          } catch (InterruptedException error) {
+            Thread.currentThread().interrupt();
+            result.completeExceptionally(error);
+            return;
+          }
+        }
+        try {
+          result.complete(transaction.get());
+        } catch (Throwable error) {
+          result.completeExceptionally(error);
+        } finally {
+          if (sessionPermits != null) {
+            sessionPermits.release();
+          }
+        }
+      }
+    };
+    last.whenComplete(new BiConsumer<Object, Throwable>()
+    {
+      @Override
+      public void accept(Object ignored, Throwable previousError)
+      {
+        sessionExecutor.execute(task);
+      }
+    });
+    last = result;
+    return result;
+  }
+}
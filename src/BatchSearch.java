@@ -0,0 +1,164 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Answers many searches together.
+ *
+ * Requests are grouped by day and origin. For each group, the direct flights of every
+ * requested destination are read off the index routes, and the one-stop itineraries of all
+ * its destinations are found in a single pass over the origin's departures (see
+ * {@link ItinerarySearch}). Requests for the same route share the work, each taking the
+ * first K of a result computed for the largest K asked.
+ *
+ * Every list returned holds the same itineraries, in the same order, as
+ * {@code transaction_search} would for that request.
+ */
+public class BatchSearch
+{
+  private BatchSearch()
+  {
+  }
+
+  /**
+   * Searches the flight index for every request.
+   *
+   * @return the itineraries of each request, in input order; null for a request with a
+   * negative number of itineraries, which fails like a single search would
+   */
+  public static List<List<Itinerary>> search(FlightIndex index, List<SearchRequest> requests)
+  {
+    List<List<Itinerary>> results = new ArrayList<>(Collections.<List<Itinerary>>nCopies(requests.size(), null));
+
+    // (day, origin key) -> positions of the requests in the group
+    Map<Long, List<Integer>> groups = new LinkedHashMap<>();
+    for (int i = 0; i < requests.size(); i++) {
+      SearchRequest request = requests.get(i);
+      if (request.numberOfItineraries < 0) {
+        continue;
+      }
+      int origin = index.cityKey(request.originCity);
+      if (origin < 0 || index.cityKey(request.destinationCity) < 0) {
+        results.set(i, new ArrayList<Itinerary>());
+        continue;
+      }
+      Long key = ((long) request.dayOfMonth << 32) | origin;
+      List<Integer> group = groups.get(key);
+      if (group == null) {
+        group = new ArrayList<>();
+        groups.put(key, group);
+      }
+      group.add(i);
+    }
+
+    for (Map.Entry<Long, List<Integer>> e : groups.entrySet()) {
+      searchGroup(index, (int) (e.getKey() >> 32), (int) (long) e.getKey(), requests, e.getValue(), results);
+    }
+    return results;
+  }
+
+  /**
+   * Loads the flights of each requested day with one query and searches them in memory.
+   *
+   * @see #search(FlightIndex, List)
+   */
+  public static List<List<Itinerary>> search(Connection conn, List<SearchRequest> requests) throws SQLException
+  {
+    List<List<Itinerary>> results = new ArrayList<>(Collections.<List<Itinerary>>nCopies(requests.size(), null));
+
+    // day -> positions of the requests on that day
+    Map<Integer, List<Integer>> days = new LinkedHashMap<>();
+    for (int i = 0; i < requests.size(); i++) {
+      int day = requests.get(i).dayOfMonth;
+      List<Integer> positions = days.get(day);
+      if (positions == null) {
+        positions = new ArrayList<>();
+        days.put(day, positions);
+      }
+      positions.add(i);
+    }
+
+    for (Map.Entry<Integer, List<Integer>> e : days.entrySet()) {
+      List<SearchRequest> sameDay = new ArrayList<>(e.getValue().size());
+      for (int i : e.getValue()) {
+        sameDay.add(requests.get(i));
+      }
+      FlightIndex index = FlightIndex.of(FlightTable.loadDay(conn, e.getKey()));
+      List<List<Itinerary>> found = search(index, sameDay);
+      for (int j = 0; j < found.size(); j++) {
+        results.set(e.getValue().get(j), found.get(j));
+      }
+    }
+    return results;
+  }
+
+  private static void searchGroup(FlightIndex index, int dayOfMonth, int origin, List<SearchRequest> requests,
+                                  List<Integer> positions, List<List<Itinerary>> results)
+  {
+    FlightTable table = index.table();
+
+    // destination key -> most itineraries asked of it, overall and for one-stop searches
+    Map<Integer, Integer> directLimits = new LinkedHashMap<>();
+    Map<Integer, Integer> oneStopLimits = new LinkedHashMap<>();
+    for (int i : positions) {
+      SearchRequest request = requests.get(i);
+      int dest = index.cityKey(request.destinationCity);
+      directLimits.put(dest, Math.max(request.numberOfItineraries, value(directLimits, dest)));
+      if (!request.directFlight) {
+        oneStopLimits.put(dest, Math.max(request.numberOfItineraries, value(oneStopLimits, dest)));
+      }
+    }
+
+    Map<Integer, List<Itinerary>> direct = new LinkedHashMap<>();
+    for (Map.Entry<Integer, Integer> e : directLimits.entrySet()) {
+      List<Itinerary> flights = new ArrayList<>();
+      for (int row : index.route(origin, e.getKey(), dayOfMonth)) {
+        if (flights.size() >= e.getValue()) {
+          break;
+        }
+        if (!index.isCanceled(row)) {
+          flights.add(new Itinerary(table.flight(row)));
+        }
+      }
+      direct.put(e.getKey(), flights);
+    }
+
+    // a request never needs more one-stop itineraries than it asked for in total
+    int[] dests = new int[oneStopLimits.size()];
+    int[] limits = new int[oneStopLimits.size()];
+    int n = 0;
+    for (Map.Entry<Integer, Integer> e : oneStopLimits.entrySet()) {
+      dests[n] = e.getKey();
+      limits[n++] = e.getValue();
+    }
+    List<List<Itinerary>> found = ItinerarySearch.oneStop(index, origin, dests, dayOfMonth, limits);
+    Map<Integer, List<Itinerary>> oneStop = new LinkedHashMap<>();
+    for (int j = 0; j < n; j++) {
+      oneStop.put(dests[j], found.get(j));
+    }
+
+    for (int i : positions) {
+      SearchRequest request = requests.get(i);
+      int dest = index.cityKey(request.destinationCity);
+      List<Itinerary> directs = direct.get(dest);
+      List<Itinerary> result = new ArrayList<>(directs.subList(0,
+              Math.min(request.numberOfItineraries, directs.size())));
+      if (!request.directFlight) {
+        List<Itinerary> connections = oneStop.get(dest);
+        result.addAll(connections.subList(0,
+                Math.min(request.numberOfItineraries - result.size(), connections.size())));
+      }
+      results.set(i, result);
+    }
+  }
+
+  private static int value(Map<Integer, Integer> limits, int dest)
+  {
+    Integer limit = limits.get(dest);
+    return limit == null ? 0 : limit;
+  }
+}
@@ -0,0 +1,89 @@
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks that a batch answers each of its requests as a single search would.
+ */
+public class BatchSearchTest
+{
+  private static final String[] OTHER_CITIES = {"Nowhere", ""};
+
+  private static String city(Random random)
+  {
+    if (random.nextInt(20) == 0) {
+      return OTHER_CITIES[random.nextInt(OTHER_CITIES.length)];
+    }
+    String[] spellings = ItinerarySearchTest.CITIES[random.nextInt(ItinerarySearchTest.CITIES.length)];
+    return spellings[random.nextInt(spellings.length)];
+  }
+
+  /**
+   * Batches of random requests, many of them for the same day and origin or the same route
+   * with another K, and a few that find nothing or fail.
+   */
+  @Test
+  public void matchesSingleSearches() throws SQLException
+  {
+    FlightIndex index = FlightIndex.of(ItinerarySearchTest.fixture(11, 500));
+    Random random = new Random(11);
+    for (int batch = 0; batch < 50; batch++) {
+      List<SearchRequest> requests = new ArrayList<>();
+      int size = 1 + random.nextInt(60);
+      for (int i = 0; i < size; i++) {
+        requests.add(new SearchRequest(city(random), city(random), random.nextBoolean(),
+                random.nextInt(ItinerarySearchTest.DAYS + 2), random.nextInt(25) - 1));
+      }
+
+      List<List<Itinerary>> results = BatchSearch.search(index, requests);
+      assertEquals(requests.size(), results.size());
+      for (int i = 0; i < requests.size(); i++) {
+        SearchRequest request = requests.get(i);
+        if (request.numberOfItineraries < 0) {
+          assertNull(request.toString(), results.get(i));
+          continue;
+        }
+        assertEquals(request.toString(),
+                ItinerarySearchTest.render(ItinerarySearch.search(index, request.originCity,
+                        request.destinationCity, request.directFlight, request.dayOfMonth,
+                        request.numberOfItineraries)),
+                ItinerarySearchTest.render(results.get(i)));
+      }
+    }
+  }
+
+  /** Canceled flights are skipped by the batch as by single searches. */
+  @Test
+  public void skipsCanceledFlights() throws SQLException
+  {
+    FlightTable table = ItinerarySearchTest.fixture(12, 500);
+    FlightIndex index = FlightIndex.of(table);
+    for (int row = 0; row < table.rows(); row += 3) {
+      if (index.row(table.fid(row)) >= 0) {
+        index.setCanceled(row, true);
+      }
+    }
+    List<SearchRequest> requests = new ArrayList<>();
+    for (String[] origin : ItinerarySearchTest.CITIES) {
+      for (String[] dest : ItinerarySearchTest.CITIES) {
+        requests.add(new SearchRequest(origin[0], dest[0], false, 1, 10));
+        requests.add(new SearchRequest(origin[0], dest[0], true, 1, 2));
+      }
+    }
+    List<List<Itinerary>> results = BatchSearch.search(index, requests);
+    for (int i = 0; i < requests.size(); i++) {
+      SearchRequest request = requests.get(i);
+      assertEquals(request.toString(),
+              ItinerarySearchTest.render(ItinerarySearch.search(index, request.originCity,
+                      request.destinationCity, request.directFlight, request.dayOfMonth,
+                      request.numberOfItineraries)),
+              ItinerarySearchTest.render(results.get(i)));
+    }
+  }
+}
@@ -0,0 +1,840 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.SortedMap;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal of bookings, payments and cancellations.
+ *
+ * When the journal is on, sessions decide bookings, payments and cancellations in memory
+ * (against the users' {@link UserCache}s, shared by every session of this process, and the
+ * seat counts kept here) and append them to a local file instead of running a transaction.
+ * The call returns once its entries are on disk. A writer thread appends the entries of all
+ * sessions that arrived within the group commit window with one write and one fsync, and an
+ * applier thread then writes them to RESERVATIONS, USERS and BOOKEDSEATS in batches, one
+ * database transaction per batch.
+ *
+ * Each entry has a sequence number. The number of the last entry applied is stored in
+ * JOURNALWATERMARK in the same transaction as the batch, so on startup the entries of the
+ * file above the watermark, and only those, are applied again before anything else runs.
+ * The file is emptied once they are.
+ *
+ * Once the file grows past {@code rotateBytes}, the writer moves it aside to
+ * {@code <file>.old} and goes on in a new, empty file; the old one is deleted as soon as
+ * every entry in it is applied. A file is only moved aside when the previous one is gone,
+ * so the journal takes about twice {@code rotateBytes} at most, as long as the applier
+ * keeps up. Startup reads the old file, if any, before the current one.
+ *
+ * The user caches are shared through weak references: a cache no session holds any more
+ * is dropped once all its entries are applied, and the next session loads it again from
+ * the tables, which are then current.
+ *
+ * The journal stops for good when the file cannot be written, or when a batch fails to
+ * apply for any other reason than a deadlock or an update conflict (which are retried, see
+ * {@link TransactionRunner#isRetryable(SQLException)}): from then on every book, pay and
+ * cancel fails, and so does {@link #awaitApplied()}. Whatever was acknowledged is in the
+ * file and is applied at the next start, once the cause is fixed. A batch that could not be
+ * written is cut off the file again before its sessions are told, so it is never applied.
+ *
+ * Record layout (big-endian): payload length (int), CRC32 of the payload (int), payload.
+ * A record that is cut short or fails its CRC ends the journal: it was never acknowledged.
+ *
+ * The journal assumes this process is the only one writing reservations and balances.
+ */
+public class BookingJournal
+{
+  private static final byte BOOK = 1;
+  private static final byte PAY = 2;
+  private static final byte CANCEL = 3;
+
+  private static final String GET_WATERMARK = "SELECT applied_seq FROM JournalWatermark";
+  private static final String SET_WATERMARK = "UPDATE JournalWatermark SET applied_seq = ?";
+  private static final String INSERT_RESERVATION = "INSERT INTO Reservations (reservation_id, username, paid, fid1, "
+          + "fid2, day, total_price, seats) VALUES (?, ?, 0, ?, ?, ?, ?, ?)";
+  private static final String PAY_RESERVATION = "UPDATE Reservations SET paid = 1 WHERE reservation_id = ? AND username = ?";
+  private static final String DELETE_RESERVATION = "DELETE FROM Reservations WHERE reservation_id = ? AND username = ?";
+  private static final String ADD_BALANCE = "UPDATE Users SET balance = balance + ?, version = version + 1 WHERE username = ?";
+  private static final String ADD_SEATS = "MERGE BookedSeats AS s USING (SELECT ? AS fid, ? AS seats) AS f "
+          + "ON s.fid = f.fid WHEN MATCHED THEN UPDATE SET booked = s.booked + f.seats "
+          + "WHEN NOT MATCHED THEN INSERT (fid, booked) VALUES (f.fid, f.seats);";
+  private static final String GET_SEATS = "SELECT fid, booked FROM BookedSeats";
+
+  private static BookingJournal shared;
+
+  /** One journaled change. */
+  private static class Entry
+  {
+    long seq;
+    final byte type;
+    final String username;
+    // the reservation booked or canceled; null for a payment
+    final Reservation reservation;
+    final int reservationId;
+    // paid, or refunded by a cancellation
+    final int amount;
+
+    Entry(byte type, String username, Reservation reservation, int reservationId, int amount)
+    {
+      this.type = type;
+      this.username = username;
+      this.reservation = reservation;
+      this.reservationId = reservationId;
+      this.amount = amount;
+    }
+  }
+
+  private final Path file;
+  private final Path rotated;
+  // replaced by the writer thread when the file is rotated
+  private FileChannel channel;
+  private final Connection conn;
+  private final long windowMillis;
+  private final int applyBatch;
+  private final long rotateBytes;
+
+  private final PreparedStatement setWatermarkStatement;
+  private final PreparedStatement insertReservationStatement;
+  private final PreparedStatement payReservationStatement;
+  private final PreparedStatement deleteReservationStatement;
+  private final PreparedStatement addBalanceStatement;
+  private final PreparedStatement addSeatsStatement;
+
+  // appended but not written yet, then written but not applied yet
+  private final ArrayDeque<Entry> pending = new ArrayDeque<>();
+  private final ArrayDeque<Entry> unapplied = new ArrayDeque<>();
+  private long nextSeq;
+  private long durableSeq;
+  private long appliedSeq;
+  // why the writer stopped, and why the applier stopped
+  private IOException writeFailure;
+  private SQLException applyFailure;
+  // last entry of the file moved aside, or -1 if there is none
+  private long rotatedSeq = -1;
+
+  // seats booked on each flight, including journaled bookings not applied yet
+  private final Map<Integer, Integer> bookedSeats = new HashMap<>();
+  private final Map<String, UserRef> users = new HashMap<>();
+  private final ReferenceQueue<UserCache> droppedUsers = new ReferenceQueue<>();
+  // users pinned by their entries, in the order of the entries
+  private final ArrayDeque<Pin> pins = new ArrayDeque<>();
+
+  private long appended;
+  private long syncs;
+  private long batches;
+  private long recovered;
+  private long rotations;
+
+  /** The shared cache of one user, held strongly while the user has entries not applied yet. */
+  private static class UserRef extends WeakReference<UserCache>
+  {
+    final String username;
+    UserCache pinned;
+    long lastSeq;
+
+    UserRef(UserCache user, ReferenceQueue<UserCache> queue)
+    {
+      super(user, queue);
+      this.username = user.username;
+    }
+  }
+
+  /** An entry of {@code ref}'s user, which keeps the user pinned until it is applied. */
+  private static class Pin
+  {
+    final UserRef ref;
+    final long seq;
+
+    Pin(UserRef ref, long seq)
+    {
+      this.ref = ref;
+      this.seq = seq;
+    }
+  }
+
+  /**
+   * Opens the journal at {@code file}, applies what it holds above the watermark and starts
+   * the writer and applier threads. {@code conn} is used by the journal only.
+   */
+  public BookingJournal(Path file, Connection conn, long windowMillis, int applyBatch, long rotateBytes)
+          throws IOException, SQLException
+  {
+    this.file = file;
+    this.rotated = Paths.get(file + ".old");
+    this.conn = conn;
+    this.windowMillis = Math.max(windowMillis, 0);
+    this.applyBatch = Math.max(applyBatch, 1);
+    this.rotateBytes = Math.max(rotateBytes, 1);
+
+    conn.setAutoCommit(false);
+    setWatermarkStatement = conn.prepareStatement(SET_WATERMARK);
+    insertReservationStatement = conn.prepareStatement(INSERT_RESERVATION);
+    payReservationStatement = conn.prepareStatement(PAY_RESERVATION);
+    deleteReservationStatement = conn.prepareStatement(DELETE_RESERVATION);
+    addBalanceStatement = conn.prepareStatement(ADD_BALANCE);
+    addSeatsStatement = conn.prepareStatement(ADD_SEATS);
+
+    channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    recover();
+    loadSeats();
+
+    start("booking-journal-writer", new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        writeLoop();
+      }
+    });
+    start("booking-journal-applier", new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        applyLoop();
+      }
+    });
+  }
+
+  /**
+   * Returns the journal shared by all sessions, opening it at
+   * {@code flightservice.journal} the first time it is requested.
+   */
+  public static synchronized BookingJournal shared(Properties configProps) throws Exception
+  {
+    if (shared == null) {
+      shared = new BookingJournal(Paths.get(configProps.getProperty("flightservice.journal").trim()),
+              QuerySearchOnly.connect(configProps),
+              Long.parseLong(configProps.getProperty("flightservice.journal_group_commit_millis", "2").trim()),
+              Integer.parseInt(configProps.getProperty("flightservice.journal_apply_batch", "500").trim()),
+              Long.parseLong(configProps.getProperty("flightservice.journal_rotate_bytes", "67108864").trim()));
+    }
+    return shared;
+  }
+
+  private static void start(String name, Runnable loop)
+  {
+    Thread thread = new Thread(loop, name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /** Returns the cache of {@code username} shared by the sessions of this process, or null. */
+  public synchronized UserCache user(String username)
+  {
+    UserRef ref = users.get(username);
+    return ref == null ? null : ref.get();
+  }
+
+  /** Shares {@code user}, unless another session did first: then returns that one. */
+  public synchronized UserCache addUser(UserCache user)
+  {
+    for (Reference<? extends UserCache> dropped = droppedUsers.poll(); dropped != null;
+         dropped = droppedUsers.poll()) {
+      String username = ((UserRef) dropped).username;
+      if (users.get(username) == dropped) {
+        users.remove(username);
+      }
+    }
+    UserCache existing = user(user.username);
+    if (existing != null) {
+      return existing;
+    }
+    users.put(user.username, new UserRef(user, droppedUsers));
+    return user;
+  }
+
+  /**
+   * Takes the given number of seats on each flight if all of them fit in the flights'
+   * capacities, or none.
+   *
+   * @param seats seats to take by fid
+   * @param capacities capacity by fid
+   */
+  public synchronized boolean reserveSeats(SortedMap<Integer, Integer> seats, Map<Integer, Integer> capacities)
+  {
+    for (Map.Entry<Integer, Integer> e : seats.entrySet()) {
+      if (booked(e.getKey()) + e.getValue() > capacities.get(e.getKey())) {
+        return false;
+      }
+    }
+    for (Map.Entry<Integer, Integer> e : seats.entrySet()) {
+      bookedSeats.put(e.getKey(), booked(e.getKey()) + e.getValue());
+    }
+    return true;
+  }
+
+  /** Gives back seats taken by {@link #reserveSeats(SortedMap, Map)}. */
+  public synchronized void releaseSeats(int fid, int seats)
+  {
+    if (fid >= 0) {
+      bookedSeats.put(fid, Math.max(booked(fid) - seats, 0));
+    }
+  }
+
+  private int booked(int fid)
+  {
+    Integer booked = bookedSeats.get(fid);
+    return booked == null ? 0 : booked;
+  }
+
+  /** Journals new reservations of {@code username}, returning once they are on disk. */
+  public void book(String username, Reservation[] reservations) throws IOException
+  {
+    List<Entry> entries = new ArrayList<>(reservations.length);
+    for (Reservation reservation : reservations) {
+      entries.add(new Entry(BOOK, username, reservation, reservation.id, 0));
+    }
+    append(entries);
+  }
+
+  /** Journals the payment of {@code amount} for a reservation, returning once it is on disk. */
+  public void pay(String username, int reservationId, int amount) throws IOException
+  {
+    List<Entry> entries = new ArrayList<>(1);
+    entries.add(new Entry(PAY, username, null, reservationId, amount));
+    append(entries);
+  }
+
+  /** Journals a cancellation refunding {@code refund}, returning once it is on disk. */
+  public void cancel(String username, Reservation reservation, int refund) throws IOException
+  {
+    List<Entry> entries = new ArrayList<>(1);
+    entries.add(new Entry(CANCEL, username, reservation, reservation.id, refund));
+    append(entries);
+  }
+
+  /**
+   * Numbers the entries and waits until the writer thread synced them. The wait is not
+   * interruptible: once queued, the entries are written, and the caller must know they were.
+   */
+  private synchronized void append(List<Entry> entries) throws IOException
+  {
+    checkFailure();
+    for (Entry entry : entries) {
+      entry.seq = nextSeq++;
+      pending.add(entry);
+      pin(entry);
+    }
+    appended += entries.size();
+    notifyAll();
+    long last = nextSeq - 1;
+    boolean interrupted = false;
+    while (durableSeq < last && writeFailure == null) {
+      try {
+        wait();
+      } catch (InterruptedException error) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    if (durableSeq < last) {
+      throw new IOException("Booking journal failed", writeFailure);
+    }
+  }
+
+  private void checkFailure() throws IOException
+  {
+    if (writeFailure != null) {
+      throw new IOException("Booking journal failed", writeFailure);
+    }
+    if (applyFailure != null) {
+      throw new IOException("Booking journal could not be applied", applyFailure);
+    }
+  }
+
+  // keeps the user's cache until the entry is applied: until then, the tables do not show it
+  private void pin(Entry entry)
+  {
+    UserRef ref = users.get(entry.username);
+    UserCache user = ref == null ? null : ref.get();
+    if (user != null) {
+      ref.pinned = user;
+      ref.lastSeq = entry.seq;
+      pins.add(new Pin(ref, entry.seq));
+    }
+  }
+
+  // lets go of the users whose entries are all applied
+  private void unpinApplied()
+  {
+    while (!pins.isEmpty() && pins.peek().seq <= appliedSeq) {
+      UserRef ref = pins.poll().ref;
+      if (ref.lastSeq <= appliedSeq) {
+        ref.pinned = null;
+      }
+    }
+  }
+
+  /**
+   * Waits until every entry appended so far is applied to the database.
+   *
+   * @throws IOException if the journal stopped before they were
+   */
+  public synchronized void awaitApplied() throws InterruptedException, IOException
+  {
+    long last = nextSeq - 1;
+    while (appliedSeq < last && writeFailure == null && applyFailure == null) {
+      wait();
+    }
+    if (appliedSeq < last) {
+      checkFailure();
+    }
+  }
+
+  /** Forgets the users and seat counts, after the tables were cleared. */
+  public synchronized void clear()
+  {
+    users.clear();
+    pins.clear();
+    bookedSeats.clear();
+  }
+
+  private void writeLoop()
+  {
+    List<Entry> batch = new ArrayList<>();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 << 12);
+    // end of the synced part of the file
+    long durableSize = 0;
+    try {
+      while (true) {
+        synchronized (this) {
+          while (pending.isEmpty()) {
+            wait();
+          }
+          // give the other sessions a moment to join this sync
+          long deadline = System.currentTimeMillis() + windowMillis;
+          for (long left = windowMillis; left > 0; left = deadline - System.currentTimeMillis()) {
+            wait(left);
+          }
+          batch.addAll(pending);
+          pending.clear();
+        }
+
+        bytes.reset();
+        for (Entry entry : batch) {
+          writeRecord(bytes, entry);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        try {
+          while (buffer.hasRemaining()) {
+            channel.write(buffer);
+          }
+          channel.force(false);
+        } catch (IOException error) {
+          // part of the batch may have reached the disk: cut it off, its sessions are told it failed
+          channel.truncate(durableSize);
+          channel.force(false);
+          throw error;
+        }
+        durableSize = channel.size();
+
+        synchronized (this) {
+          durableSeq = batch.get(batch.size() - 1).seq;
+          unapplied.addAll(batch);
+          syncs++;
+          notifyAll();
+        }
+        batch.clear();
+        if (durableSize >= rotateBytes && rotate()) {
+          durableSize = 0;
+        }
+      }
+    } catch (IOException error) {
+      // if even the truncation failed, the batch may be applied at the next start after all
+      error.printStackTrace();
+      synchronized (this) {
+        writeFailure = error;
+        notifyAll();
+      }
+    } catch (InterruptedException error) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void applyLoop()
+  {
+    List<Entry> batch = new ArrayList<>();
+    try {
+      while (true) {
+        synchronized (this) {
+          while (unapplied.isEmpty()) {
+            wait();
+          }
+          for (Entry entry : unapplied) {
+            if (batch.size() == applyBatch) {
+              break;
+            }
+            batch.add(entry);
+          }
+        }
+
+        // the watermark makes a batch that was applied already a no-op, so retrying is safe
+        for (int attempt = 0; ; attempt++) {
+          try {
+            apply(batch);
+            break;
+          } catch (SQLException error) {
+            error.printStackTrace();
+            rollbackQuietly();
+            if (!TransactionRunner.isRetryable(error)) {
+              // e.g. a constraint violation: the batch would fail the same way forever
+              synchronized (this) {
+                applyFailure = error;
+                notifyAll();
+              }
+              return;
+            }
+            Thread.sleep(Math.min(1000, 10L << Math.min(attempt, 10)));
+          }
+        }
+
+        long rotatedApplied;
+        synchronized (this) {
+          for (int i = 0; i < batch.size(); i++) {
+            unapplied.poll();
+          }
+          appliedSeq = batch.get(batch.size() - 1).seq;
+          batches++;
+          unpinApplied();
+          rotatedApplied = rotatedSeq >= 0 && appliedSeq >= rotatedSeq ? rotatedSeq : -1;
+          notifyAll();
+        }
+        batch.clear();
+        if (rotatedApplied >= 0) {
+          deleteRotated(rotatedApplied);
+        }
+      }
+    } catch (InterruptedException error) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  // moves the file aside and starts a new one, unless the file moved aside last is still there
+  private boolean rotate() throws IOException
+  {
+    synchronized (this) {
+      if (rotatedSeq >= 0) {
+        return false;
+      }
+    }
+    channel.close();
+    Files.move(file, rotated, StandardCopyOption.ATOMIC_MOVE);
+    channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+    // the new file must be found after a crash before anything written to it is acknowledged
+    syncDirectory();
+    long seq;
+    synchronized (this) {
+      rotatedSeq = durableSeq;
+      rotations++;
+      seq = rotatedSeq;
+    }
+    // the applier may have caught up before the file was moved aside
+    deleteRotated(seq);
+    return true;
+  }
+
+  // deletes the file moved aside, ending at entry seq, if it is still there and all applied
+  private synchronized void deleteRotated(long seq)
+  {
+    if (rotatedSeq != seq || appliedSeq < seq) {
+      return;
+    }
+    try {
+      Files.deleteIfExists(rotated);
+      rotatedSeq = -1;
+    } catch (IOException error) {
+      // tried again after the next batch
+      error.printStackTrace();
+    }
+  }
+
+  private void syncDirectory()
+  {
+    Path directory = file.toAbsolutePath().getParent();
+    try (FileChannel dir = FileChannel.open(directory, StandardOpenOption.READ)) {
+      dir.force(true);
+    } catch (IOException error) {
+      // not every platform can open a directory; renames are durable there anyway
+    }
+  }
+
+  private void rollbackQuietly()
+  {
+    try {
+      conn.rollback();
+    } catch (SQLException ignored) {
+    }
+  }
+
+  // applies the entries and moves the watermark past them, in one transaction
+  private void apply(List<Entry> batch) throws SQLException
+  {
+    for (Entry entry : batch) {
+      switch (entry.type) {
+        case BOOK:
+          insertReservation(entry.username, entry.reservation);
+          addSeats(entry.reservation.fid1, entry.reservation.seats);
+          addSeats(entry.reservation.fid2, entry.reservation.seats);
+          addBalance(entry.username, 0);
+          break;
+        case PAY:
+          payReservationStatement.clearParameters();
+          payReservationStatement.setInt(1, entry.reservationId);
+          payReservationStatement.setString(2, entry.username);
+          payReservationStatement.executeUpdate();
+          addBalance(entry.username, -entry.amount);
+          break;
+        case CANCEL:
+          deleteReservationStatement.clearParameters();
+          deleteReservationStatement.setInt(1, entry.reservationId);
+          deleteReservationStatement.setString(2, entry.username);
+          deleteReservationStatement.executeUpdate();
+          addSeats(entry.reservation.fid1, -entry.reservation.seats);
+          addSeats(entry.reservation.fid2, -entry.reservation.seats);
+          addBalance(entry.username, entry.amount);
+          break;
+        default:
+          throw new IllegalStateException("Unknown journal entry type " + entry.type);
+      }
+    }
+    setWatermarkStatement.clearParameters();
+    setWatermarkStatement.setLong(1, batch.get(batch.size() - 1).seq);
+    setWatermarkStatement.executeUpdate();
+    conn.commit();
+  }
+
+  private void insertReservation(String username, Reservation r) throws SQLException
+  {
+    PreparedStatement s = insertReservationStatement;
+    s.clearParameters();
+    s.setInt(1, r.id);
+    s.setString(2, username);
+    s.setInt(3, r.fid1);
+    s.setInt(4, r.fid2);
+    s.setInt(5, r.dayOfMonth);
+    s.setInt(6, r.totalPrice);
+    s.setInt(7, r.seats);
+    s.executeUpdate();
+  }
+
+  private void addSeats(int fid, int seats) throws SQLException
+  {
+    if (fid < 0) {
+      return;
+    }
+    addSeatsStatement.clearParameters();
+    addSeatsStatement.setInt(1, fid);
+    addSeatsStatement.setInt(2, seats);
+    addSeatsStatement.executeUpdate();
+  }
+
+  // also moves the user's version on, like the transactions of Query do
+  private void addBalance(String username, int amount) throws SQLException
+  {
+    addBalanceStatement.clearParameters();
+    addBalanceStatement.setInt(1, amount);
+    addBalanceStatement.setString(2, username);
+    addBalanceStatement.executeUpdate();
+  }
+
+  // applies the entries above the watermark, in the file moved aside and then the file, and empties them
+  private void recover() throws IOException, SQLException
+  {
+    long watermark;
+    try (PreparedStatement get = conn.prepareStatement(GET_WATERMARK); ResultSet rs = get.executeQuery()) {
+      if (!rs.next()) {
+        throw new SQLException("JournalWatermark has no row");
+      }
+      watermark = rs.getLong(1);
+    }
+    conn.commit();
+
+    List<Entry> batch = new ArrayList<>();
+    long last = watermark;
+    if (Files.exists(rotated)) {
+      try (FileChannel old = FileChannel.open(rotated, StandardOpenOption.READ)) {
+        last = replay(old, watermark, last, batch);
+      }
+    }
+    last = replay(channel, watermark, last, batch);
+    if (!batch.isEmpty()) {
+      apply(batch);
+      recovered += batch.size();
+    }
+
+    Files.deleteIfExists(rotated);
+    channel.truncate(0);
+    channel.position(0);
+    channel.force(true);
+    nextSeq = last + 1;
+    durableSeq = last;
+    appliedSeq = last;
+  }
+
+  // applies the entries of the file above the watermark, in batches, and returns the last sequence number seen
+  private long replay(FileChannel from, long watermark, long last, List<Entry> batch) throws IOException, SQLException
+  {
+    from.position(0);
+    DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(from), 1 << 16));
+    for (Entry entry = readRecord(in); entry != null; entry = readRecord(in)) {
+      last = Math.max(last, entry.seq);
+      if (entry.seq <= watermark) {
+        continue;
+      }
+      batch.add(entry);
+      if (batch.size() == applyBatch) {
+        apply(batch);
+        recovered += batch.size();
+        batch.clear();
+      }
+    }
+    return last;
+  }
+
+  private void loadSeats() throws SQLException
+  {
+    try (PreparedStatement get = conn.prepareStatement(GET_SEATS); ResultSet rs = get.executeQuery()) {
+      while (rs.next()) {
+        bookedSeats.put(rs.getInt("fid"), rs.getInt("booked"));
+      }
+    }
+    conn.commit();
+  }
+
+  private static void writeRecord(ByteArrayOutputStream bytes, Entry entry) throws IOException
+  {
+    ByteArrayOutputStream payload = new ByteArrayOutputStream(256);
+    DataOutputStream out = new DataOutputStream(payload);
+    out.writeLong(entry.seq);
+    out.writeByte(entry.type);
+    out.writeUTF(entry.username);
+    out.writeInt(entry.reservationId);
+    out.writeInt(entry.amount);
+    out.writeBoolean(entry.reservation != null);
+    if (entry.reservation != null) {
+      Reservation r = entry.reservation;
+      out.writeInt(r.fid1);
+      out.writeInt(r.fid2);
+      out.writeInt(r.dayOfMonth);
+      out.writeInt(r.totalPrice);
+      out.writeInt(r.capacity1);
+      out.writeInt(r.capacity2);
+      writeString(out, r.carrier1);
+      writeString(out, r.carrier2);
+      writeString(out, r.flightNum1);
+      writeString(out, r.flightNum2);
+      writeString(out, r.originCity1);
+      writeString(out, r.originCity2);
+      writeString(out, r.destCity1);
+      writeString(out, r.destCity2);
+      out.writeInt(r.duration1);
+      out.writeInt(r.duration2);
+      out.writeInt(r.price2);
+      out.writeBoolean(r.direct);
+      out.writeInt(r.seats);
+      out.writeBoolean(r.paid);
+    }
+    out.flush();
+
+    CRC32 crc = new CRC32();
+    byte[] body = payload.toByteArray();
+    crc.update(body, 0, body.length);
+    DataOutputStream record = new DataOutputStream(bytes);
+    record.writeInt(body.length);
+    record.writeInt((int) crc.getValue());
+    record.write(body);
+    record.flush();
+  }
+
+  // the next complete record, or null at the end of the journal
+  private static Entry readRecord(DataInputStream in) throws IOException
+  {
+    byte[] body;
+    int checksum;
+    try {
+      int length = in.readInt();
+      checksum = in.readInt();
+      if (length <= 0 || length > 1 << 16) {
+        return null;
+      }
+      body = new byte[length];
+      in.readFully(body);
+    } catch (EOFException torn) {
+      return null;
+    }
+    CRC32 crc = new CRC32();
+    crc.update(body, 0, body.length);
+    if ((int) crc.getValue() != checksum) {
+      return null;
+    }
+
+    DataInputStream data = new DataInputStream(new ByteArrayInputStream(body));
+    long seq = data.readLong();
+    byte type = data.readByte();
+    String username = data.readUTF();
+    int reservationId = data.readInt();
+    int amount = data.readInt();
+    Reservation reservation = null;
+    if (data.readBoolean()) {
+      // arguments are evaluated left to right, in the order writeRecord wrote the fields
+      reservation = new Reservation(reservationId, data.readInt(), data.readInt(), data.readInt(), data.readInt(),
+              data.readInt(), data.readInt(), readString(data), readString(data), readString(data), readString(data),
+              readString(data), readString(data), readString(data), readString(data), data.readInt(), data.readInt(),
+              data.readInt(), data.readBoolean(), data.readInt());
+      reservation.paid = data.readBoolean();
+    }
+    Entry entry = new Entry(type, username, reservation, reservationId, amount);
+    entry.seq = seq;
+    return entry;
+  }
+
+  private static void writeString(DataOutputStream out, String s) throws IOException
+  {
+    out.writeBoolean(s != null);
+    if (s != null) {
+      out.writeUTF(s);
+    }
+  }
+
+  private static String readString(DataInputStream in) throws IOException
+  {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+
+  @Override
+  public synchronized String toString()
+  {
+    return "BookingJournal{file=" + file + ", appended=" + appended + ", syncs=" + syncs + ", batches=" + batches
+            + ", recovered=" + recovered + ", rotations=" + rotations + ", users=" + users.size()
+            + ", durable=" + durableSeq + ", applied=" + appliedSeq + "}";
+  }
+}
@@ -0,0 +1,293 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Materialized one-stop connections of a {@link FlightIndex}, shared by every session.
+ *
+ * For each (origin, destination, day) that is searched, every valid pair of flights
+ * (first leg leaving the origin, second leg leaving where the first one lands, same day)
+ * is computed once and kept sorted by {@code total_time, fid, fid2}, so a one-stop search
+ * is just the first K pairs. Routes are built on first use and kept in LRU order until the
+ * total number of pairs goes over the configured limit: materializing every route up front
+ * would be quadratic in the flights through each hub.
+ *
+ * When a flight is canceled or reinstated, {@link #flightChanged(int)} only touches the
+ * cached routes that can contain it, removing or merging in the pairs that use it.
+ * Capacity is not part of a pair (searches do not filter on it) and the legs are read
+ * from the table when a search returns them, so a capacity change, recorded with
+ * {@link FlightIndex#setCapacity(int, int)}, shows without touching the pairs.
+ */
+public class ConnectionPairs
+{
+  private static ConnectionPairs shared;
+
+  /** The pairs of one route, as rows of their two legs, in search order. */
+  private static class Route
+  {
+    final int origin;
+    final int dest;
+    final int dayOfMonth;
+    int[] first;
+    int[] second;
+
+    Route(int origin, int dest, int dayOfMonth, int[] first, int[] second)
+    {
+      this.origin = origin;
+      this.dest = dest;
+      this.dayOfMonth = dayOfMonth;
+      this.first = first;
+      this.second = second;
+    }
+
+    int size()
+    {
+      return first.length;
+    }
+  }
+
+  private final FlightIndex index;
+  private final FlightTable table;
+  private final long maxPairs;
+  private final LinkedHashMap<Long, Route> routes = new LinkedHashMap<>(16, 0.75f, true);
+  private long pairs;
+
+  private long builds;
+  private long evictions;
+  private long updates;
+
+  public ConnectionPairs(FlightIndex index, long maxPairs)
+  {
+    this.index = index;
+    this.table = index.table();
+    this.maxPairs = maxPairs;
+  }
+
+  /**
+   * Returns the pairs shared by all sessions, creating them over {@code index} the first
+   * time they are requested.
+   */
+  public static synchronized ConnectionPairs shared(FlightIndex index, long maxPairs)
+  {
+    if (shared == null) {
+      shared = new ConnectionPairs(index, maxPairs);
+    }
+    return shared;
+  }
+
+  private static long key(int origin, int dest, int dayOfMonth)
+  {
+    return ((long) origin << 37) | ((long) dest << 5) | dayOfMonth;
+  }
+
+  /**
+   * The best {@code limit} one-stop itineraries from city {@code origin} to city
+   * {@code dest}, ordered by total time, fid and fid2.
+   */
+  public List<Itinerary> oneStop(int origin, int dest, int dayOfMonth, int limit)
+  {
+    List<Itinerary> result = new ArrayList<>();
+    if (limit <= 0 || origin < 0 || dest < 0 || dayOfMonth < 1 || dayOfMonth > FlightIndex.DAYS_IN_MONTH) {
+      return result;
+    }
+    int[] first;
+    int[] second;
+    synchronized (this) {
+      Route route = route(origin, dest, dayOfMonth);
+      // the arrays are replaced, never modified, so they can be read outside the lock
+      first = route.first;
+      second = route.second;
+    }
+    for (int i = 0; i < first.length && i < limit; i++) {
+      result.add(new Itinerary(table.flight(first[i]), table.flight(second[i])));
+    }
+    return result;
+  }
+
+  private Route route(int origin, int dest, int dayOfMonth)
+  {
+    Long key = key(origin, dest, dayOfMonth);
+    Route route = routes.get(key);
+    if (route == null) {
+      route = build(origin, dest, dayOfMonth);
+      routes.put(key, route);
+      pairs += route.size();
+      builds++;
+      evict(key);
+    }
+    return route;
+  }
+
+  // drops least recently used routes, except the one just added, until under the limit
+  private void evict(Long keep)
+  {
+    Iterator<Map.Entry<Long, Route>> it = routes.entrySet().iterator();
+    while (pairs > maxPairs && it.hasNext()) {
+      Map.Entry<Long, Route> e = it.next();
+      if (!e.getKey().equals(keep)) {
+        pairs -= e.getValue().size();
+        it.remove();
+        evictions++;
+      }
+    }
+  }
+
+  private Route build(int origin, int dest, int dayOfMonth)
+  {
+    List<long[]> found = new ArrayList<>();
+    for (int first : index.departures(origin, dayOfMonth)) {
+      if (index.isCanceled(first)) {
+        continue;
+      }
+      for (int second : index.route(index.destKey(first), dest, dayOfMonth)) {
+        if (!index.isCanceled(second)) {
+          found.add(new long[]{first, second});
+        }
+      }
+    }
+    return sorted(new Route(origin, dest, dayOfMonth, null, null), found);
+  }
+
+  // sets the route's pairs to the given ones, in search order
+  private Route sorted(Route route, List<long[]> found)
+  {
+    long[][] all = found.toArray(new long[0][]);
+    Arrays.sort(all, new Comparator<long[]>()
+    {
+      @Override
+      public int compare(long[] a, long[] b)
+      {
+        return comparePairs((int) a[0], (int) a[1], (int) b[0], (int) b[1]);
+      }
+    });
+    route.first = new int[all.length];
+    route.second = new int[all.length];
+    for (int i = 0; i < all.length; i++) {
+      route.first[i] = (int) all[i][0];
+      route.second[i] = (int) all[i][1];
+    }
+    return route;
+  }
+
+  // total_time, fid, fid2
+  private int comparePairs(int first1, int second1, int first2, int second2)
+  {
+    int cmp = Integer.compare(table.time(first1) + table.time(second1), table.time(first2) + table.time(second2));
+    if (cmp == 0) {
+      cmp = Integer.compare(table.fid(first1), table.fid(first2));
+    }
+    if (cmp == 0) {
+      cmp = Integer.compare(table.fid(second1), table.fid(second2));
+    }
+    return cmp;
+  }
+
+  /**
+   * Brings the cached routes up to date after the flight at {@code row} was canceled or
+   * reinstated in the index. Only routes on the flight's day that leave from its origin
+   * (it can be their first leg) or arrive at its destination (second leg) are updated.
+   */
+  public synchronized void flightChanged(int row)
+  {
+    int day = table.dayOfMonth(row);
+    int origin = index.originKey(row);
+    int dest = index.destKey(row);
+    boolean canceled = index.isCanceled(row);
+    for (Route route : routes.values()) {
+      if (route.dayOfMonth != day || (route.origin != origin && route.dest != dest)) {
+        continue;
+      }
+      int before = route.size();
+      if (canceled) {
+        remove(route, row);
+      } else {
+        add(route, row);
+      }
+      pairs += route.size() - before;
+      updates++;
+    }
+  }
+
+  private void remove(Route route, int row)
+  {
+    int kept = 0;
+    int[] first = new int[route.size()];
+    int[] second = new int[route.size()];
+    for (int i = 0; i < route.size(); i++) {
+      if (route.first[i] != row && route.second[i] != row) {
+        first[kept] = route.first[i];
+        second[kept] = route.second[i];
+        kept++;
+      }
+    }
+    route.first = Arrays.copyOf(first, kept);
+    route.second = Arrays.copyOf(second, kept);
+  }
+
+  private void add(Route route, int row)
+  {
+    // nothing to do if the row is already there, e.g. a repeated notification
+    for (int i = 0; i < route.size(); i++) {
+      if (route.first[i] == row || route.second[i] == row) {
+        return;
+      }
+    }
+
+    List<long[]> added = new ArrayList<>();
+    if (index.originKey(row) == route.origin) {
+      for (int second : index.route(index.destKey(row), route.dest, route.dayOfMonth)) {
+        if (!index.isCanceled(second)) {
+          added.add(new long[]{row, second});
+        }
+      }
+    }
+    if (index.destKey(row) == route.dest) {
+      for (int first : index.departures(route.origin, route.dayOfMonth)) {
+        // (row, row) was already added above if the row is both legs
+        if (index.destKey(first) == index.originKey(row) && !index.isCanceled(first)
+                && !(first == row && index.originKey(row) == route.origin)) {
+          added.add(new long[]{first, row});
+        }
+      }
+    }
+    if (added.isEmpty()) {
+      return;
+    }
+    Route extra = sorted(new Route(route.origin, route.dest, route.dayOfMonth, null, null), added);
+
+    int n = route.size() + extra.size();
+    int[] first = new int[n];
+    int[] second = new int[n];
+    int i = 0;
+    int j = 0;
+    for (int k = 0; k < n; k++) {
+      if (j == extra.size() || (i < route.size()
+              && comparePairs(route.first[i], route.second[i], extra.first[j], extra.second[j]) <= 0)) {
+        first[k] = route.first[i];
+        second[k] = route.second[i++];
+      } else {
+        first[k] = extra.first[j];
+        second[k] = extra.second[j++];
+      }
+    }
+    route.first = first;
+    route.second = second;
+  }
+
+  public synchronized void clear()
+  {
+    routes.clear();
+    pairs = 0;
+  }
+
+  @Override
+  public synchronized String toString()
+  {
+    return "ConnectionPairs{routes=" + routes.size() + ", pairs=" + pairs + "/" + maxPairs
+            + ", builds=" + builds + ", evictions=" + evictions + ", updates=" + updates + "}";
+  }
+}
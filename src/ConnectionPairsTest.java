@@ -0,0 +1,105 @@
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the materialized connection pairs answer like a search over the index, as
+ * flights are canceled and reinstated.
+ */
+public class ConnectionPairsTest
+{
+  private static final int[] LIMITS = {1, 3, 10, 1000};
+
+  // every one-stop search of the fixture, from the pairs and from the index
+  private static void assertSameSearches(FlightIndex index, ConnectionPairs pairs) throws SQLException
+  {
+    for (String[] origin : ItinerarySearchTest.CITIES) {
+      for (String[] dest : ItinerarySearchTest.CITIES) {
+        for (int day = 1; day <= ItinerarySearchTest.DAYS; day++) {
+          for (int k : LIMITS) {
+            String o = origin[k % origin.length];
+            String d = dest[day % dest.length];
+            assertEquals(o + " -> " + d + " day " + day + " top " + k,
+                    ItinerarySearchTest.render(ItinerarySearch.search(index, o, d, false, day, k)),
+                    ItinerarySearchTest.render(ItinerarySearch.search(index, pairs, o, d, false, day, k)));
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Cancels and reinstates flights at random, some twice in a row, with every route cached:
+   * the pairs updated in place must match the index, and pairs built from scratch.
+   */
+  @Test
+  public void followsCancellations() throws SQLException
+  {
+    FlightTable table = ItinerarySearchTest.fixture(10, 400);
+    FlightIndex index = FlightIndex.of(table);
+    ConnectionPairs pairs = new ConnectionPairs(index, Long.MAX_VALUE);
+    assertSameSearches(index, pairs);
+
+    Random random = new Random(10);
+    for (int round = 0; round < 20; round++) {
+      for (int i = 0; i < 10; i++) {
+        // found as refreshFlight() finds it: rows canceled in the table are not in the index
+        int row = index.row(table.fid(random.nextInt(table.rows())));
+        if (row < 0) {
+          continue;
+        }
+        index.setCanceled(row, !index.isCanceled(row));
+        pairs.flightChanged(row);
+        if (random.nextInt(4) == 0) {
+          // a repeated notification changes nothing
+          pairs.flightChanged(row);
+        }
+      }
+      assertSameSearches(index, pairs);
+      assertSameSearches(index, new ConnectionPairs(index, Long.MAX_VALUE));
+    }
+  }
+
+  /** With room for a few routes only, evicted routes are built again when searched. */
+  @Test
+  public void rebuildsEvictedRoutes() throws SQLException
+  {
+    FlightTable table = ItinerarySearchTest.fixture(11, 400);
+    FlightIndex index = FlightIndex.of(table);
+    ConnectionPairs pairs = new ConnectionPairs(index, 50);
+    assertSameSearches(index, pairs);
+    for (int row = 0; row < table.rows(); row += 7) {
+      if (index.row(table.fid(row)) < 0) {
+        continue;
+      }
+      index.setCanceled(row, true);
+      pairs.flightChanged(row);
+    }
+    assertSameSearches(index, pairs);
+    assertFalse(pairs.toString(), pairs.toString().contains("evictions=0,"));
+  }
+
+  /** A capacity change shows in the pairs that use the flight, without any update. */
+  @Test
+  public void showsCapacityChanges() throws SQLException
+  {
+    FlightTable table = new FlightTable.Builder()
+            .add(1, 1, "AA", "1", "Seattle WA", "Denver CO", 60, 5, 100, 0)
+            .add(2, 1, "AA", "2", "Denver CO", "Boston MA", 60, 5, 100, 0)
+            .build();
+    FlightIndex index = FlightIndex.of(table);
+    ConnectionPairs pairs = new ConnectionPairs(index, Long.MAX_VALUE);
+    assertEquals(5, pairs.oneStop(index.cityKey("Seattle WA"), index.cityKey("Boston MA"), 1, 1)
+            .get(0).flight(1).capacity);
+
+    index.setCapacity(index.row(2), 4);
+    Itinerary found = pairs.oneStop(index.cityKey("Seattle WA"), index.cityKey("Boston MA"), 1, 1).get(0);
+    assertEquals(4, found.flight(1).capacity);
+    assertTrue(found.flight(1).toString(), found.flight(1).toString().endsWith("Capacity: 4 Price: 100"));
+  }
+}
@@ -0,0 +1,293 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Connections to the database shared by all sessions.
+ *
+ * A session borrows a connection for each transaction or statement and gives it back
+ * right after, so many sessions can share a few connections. Each connection keeps the
+ * statements prepared on it, keyed by their SQL, so a session binds its statements again
+ * after every borrow without preparing anything more than once per connection.
+ *
+ * Between {@code minSize} and {@code maxSize} connections are open. When all are borrowed, a
+ * borrower waits up to {@code maxWaitMillis}. A connection that was idle for longer than
+ * {@code validateIdleMillis} is validated before it is handed out, and replaced if it is
+ * dead. A connection given back in the middle of a transaction is rolled back.
+ *
+ * If a connection is not given back within {@code leakMillis}, it is reported once, with
+ * the stack of the code that borrowed it, the next time the pool runs out.
+ */
+public class ConnectionPool
+{
+  private static ConnectionPool shared;
+
+  /** A connection of the pool, with the statements prepared on it. */
+  public static class PooledConnection
+  {
+    private final Connection connection;
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+    private long lastUsed;
+    private long borrowedAt;
+    private Throwable borrower;
+    private boolean reported;
+
+    PooledConnection(Connection connection)
+    {
+      this.connection = connection;
+      this.lastUsed = System.currentTimeMillis();
+    }
+
+    public Connection connection()
+    {
+      return connection;
+    }
+
+    /** Returns the statement for {@code sql}, preparing it the first time on this connection. */
+    public PreparedStatement prepare(String sql) throws SQLException
+    {
+      PreparedStatement statement = statements.get(sql);
+      if (statement == null) {
+        statement = connection.prepareStatement(sql);
+        statements.put(sql, statement);
+      }
+      return statement;
+    }
+  }
+
+  private final Properties configProps;
+  private final int minSize;
+  private final int maxSize;
+  private final long maxWaitMillis;
+  private final long validateIdleMillis;
+  private final long leakMillis;
+
+  // most recently used last, so busy periods keep reusing the same warm connections
+  private final ArrayDeque<PooledConnection> idle = new ArrayDeque<>();
+  private final Map<PooledConnection, Boolean> borrowed = new IdentityHashMap<>();
+  // idle and borrowed, and connections being opened
+  private int size;
+
+  private long borrows;
+  private long waits;
+  private long timeouts;
+  private long opened;
+  private long discarded;
+  private long leaks;
+
+  public ConnectionPool(Properties configProps, int minSize, int maxSize, long maxWaitMillis, long validateIdleMillis,
+                        long leakMillis) throws Exception
+  {
+    this.configProps = configProps;
+    this.maxSize = Math.max(maxSize, 1);
+    this.minSize = Math.min(Math.max(minSize, 0), this.maxSize);
+    this.maxWaitMillis = maxWaitMillis;
+    this.validateIdleMillis = validateIdleMillis;
+    this.leakMillis = leakMillis;
+    for (int i = 0; i < this.minSize; i++) {
+      idle.add(open());
+      size++;
+    }
+  }
+
+  /**
+   * Returns the pool shared by all sessions, opening it with {@code configProps} the first
+   * time it is requested.
+   */
+  public static synchronized ConnectionPool shared(Properties configProps) throws Exception
+  {
+    if (shared == null) {
+      shared = new ConnectionPool(configProps,
+              Integer.parseInt(configProps.getProperty("flightservice.pool_min_size", "2").trim()),
+              Integer.parseInt(configProps.getProperty("flightservice.pool_max_size", "0").trim()),
+              Long.parseLong(configProps.getProperty("flightservice.pool_max_wait_millis", "5000").trim()),
+              Long.parseLong(configProps.getProperty("flightservice.pool_validate_idle_millis", "30000").trim()),
+              Long.parseLong(configProps.getProperty("flightservice.pool_leak_millis", "60000").trim()));
+    }
+    return shared;
+  }
+
+  private PooledConnection open() throws SQLException
+  {
+    Connection connection;
+    try {
+      connection = QuerySearchOnly.connect(configProps);
+    } catch (SQLException error) {
+      throw error;
+    } catch (Exception error) {
+      throw new SQLException("Cannot open a connection", error);
+    }
+    connection.setAutoCommit(true);
+    connection.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+    synchronized (this) {
+      opened++;
+    }
+    return new PooledConnection(connection);
+  }
+
+  /**
+   * Borrows a connection, which must be given back with {@link #release(PooledConnection)}.
+   *
+   * @throws SQLException if none could be opened, or none was given back in time
+   */
+  public PooledConnection borrow() throws SQLException
+  {
+    while (true) {
+      PooledConnection pooled = take();
+      if (pooled == null) {
+        try {
+          pooled = open();
+        } catch (SQLException error) {
+          synchronized (this) {
+            size--;
+            notifyAll();
+          }
+          throw error;
+        }
+      } else if (System.currentTimeMillis() - pooled.lastUsed > validateIdleMillis && !isValid(pooled)) {
+        discard(pooled);
+        continue;
+      }
+
+      pooled.borrowedAt = System.currentTimeMillis();
+      pooled.borrower = leakMillis > 0 ? new Throwable("Connection borrowed here") : null;
+      pooled.reported = false;
+      synchronized (this) {
+        borrowed.put(pooled, Boolean.TRUE);
+      }
+      return pooled;
+    }
+  }
+
+  // an idle connection, or null after reserving room for a new one
+  private synchronized PooledConnection take() throws SQLException
+  {
+    borrows++;
+    long deadline = System.currentTimeMillis() + maxWaitMillis;
+    boolean waited = false;
+    while (idle.isEmpty() && size >= maxSize) {
+      if (!waited) {
+        waits++;
+        waited = true;
+        reportLeaks();
+      }
+      long left = deadline - System.currentTimeMillis();
+      if (left <= 0) {
+        timeouts++;
+        throw new SQLException("No connection available after " + maxWaitMillis + " ms: " + this);
+      }
+      try {
+        wait(left);
+      } catch (InterruptedException error) {
+        Thread.currentThread().interrupt();
+        throw new SQLException("Interrupted while waiting for a connection", error);
+      }
+    }
+    if (!idle.isEmpty()) {
+      return idle.pollLast();
+    }
+    size++;
+    return null;
+  }
+
+  private static boolean isValid(PooledConnection pooled)
+  {
+    try {
+      return pooled.connection.isValid(2);
+    } catch (SQLException error) {
+      return false;
+    }
+  }
+
+  /** Gives back a borrowed connection, rolling back any transaction left open on it. */
+  public void release(PooledConnection pooled)
+  {
+    synchronized (this) {
+      if (borrowed.remove(pooled) == null) {
+        return;
+      }
+    }
+    try {
+      if (!pooled.connection.getAutoCommit()) {
+        pooled.connection.rollback();
+        pooled.connection.setAutoCommit(true);
+      }
+    } catch (SQLException error) {
+      discardBorrowed(pooled);
+      return;
+    }
+    pooled.lastUsed = System.currentTimeMillis();
+    pooled.borrower = null;
+    synchronized (this) {
+      idle.addLast(pooled);
+      notifyAll();
+    }
+  }
+
+  /** Closes a borrowed connection that is broken instead of giving it back. */
+  public void discardBorrowed(PooledConnection pooled)
+  {
+    synchronized (this) {
+      borrowed.remove(pooled);
+    }
+    discard(pooled);
+  }
+
+  private void discard(PooledConnection pooled)
+  {
+    try {
+      pooled.connection.close();
+    } catch (SQLException ignored) {
+    }
+    synchronized (this) {
+      size--;
+      discarded++;
+      notifyAll();
+    }
+  }
+
+  // prints the connections held for longer than leakMillis, once each
+  private void reportLeaks()
+  {
+    if (leakMillis <= 0) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    for (PooledConnection pooled : borrowed.keySet()) {
+      if (!pooled.reported && now - pooled.borrowedAt > leakMillis) {
+        pooled.reported = true;
+        leaks++;
+        System.err.println("Connection held for " + (now - pooled.borrowedAt) + " ms, possibly leaked");
+        if (pooled.borrower != null) {
+          pooled.borrower.printStackTrace();
+        }
+      }
+    }
+  }
+
+  /** Closes the idle connections. */
+  public synchronized void close()
+  {
+    for (PooledConnection pooled : idle) {
+      try {
+        pooled.connection.close();
+      } catch (SQLException ignored) {
+      }
+      size--;
+    }
+    idle.clear();
+  }
+
+  @Override
+  public synchronized String toString()
+  {
+    return "ConnectionPool{size=" + size + "/" + maxSize + ", idle=" + idle.size() + ", borrowed=" + borrowed.size()
+            + ", borrows=" + borrows + ", waits=" + waits + ", timeouts=" + timeouts + ", opened=" + opened
+            + ", discarded=" + discarded + ", leaks=" + leaks + "}";
+  }
+}
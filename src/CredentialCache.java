@@ -0,0 +1,149 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+
+/**
+ * LRU cache of recently verified logins, shared by every session in the JVM.
+ *
+ * A login whose password matches the cached entry of its user is accepted without asking
+ * the database. Entries keep a random salt and the SHA-256 of the salt and the password,
+ * never the password itself.
+ *
+ * An entry is dropped whenever the user's row is created again or seen to change, see
+ * {@link #invalidate(String)}, and all of them when the tables are cleared.
+ */
+public class CredentialCache
+{
+  private static final int SALT_BYTES = 16;
+
+  private static CredentialCache shared;
+
+  private static class Entry
+  {
+    final byte[] salt;
+    final byte[] hash;
+
+    Entry(byte[] salt, byte[] hash)
+    {
+      this.salt = salt;
+      this.hash = hash;
+    }
+  }
+
+  private final int capacity;
+  private final LinkedHashMap<String, Entry> entries;
+  private final SecureRandom random = new SecureRandom();
+
+  private long hits;
+  private long misses;
+  private long evictions;
+  private long invalidations;
+
+  public CredentialCache(int capacity)
+  {
+    this.capacity = capacity;
+    this.entries = new LinkedHashMap<>(16, 0.75f, true);
+  }
+
+  /**
+   * Returns the cache shared by all sessions, creating it with the given capacity the
+   * first time it is requested.
+   */
+  public static synchronized CredentialCache shared(int capacity)
+  {
+    if (shared == null) {
+      shared = new CredentialCache(capacity);
+    }
+    return shared;
+  }
+
+  private static byte[] hash(byte[] salt, String password)
+  {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      digest.update(salt);
+      return digest.digest(password.getBytes(StandardCharsets.UTF_8));
+    } catch (NoSuchAlgorithmException error) {
+      // every JVM has SHA-256
+      throw new IllegalStateException(error);
+    }
+  }
+
+  /** Whether {@code password} is the one last verified for {@code username}. */
+  public boolean matches(String username, String password)
+  {
+    Entry entry;
+    synchronized (this) {
+      entry = entries.get(username);
+      if (entry == null) {
+        misses++;
+        return false;
+      }
+    }
+    // hashed outside the lock
+    boolean matches = MessageDigest.isEqual(entry.hash, hash(entry.salt, password));
+    synchronized (this) {
+      if (matches) {
+        hits++;
+      } else {
+        misses++;
+      }
+    }
+    return matches;
+  }
+
+  /** Remembers that the database accepted {@code password} for {@code username}. */
+  public void put(String username, String password)
+  {
+    if (capacity <= 0) {
+      return;
+    }
+    byte[] salt = new byte[SALT_BYTES];
+    random.nextBytes(salt);
+    Entry entry = new Entry(salt, hash(salt, password));
+    synchronized (this) {
+      entries.put(username, entry);
+      while (entries.size() > capacity) {
+        entries.remove(entries.keySet().iterator().next());
+        evictions++;
+      }
+    }
+  }
+
+  /** Drops the entry of {@code username}, whose row changed. */
+  public synchronized void invalidate(String username)
+  {
+    if (entries.remove(username) != null) {
+      invalidations++;
+    }
+  }
+
+  public synchronized void clear()
+  {
+    entries.clear();
+  }
+
+  public synchronized long hits()
+  {
+    return hits;
+  }
+
+  public synchronized long misses()
+  {
+    return misses;
+  }
+
+  public synchronized int size()
+  {
+    return entries.size();
+  }
+
+  @Override
+  public synchronized String toString()
+  {
+    return "CredentialCache{size=" + entries.size() + "/" + capacity + ", hits=" + hits + ", misses=" + misses
+            + ", evictions=" + evictions + ", invalidations=" + invalidations + "}";
+  }
+}
@@ -0,0 +1,356 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * In-memory copy of the (non-canceled) flights, used to answer searches without
+ * going back to the database.
+ *
+ * The flights themselves live in a column-oriented {@link FlightTable}; the index only
+ * holds row numbers. Rows are partitioned by day of the month. Within a day, each origin
+ * city maps to its outgoing flights sorted by {@code actual_time, fid}, which is the same
+ * order that {@code DIRECT_SEARCH_SQL} returns them in, and each (origin, destination)
+ * route maps to its flights in the same order.
+ *
+ * Cities are looked up by key: an int standing for all the spellings SQL Server would
+ * consider equal, see {@link #normalizeCity(String)}.
+ *
+ * The flights data does not change while the service is running, so a single index
+ * is loaded once and shared by every session in the JVM. The exceptions are a flight
+ * being canceled or reinstated, which is recorded with {@link #setCanceled(int, boolean)}
+ * (searches skip the rows for which {@link #isCanceled(int)} is true), and a change of
+ * capacity, see {@link #setCapacity(int, int)}.
+ */
+public class FlightIndex
+{
+  static final int DAYS_IN_MONTH = 31;
+
+  private static final int[] NO_FLIGHTS = new int[0];
+
+  private static FlightIndex shared;
+
+  /** Flights of a single day, as row numbers into the table. */
+  private static class Day
+  {
+    // origin city key -> flights leaving it
+    final Map<Integer, int[]> departures = new HashMap<>();
+    // (origin city key, destination city key) -> flights between the two
+    final Map<Long, int[]> routes = new HashMap<>();
+    // destination city key -> shortest flight arriving there
+    final Map<Integer, Integer> shortestArrival = new HashMap<>();
+  }
+
+  private final FlightTable table;
+  // city dictionary code -> city key
+  private final int[] cityKeys;
+  // normalized city name -> city key
+  private final Map<String, Integer> keysByName;
+  private final Day[] days;
+  // (fid << 32 | row), sorted, to find the row of a flight
+  private final long[] rowsByFid;
+  // rows canceled since the table was loaded, replaced rather than modified
+  private volatile BitSet canceled = new BitSet();
+
+  private FlightIndex(FlightTable table)
+  {
+    this.table = table;
+
+    StringDictionary cities = table.cities();
+    this.cityKeys = new int[cities.size()];
+    this.keysByName = new HashMap<>();
+    for (int code = 0; code < cities.size(); code++) {
+      String name = normalizeCity(cities.decode(code));
+      Integer key = keysByName.get(name);
+      if (key == null) {
+        key = keysByName.size();
+        keysByName.put(name, key);
+      }
+      cityKeys[code] = key;
+    }
+
+    this.days = new Day[DAYS_IN_MONTH + 1];
+    for (int d = 1; d <= DAYS_IN_MONTH; d++) {
+      days[d] = new Day();
+    }
+    build();
+
+    long[] byFid = new long[table.rows()];
+    int n = 0;
+    for (int row = 0; row < table.rows(); row++) {
+      if (indexed(row)) {
+        byFid[n++] = ((long) table.fid(row) << 32) | row;
+      }
+    }
+    this.rowsByFid = Arrays.copyOf(byFid, n);
+    Arrays.sort(rowsByFid);
+  }
+
+  /**
+   * Returns the index shared by all sessions, building it the first time it is requested.
+   *
+   * If {@code snapshotFile} is given and holds a snapshot younger than {@code maxAgeMillis},
+   * the flights are mapped from it without touching the database. Otherwise they are read
+   * through {@code conn} and a fresh snapshot is written for the next start.
+   */
+  public static synchronized FlightIndex shared(Connection conn, String snapshotFile,
+                                                long maxAgeMillis) throws SQLException
+  {
+    if (shared == null) {
+      FlightTable table = null;
+      Path snapshot = snapshotFile == null ? null : Paths.get(snapshotFile);
+      if (snapshot != null) {
+        try {
+          table = FlightSnapshot.load(snapshot, maxAgeMillis);
+        } catch (IOException error) {
+          error.printStackTrace();
+        }
+      }
+      if (table == null) {
+        table = FlightTable.load(conn);
+        if (snapshot != null) {
+          try {
+            FlightSnapshot.write(table, snapshot);
+          } catch (IOException error) {
+            error.printStackTrace();
+          }
+        }
+      }
+      shared = new FlightIndex(table);
+    }
+    return shared;
+  }
+
+  /** Reads every non-canceled flight and builds a new index. */
+  public static FlightIndex load(Connection conn) throws SQLException
+  {
+    return new FlightIndex(FlightTable.load(conn));
+  }
+
+  /** Builds an index over the given flights. */
+  public static FlightIndex of(FlightTable table)
+  {
+    return new FlightIndex(table);
+  }
+
+  private void build()
+  {
+    List<Map<Integer, List<Integer>>> departures = new ArrayList<>();
+    List<Map<Long, List<Integer>>> routes = new ArrayList<>();
+    for (int d = 0; d <= DAYS_IN_MONTH; d++) {
+      departures.add(new HashMap<Integer, List<Integer>>());
+      routes.add(new HashMap<Long, List<Integer>>());
+    }
+
+    for (int row = 0; row < table.rows(); row++) {
+      int d = table.dayOfMonth(row);
+      if (!indexed(row)) {
+        continue;
+      }
+      int origin = originKey(row);
+      int dest = destKey(row);
+      add(departures.get(d), origin, row);
+      add(routes.get(d), routeKey(origin, dest), row);
+
+      Integer shortest = days[d].shortestArrival.get(dest);
+      if (shortest == null || table.time(row) < shortest) {
+        days[d].shortestArrival.put(dest, table.time(row));
+      }
+    }
+
+    for (int d = 1; d <= DAYS_IN_MONTH; d++) {
+      for (Map.Entry<Integer, List<Integer>> e : departures.get(d).entrySet()) {
+        days[d].departures.put(e.getKey(), sorted(e.getValue()));
+      }
+      for (Map.Entry<Long, List<Integer>> e : routes.get(d).entrySet()) {
+        days[d].routes.put(e.getKey(), sorted(e.getValue()));
+      }
+    }
+  }
+
+  // whether the row can be found by searches; canceled rows are only found in tables
+  // that were not loaded from the database
+  private boolean indexed(int row)
+  {
+    int d = table.dayOfMonth(row);
+    return d >= 1 && d <= DAYS_IN_MONTH && table.originCity(row) != null && table.destCity(row) != null
+            && table.canceled(row) == 0;
+  }
+
+  private static <K> void add(Map<K, List<Integer>> groups, K key, int row)
+  {
+    List<Integer> rows = groups.get(key);
+    if (rows == null) {
+      rows = new ArrayList<>();
+      groups.put(key, rows);
+    }
+    rows.add(row);
+  }
+
+  // orders rows the same way as ORDER BY actual_time ASC, fid ASC
+  private int[] sorted(List<Integer> rows)
+  {
+    Integer[] boxed = rows.toArray(new Integer[0]);
+    Arrays.sort(boxed, new Comparator<Integer>()
+    {
+      @Override
+      public int compare(Integer a, Integer b)
+      {
+        if (table.time(a) != table.time(b)) {
+          return Integer.compare(table.time(a), table.time(b));
+        }
+        return Integer.compare(table.fid(a), table.fid(b));
+      }
+    });
+    int[] result = new int[boxed.length];
+    for (int i = 0; i < boxed.length; i++) {
+      result[i] = boxed[i];
+    }
+    return result;
+  }
+
+  private static long routeKey(int originKey, int destKey)
+  {
+    return ((long) originKey << 32) | (destKey & 0xffffffffL);
+  }
+
+  public FlightTable table()
+  {
+    return table;
+  }
+
+  /** Number of flights held by the index. */
+  public int size()
+  {
+    return table.rows();
+  }
+
+  /** Row of the flight with the given fid, or -1 if the index does not hold it. */
+  public int row(int fid)
+  {
+    int low = 0;
+    int high = rowsByFid.length - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      int found = (int) (rowsByFid[middle] >> 32);
+      if (found < fid) {
+        low = middle + 1;
+      } else if (found > fid) {
+        high = middle - 1;
+      } else {
+        return (int) rowsByFid[middle];
+      }
+    }
+    return -1;
+  }
+
+  /** Whether the flight at {@code row} was canceled after the index was loaded. */
+  public boolean isCanceled(int row)
+  {
+    return canceled.get(row);
+  }
+
+  /**
+   * Marks the flight at {@code row} as canceled, or as flying again. The row stays in the
+   * departure and route lists, so the shortest arrivals remain valid lower bounds.
+   */
+  public synchronized void setCanceled(int row, boolean flag)
+  {
+    BitSet updated = (BitSet) canceled.clone();
+    updated.set(row, flag);
+    canceled = updated;
+  }
+
+  /**
+   * Sets the capacity of the flight at {@code row}. Capacity plays no part in the order of
+   * the departure and route lists, so only the row itself changes.
+   */
+  public void setCapacity(int row, int capacity)
+  {
+    table.setCapacity(row, capacity);
+  }
+
+  /** Key of the given city, or -1 if no flight touches it. */
+  public int cityKey(String city)
+  {
+    if (city == null) {
+      return -1;
+    }
+    Integer key = keysByName.get(normalizeCity(city));
+    return key == null ? -1 : key;
+  }
+
+  public int originKey(int row)
+  {
+    return cityKeys[table.originCode(row)];
+  }
+
+  public int destKey(int row)
+  {
+    return cityKeys[table.destCode(row)];
+  }
+
+  /**
+   * Rows of the flights leaving city {@code originKey} on {@code dayOfMonth}, ordered by
+   * {@code actual_time, fid}. The returned array must not be modified.
+   */
+  public int[] departures(int originKey, int dayOfMonth)
+  {
+    if (dayOfMonth < 1 || dayOfMonth > DAYS_IN_MONTH || originKey < 0) {
+      return NO_FLIGHTS;
+    }
+    int[] rows = days[dayOfMonth].departures.get(originKey);
+    return rows == null ? NO_FLIGHTS : rows;
+  }
+
+  /**
+   * Rows of the direct flights from city {@code originKey} to city {@code destKey} on
+   * {@code dayOfMonth}, ordered by {@code actual_time, fid}. The returned array must not
+   * be modified.
+   */
+  public int[] route(int originKey, int destKey, int dayOfMonth)
+  {
+    if (dayOfMonth < 1 || dayOfMonth > DAYS_IN_MONTH || originKey < 0 || destKey < 0) {
+      return NO_FLIGHTS;
+    }
+    int[] rows = days[dayOfMonth].routes.get(routeKey(originKey, destKey));
+    return rows == null ? NO_FLIGHTS : rows;
+  }
+
+  /**
+   * Duration of the shortest flight landing in city {@code destKey} on {@code dayOfMonth},
+   * or -1 if there is none. Used as a lower bound on the last leg of an itinerary.
+   */
+  public int shortestArrival(int destKey, int dayOfMonth)
+  {
+    if (dayOfMonth < 1 || dayOfMonth > DAYS_IN_MONTH || destKey < 0) {
+      return -1;
+    }
+    Integer shortest = days[dayOfMonth].shortestArrival.get(destKey);
+    return shortest == null ? -1 : shortest;
+  }
+
+  /**
+   * Normalizes a city name the way SQL Server compares it under the default
+   * collation: case-insensitive and ignoring trailing spaces.
+   */
+  static String normalizeCity(String city)
+  {
+    if (city == null) {
+      return "";
+    }
+    int end = city.length();
+    while (end > 0 && city.charAt(end - 1) == ' ') {
+      end--;
+    }
+    return city.substring(0, end).toLowerCase(Locale.ROOT);
+  }
+}
@@ -1,5 +1,10 @@
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.regex.Matcher;
@@ -16,11 +21,18 @@ public class FlightService
     System.out.println(" *** Please enter one of the following commands *** ");
     System.out.println("> create <username> <password> <initial amount>");
     System.out.println("> login <username> <password>");
+    System.out.println("> resume <session token>");
+    System.out.println("> token");
     System.out.println("> search <origin city> <destination city> <direct> <day of the month> <num itineraries>");
+    System.out.println("> search_range <origin city> <destination city> <direct> <first day> <last day> <num itineraries>");
+    System.out.println("> search_multi <origin city> <destination city> <max flights> <day> <num itineraries>");
+    System.out.println("> search_batch <origin city> <destination city> <direct> <day of the month> <num itineraries> [...]");
     System.out.println("> book <itinerary id>");
+    System.out.println("> book_group <passengers> <itinerary id> [<itinerary id> ...]");
     System.out.println("> pay <reservation id>");
-    System.out.println("> reservations");
+    System.out.println("> reservations [<page size> [<continuation token>]]");
     System.out.println("> cancel <reservation id>");
+    System.out.println("> refresh_flight <flight id>");
     System.out.println("> quit");
   }
 
@@ -40,6 +52,23 @@ public class FlightService
   }
 
   public static String execute (Query q, String command)
+  {
+    StringBuilder sb = new StringBuilder();
+    try
+    {
+      execute(q, command, sb);
+    }
+    catch (IOException e) { throw new UncheckedIOException(e); } // StringBuilder never throws
+    return sb.toString();
+  }
+
+  /**
+   * Runs a command and writes its response to {@code out}. Search results are written
+   * straight to {@code out} as they are formatted.
+   *
+   * @return false if the command ends the session
+   */
+  public static boolean execute (Query q, String command, Appendable out) throws IOException
   {
     String response;
 
@@ -60,6 +89,22 @@ public class FlightService
         response = "Error: Please provide a username and password";
     }
 
+    else if (tokens[0].equals("resume"))
+    {
+      /* log in again with the token of an earlier login */
+      if (tokens.length == 2)
+        response = q.transaction_resume(tokens[1]);
+      else
+        response = "Error: Please provide a session token";
+    }
+
+    else if (tokens[0].equals("token"))
+    {
+      /* the token to resume this login with */
+      String token = q.sessionToken();
+      response = token == null ? "Cannot get a session token, not logged in\n" : "Session token: " + token + "\n";
+    }
+
     else if (tokens[0].equals("create"))
     {
       /* create a new customer */
@@ -90,7 +135,8 @@ public class FlightService
           count = Integer.valueOf(tokens[5]);
           //System.out.println("Searching for flights");
           //response = q.transaction_search_unsafe(originCity, destinationCity, direct, day, count);
-          response = q.transaction_search(originCity, destinationCity, direct, day, count);
+          q.transaction_search(originCity, destinationCity, direct, day, count, out);
+          response = "";
         }
         catch (NumberFormatException e) { response = "Failed to parse integer"; }
       }
@@ -98,6 +144,70 @@ public class FlightService
         response = "Error: Please provide all search parameters <origin_city> <destination_city> <direct> <date> <nb itineraries>";
     }
 
+    else if (tokens[0].equals("search_range"))
+    {
+      /* search for flights over a range of days */
+      if (tokens.length == 7)
+      {
+        String originCity = tokens[1];
+        String destinationCity = tokens[2];
+        boolean direct = tokens[3].equals("1");
+        try
+        {
+          int firstDay = Integer.parseInt(tokens[4]);
+          int lastDay = Integer.parseInt(tokens[5]);
+          int count = Integer.parseInt(tokens[6]);
+          q.transaction_search_range(originCity, destinationCity, direct, firstDay, lastDay, count, out);
+          response = "";
+        }
+        catch (NumberFormatException e) { response = "Failed to parse integer"; }
+      }
+      else
+        response = "Error: Please provide all search parameters <origin_city> <destination_city> <direct> <first day> <last day> <nb itineraries>";
+    }
+
+    else if (tokens[0].equals("search_multi"))
+    {
+      /* search for itineraries with any number of connections up to a limit */
+      if (tokens.length == 6)
+      {
+        String originCity = tokens[1];
+        String destinationCity = tokens[2];
+        try
+        {
+          int maxFlights = Integer.parseInt(tokens[3]);
+          int day = Integer.parseInt(tokens[4]);
+          int count = Integer.parseInt(tokens[5]);
+          q.transaction_search_multi(originCity, destinationCity, maxFlights, day, count, out);
+          response = "";
+        }
+        catch (NumberFormatException e) { response = "Failed to parse integer"; }
+      }
+      else
+        response = "Error: Please provide all search parameters <origin_city> <destination_city> <max flights> <date> <nb itineraries>";
+    }
+
+    else if (tokens[0].equals("search_batch"))
+    {
+      /* run several searches at once, five parameters for each */
+      if (tokens.length > 1 && (tokens.length - 1) % 5 == 0)
+      {
+        try
+        {
+          List<SearchRequest> requests = new ArrayList<>();
+          for (int i = 1; i < tokens.length; i += 5)
+            requests.add(new SearchRequest(tokens[i], tokens[i + 1], tokens[i + 2].equals("1"),
+                    Integer.parseInt(tokens[i + 3]), Integer.parseInt(tokens[i + 4])));
+          for (String result : q.searchBatch(requests))
+            out.append(result);
+          response = "";
+        }
+        catch (NumberFormatException e) { response = "Failed to parse integer"; }
+      }
+      else
+        response = "Error: Please provide all search parameters <origin_city> <destination_city> <direct> <date> <nb itineraries> for each search";
+    }
+
     else if (tokens[0].equals("book"))
     {
 				/* book a flight ticket */
@@ -111,10 +221,43 @@ public class FlightService
         response = "Error: Please provide an itinerary_id";
     }
 
+    else if (tokens[0].equals("book_group"))
+    {
+      /* book several itineraries for several passengers at once */
+      if (tokens.length >= 3)
+      {
+        try
+        {
+          int passengers = Integer.parseInt(tokens[1]);
+          int[] itinerary_ids = new int[tokens.length - 2];
+          for (int i = 0; i < itinerary_ids.length; i++)
+            itinerary_ids[i] = Integer.parseInt(tokens[i + 2]);
+          response = q.transaction_book_group(itinerary_ids, passengers);
+        }
+        catch (NumberFormatException e) { response = "Failed to parse integer"; }
+      }
+      else
+        response = "Error: Please provide a number of passengers and at least one itinerary_id";
+    }
+
     else if (tokens[0].equals("reservations"))
     {
 				/* list all reservations */
-      response = q.transaction_reservations();
+      if (tokens.length == 1)
+        response = q.transaction_reservations();
+      /* or one page of them */
+      else if (tokens.length <= 3)
+      {
+        try
+        {
+          int pageSize = Integer.parseInt(tokens[1]);
+          q.transaction_reservations(pageSize, tokens.length == 3 ? tokens[2] : null, out);
+          response = "";
+        }
+        catch (NumberFormatException e) { response = "Failed to parse integer"; }
+      }
+      else
+        response = "Error: Please provide at most a page size and a continuation token";
     }
 
     else if (tokens[0].equals("pay"))
@@ -143,18 +286,55 @@ public class FlightService
         response = "Error: Please provide a reservation_id";
     }
 
+    else if (tokens[0].equals("refresh_flight"))
+    {
+      /* pick up a change made to a flight in the database */
+      if (tokens.length == 2)
+      {
+        try
+        {
+          response = q.transaction_refresh_flight(Integer.parseInt(tokens[1]));
+        }
+        catch (NumberFormatException e) { response = "Failed to parse integer"; }
+      }
+      else
+        response = "Error: Please provide a flight id";
+    }
+
     else if (tokens[0].equals("quit"))
       response = "Goodbye\n";
 
     else
       response = "Error: unrecognized command '" + tokens[0] + "'";
 
-    return response;
+    out.append(response);
+    return !response.equals("Goodbye\n");
   }
 
   /* REPL (Read-Execute-Print-Loop) */
   public static void menu(Query q) throws Exception
   {
+    Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
+    while (true)
+    {
+      usage();
+
+      BufferedReader r = new BufferedReader(new InputStreamReader(System.in));
+      System.out.print("> ");
+
+      String command = r.readLine();
+      boolean more = execute(q, command, out);
+      out.flush();
+
+      if (!more)
+        break;
+    }
+  }
+
+  /* REPL for one session of {@code engine} */
+  public static void menu(SessionManager engine, Session session) throws Exception
+  {
+    Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
     while (true)
     {
       usage();
@@ -163,10 +343,10 @@ public class FlightService
       System.out.print("> ");
 
       String command = r.readLine();
-      String response = execute(q, command);
-      System.out.print(response);
+      boolean more = engine.execute(session, command, out);
+      out.flush();
 
-      if (response.equals("Goodbye\n"))
+      if (!more)
         break;
     }
   }
@@ -174,11 +354,9 @@ public class FlightService
   public static void main(String[] args) throws Exception
   {
 		/* prepare the database connection stuff */
-    Query q = new Query(DBCONFIG_FILENAME);
-    q.openConnection();
-    q.prepareStatements();
-    menu(q); /* menu(...) does the real work */
-    q.closeConnection();
+    SessionManager engine = new SessionManager(DBCONFIG_FILENAME);
+    menu(engine, engine.open()); /* menu(...) does the real work */
+    engine.close();
   }
 
 }
@@ -0,0 +1,230 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Binary, column-oriented snapshot of the flights table, so that a {@link FlightIndex}
+ * can be built at startup without reading FLIGHTS over JDBC.
+ *
+ * File layout (big-endian):
+ *
+ * header: magic (int), format version (int), created at (long, epoch millis),
+ *         row count (int), body length (long), CRC32 of the body (long)
+ * body:   the city, carrier and flight number dictionaries, each as a count followed
+ *         by length-prefixed UTF-8 strings (length -1 for null), then the int columns
+ *         fid, day_of_month, carrier, flight_num, origin_city, dest_city, actual_time,
+ *         capacity, price, canceled, each holding row count values
+ *
+ * The file is memory-mapped on load and the columns are bulk-copied into a
+ * {@link FlightTable}.
+ *
+ * Usage: java FlightSnapshot [config file] [snapshot file]
+ */
+public class FlightSnapshot
+{
+  private static final int MAGIC = 0x464c5453; // "FLTS"
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 4 + 4 + 8 + 4 + 8 + 8;
+
+  private FlightSnapshot()
+  {
+  }
+
+  /**
+   * Writes {@code table} to {@code file}. The snapshot is written to a temporary file
+   * first and moved into place, so readers never see a partial file.
+   */
+  public static void write(FlightTable table, Path file) throws IOException
+  {
+    Path dir = file.toAbsolutePath().getParent();
+    Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+    try {
+      CRC32 crc = new CRC32();
+      long bodyLength;
+      try (RandomAccessFile raf = new RandomAccessFile(tmp.toFile(), "rw")) {
+        raf.seek(HEADER_SIZE);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new CheckedOutputStream(Channels.newOutputStream(raf.getChannel()), crc), 1 << 16));
+
+        writeDictionary(out, table.cities());
+        writeDictionary(out, table.carriers());
+        writeDictionary(out, table.flightNums());
+        int rows = table.rows();
+        for (int row = 0; row < rows; row++) {
+          out.writeInt(table.fid(row));
+        }
+        for (int row = 0; row < rows; row++) {
+          out.writeInt(table.dayOfMonth(row));
+        }
+        for (int row = 0; row < rows; row++) {
+          out.writeInt(table.carrierCode(row));
+        }
+        for (int row = 0; row < rows; row++) {
+          out.writeInt(table.flightNumCode(row));
+        }
+        for (int row = 0; row < rows; row++) {
+          out.writeInt(table.originCode(row));
+        }
+        for (int row = 0; row < rows; row++) {
+          out.writeInt(table.destCode(row));
+        }
+        for (int row = 0; row < rows; row++) {
+          out.writeInt(table.time(row));
+        }
+        for (int row = 0; row < rows; row++) {
+          out.writeInt(table.capacity(row));
+        }
+        for (int row = 0; row < rows; row++) {
+          out.writeInt(table.price(row));
+        }
+        for (int row = 0; row < rows; row++) {
+          out.writeInt(table.canceled(row));
+        }
+        out.flush();
+        bodyLength = raf.getFilePointer() - HEADER_SIZE;
+
+        raf.seek(0);
+        raf.writeInt(MAGIC);
+        raf.writeInt(VERSION);
+        raf.writeLong(System.currentTimeMillis());
+        raf.writeInt(rows);
+        raf.writeLong(bodyLength);
+        raf.writeLong(crc.getValue());
+        raf.getFD().sync();
+      }
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  /**
+   * Maps a snapshot and reads it into a table.
+   *
+   * @return the table, or null if the file does not exist, has a different format version
+   * or is older than {@code maxAgeMillis} (a value <= 0 accepts any age)
+   * @throws IOException if the file cannot be read or fails its checksum
+   */
+  public static FlightTable load(Path file, long maxAgeMillis) throws IOException
+  {
+    if (!Files.isRegularFile(file)) {
+      return null;
+    }
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      if (channel.size() < HEADER_SIZE) {
+        throw new IOException("Truncated flight snapshot " + file);
+      }
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.getInt() != MAGIC) {
+        throw new IOException("Not a flight snapshot: " + file);
+      }
+      if (buffer.getInt() != VERSION) {
+        return null;
+      }
+      long createdAt = buffer.getLong();
+      if (maxAgeMillis > 0 && System.currentTimeMillis() - createdAt > maxAgeMillis) {
+        return null;
+      }
+      int rows = buffer.getInt();
+      long bodyLength = buffer.getLong();
+      long checksum = buffer.getLong();
+      if (bodyLength != channel.size() - HEADER_SIZE) {
+        throw new IOException("Truncated flight snapshot " + file);
+      }
+
+      ByteBuffer body = buffer.slice();
+      CRC32 crc = new CRC32();
+      crc.update(body.duplicate());
+      if (crc.getValue() != checksum) {
+        throw new IOException("Checksum mismatch in flight snapshot " + file);
+      }
+
+      StringDictionary cities = readDictionary(body);
+      StringDictionary carriers = readDictionary(body);
+      StringDictionary flightNums = readDictionary(body);
+      IntBuffer columns = body.asIntBuffer();
+      int[] fid = readColumn(columns, rows);
+      int[] dayOfMonth = readColumn(columns, rows);
+      int[] carrier = readColumn(columns, rows);
+      int[] flightNum = readColumn(columns, rows);
+      int[] originCity = readColumn(columns, rows);
+      int[] destCity = readColumn(columns, rows);
+      int[] time = readColumn(columns, rows);
+      int[] capacity = readColumn(columns, rows);
+      int[] price = readColumn(columns, rows);
+      int[] canceled = readColumn(columns, rows);
+      return new FlightTable(cities, carriers, flightNums, rows, fid, dayOfMonth, carrier, flightNum,
+              originCity, destCity, time, capacity, price, canceled);
+    }
+  }
+
+  private static void writeDictionary(DataOutputStream out, StringDictionary dictionary) throws IOException
+  {
+    out.writeInt(dictionary.size());
+    for (int code = 0; code < dictionary.size(); code++) {
+      String value = dictionary.decode(code);
+      if (value == null) {
+        out.writeInt(-1);
+      } else {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+      }
+    }
+  }
+
+  private static StringDictionary readDictionary(ByteBuffer in)
+  {
+    StringDictionary dictionary = new StringDictionary();
+    int size = in.getInt();
+    for (int i = 0; i < size; i++) {
+      int length = in.getInt();
+      if (length < 0) {
+        dictionary.encode(null);
+      } else {
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        dictionary.encode(new String(bytes, StandardCharsets.UTF_8));
+      }
+    }
+    return dictionary;
+  }
+
+  private static int[] readColumn(IntBuffer in, int rows)
+  {
+    int[] column = new int[rows];
+    in.get(column);
+    return column;
+  }
+
+  /** Exports the flights table of the configured database to a snapshot file. */
+  public static void main(String[] args) throws Exception
+  {
+    String config = args.length > 0 ? args[0] : FlightService.DBCONFIG_FILENAME;
+    String output = args.length > 1 ? args[1] : "flights.snapshot";
+
+    QuerySearchOnly q = new QuerySearchOnly(config);
+    q.openConnection();
+    q.borrowConnection();
+    FlightTable table = FlightTable.load(q.conn);
+    q.releaseConnection();
+    q.closeConnection();
+
+    write(table, Paths.get(output));
+    System.out.println("Wrote " + table.rows() + " flights to " + output);
+  }
+}
@@ -0,0 +1,131 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Writes flight snapshots and reads them back, whole, damaged or out of date.
+ */
+public class FlightSnapshotTest
+{
+  // offsets in the header, see FlightSnapshot
+  private static final int VERSION_OFFSET = 4;
+  private static final int CREATED_AT_OFFSET = 8;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Path write(FlightTable table) throws IOException
+  {
+    Path file = folder.getRoot().toPath().resolve("flights.snapshot");
+    FlightSnapshot.write(table, file);
+    return file;
+  }
+
+  /** The table read back holds the same rows, cities and all. */
+  @Test
+  public void roundTrip() throws IOException
+  {
+    FlightTable table = ItinerarySearchTest.fixture(6, 3000);
+    FlightTable loaded = FlightSnapshot.load(write(table), 60 * 1000);
+
+    assertNotNull(loaded);
+    assertEquals(table.rows(), loaded.rows());
+    for (int row = 0; row < table.rows(); row++) {
+      assertEquals(table.flight(row).toString(), loaded.flight(row).toString());
+      assertEquals(table.canceled(row), loaded.canceled(row));
+      assertEquals(table.originCode(row), loaded.originCode(row));
+    }
+    assertEquals(table.cities().size(), loaded.cities().size());
+  }
+
+  @Test
+  public void roundTripOfEmptyTable() throws IOException
+  {
+    FlightTable loaded = FlightSnapshot.load(write(new FlightTable.Builder().build()), 0);
+    assertNotNull(loaded);
+    assertEquals(0, loaded.rows());
+  }
+
+  @Test
+  public void missingFileIsNoSnapshot() throws IOException
+  {
+    assertNull(FlightSnapshot.load(folder.getRoot().toPath().resolve("none.snapshot"), 0));
+  }
+
+  /** A changed byte in the body fails the checksum. */
+  @Test
+  public void rejectsCorruptBody() throws IOException
+  {
+    Path file = write(ItinerarySearchTest.fixture(6, 100));
+    try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+      long position = raf.length() - 5;
+      raf.seek(position);
+      int value = raf.read();
+      raf.seek(position);
+      raf.write(value ^ 0x10);
+    }
+    try {
+      FlightSnapshot.load(file, 0);
+      fail("loaded a corrupt snapshot");
+    } catch (IOException expected) {
+      // the checksum does not match
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsTruncatedFile() throws IOException
+  {
+    Path file = write(ItinerarySearchTest.fixture(6, 100));
+    try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+      raf.setLength(raf.length() - 4);
+    }
+    FlightSnapshot.load(file, 0);
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsOtherFiles() throws IOException
+  {
+    Path file = write(ItinerarySearchTest.fixture(6, 100));
+    try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+      raf.writeInt(0);
+    }
+    FlightSnapshot.load(file, 0);
+  }
+
+  /** A snapshot older than the max age is ignored, unless any age is accepted. */
+  @Test
+  public void ignoresStaleSnapshot() throws IOException
+  {
+    Path file = write(ItinerarySearchTest.fixture(6, 100));
+    try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+      raf.seek(CREATED_AT_OFFSET);
+      raf.writeLong(System.currentTimeMillis() - 2 * 3600 * 1000);
+    }
+    assertNull(FlightSnapshot.load(file, 3600 * 1000));
+    assertNotNull(FlightSnapshot.load(file, 3 * 3600 * 1000));
+    assertNotNull(FlightSnapshot.load(file, 0));
+  }
+
+  /** A snapshot in another format version is ignored rather than misread. */
+  @Test
+  public void ignoresOtherVersion() throws IOException
+  {
+    Path file = write(ItinerarySearchTest.fixture(6, 100));
+    try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+      raf.seek(VERSION_OFFSET);
+      int version = raf.readInt();
+      raf.seek(VERSION_OFFSET);
+      raf.writeInt(version + 1);
+    }
+    assertNull(FlightSnapshot.load(file, 0));
+  }
+}
@@ -0,0 +1,310 @@
+import java.sql.*;
+import java.util.Arrays;
+
+/**
+ * Compact, column-oriented table of flights.
+ *
+ * Every column is a primitive array indexed by row number. Cities, carriers and flight
+ * numbers repeat across many rows, so they are stored as codes into shared
+ * {@link StringDictionary dictionaries} rather than as strings. Hot paths work on row
+ * numbers through the accessors below; {@link QuerySearchOnly.Flight} objects are only
+ * created on demand by {@link #flight(int)} when a result has to be returned.
+ */
+public class FlightTable
+{
+  private static final String LOAD_FLIGHTS_SQL =
+          "SELECT fid,day_of_month,carrier_id,flight_num,origin_city,dest_city,actual_time,capacity,price,canceled "
+                  + "FROM Flights "
+                  + "WHERE canceled = 0";
+
+  private final StringDictionary cities;
+  private final StringDictionary carriers;
+  private final StringDictionary flightNums;
+
+  private final int rows;
+  private final int[] fid;
+  private final int[] dayOfMonth;
+  private final int[] carrier;
+  private final int[] flightNum;
+  private final int[] originCity;
+  private final int[] destCity;
+  private final int[] time;
+  private final int[] capacity;
+  private final int[] price;
+  private final int[] canceled;
+  // formatted rows, see text(int)
+  private final String[] text;
+
+  private FlightTable(Builder b)
+  {
+    this.cities = b.cities;
+    this.carriers = b.carriers;
+    this.flightNums = b.flightNums;
+    this.rows = b.rows;
+    this.fid = Arrays.copyOf(b.fid, b.rows);
+    this.dayOfMonth = Arrays.copyOf(b.dayOfMonth, b.rows);
+    this.carrier = Arrays.copyOf(b.carrier, b.rows);
+    this.flightNum = Arrays.copyOf(b.flightNum, b.rows);
+    this.originCity = Arrays.copyOf(b.originCity, b.rows);
+    this.destCity = Arrays.copyOf(b.destCity, b.rows);
+    this.time = Arrays.copyOf(b.time, b.rows);
+    this.capacity = Arrays.copyOf(b.capacity, b.rows);
+    this.price = Arrays.copyOf(b.price, b.rows);
+    this.canceled = Arrays.copyOf(b.canceled, b.rows);
+    this.text = new String[b.rows];
+  }
+
+  // used by FlightSnapshot, takes ownership of the arrays
+  FlightTable(StringDictionary cities, StringDictionary carriers, StringDictionary flightNums, int rows,
+              int[] fid, int[] dayOfMonth, int[] carrier, int[] flightNum, int[] originCity, int[] destCity,
+              int[] time, int[] capacity, int[] price, int[] canceled)
+  {
+    this.cities = cities;
+    this.carriers = carriers;
+    this.flightNums = flightNums;
+    this.rows = rows;
+    this.fid = fid;
+    this.dayOfMonth = dayOfMonth;
+    this.carrier = carrier;
+    this.flightNum = flightNum;
+    this.originCity = originCity;
+    this.destCity = destCity;
+    this.time = time;
+    this.capacity = capacity;
+    this.price = price;
+    this.canceled = canceled;
+    this.text = new String[rows];
+  }
+
+  /** Reads every non-canceled flight from the database. */
+  public static FlightTable load(Connection conn) throws SQLException
+  {
+    Statement statement = conn.createStatement();
+    FlightTable table = read(statement.executeQuery(LOAD_FLIGHTS_SQL));
+    statement.close();
+    return table;
+  }
+
+  /** Reads the non-canceled flights of a single day from the database. */
+  public static FlightTable loadDay(Connection conn, int dayOfMonth) throws SQLException
+  {
+    PreparedStatement statement = conn.prepareStatement(LOAD_FLIGHTS_SQL + " AND day_of_month = ?");
+    statement.setInt(1, dayOfMonth);
+    FlightTable table = read(statement.executeQuery());
+    statement.close();
+    return table;
+  }
+
+  private static FlightTable read(ResultSet rs) throws SQLException
+  {
+    Builder builder = new Builder();
+    while (rs.next()) {
+      builder.add(rs.getInt("fid"), rs.getInt("day_of_month"), rs.getString("carrier_id"),
+              rs.getString("flight_num"), rs.getString("origin_city"), rs.getString("dest_city"),
+              rs.getInt("actual_time"), rs.getInt("capacity"), rs.getInt("price"), rs.getInt("canceled"));
+    }
+    rs.close();
+    return builder.build();
+  }
+
+  /** Accumulates rows for a new table. */
+  public static class Builder
+  {
+    private final StringDictionary cities = new StringDictionary();
+    private final StringDictionary carriers = new StringDictionary();
+    private final StringDictionary flightNums = new StringDictionary();
+
+    private int rows;
+    private int[] fid = new int[1024];
+    private int[] dayOfMonth = new int[1024];
+    private int[] carrier = new int[1024];
+    private int[] flightNum = new int[1024];
+    private int[] originCity = new int[1024];
+    private int[] destCity = new int[1024];
+    private int[] time = new int[1024];
+    private int[] capacity = new int[1024];
+    private int[] price = new int[1024];
+    private int[] canceled = new int[1024];
+
+    public Builder add(int fid, int dayOfMonth, String carrierId, String flightNum, String originCity,
+                       String destCity, int time, int capacity, int price, int canceled)
+    {
+      if (rows == this.fid.length) {
+        grow();
+      }
+      this.fid[rows] = fid;
+      this.dayOfMonth[rows] = dayOfMonth;
+      this.carrier[rows] = carriers.encode(carrierId);
+      this.flightNum[rows] = flightNums.encode(flightNum);
+      this.originCity[rows] = cities.encode(originCity);
+      this.destCity[rows] = cities.encode(destCity);
+      this.time[rows] = time;
+      this.capacity[rows] = capacity;
+      this.price[rows] = price;
+      this.canceled[rows] = canceled;
+      rows++;
+      return this;
+    }
+
+    private void grow()
+    {
+      int n = rows * 2;
+      fid = Arrays.copyOf(fid, n);
+      dayOfMonth = Arrays.copyOf(dayOfMonth, n);
+      carrier = Arrays.copyOf(carrier, n);
+      flightNum = Arrays.copyOf(flightNum, n);
+      originCity = Arrays.copyOf(originCity, n);
+      destCity = Arrays.copyOf(destCity, n);
+      time = Arrays.copyOf(time, n);
+      capacity = Arrays.copyOf(capacity, n);
+      price = Arrays.copyOf(price, n);
+      canceled = Arrays.copyOf(canceled, n);
+    }
+
+    public FlightTable build()
+    {
+      return new FlightTable(this);
+    }
+  }
+
+  public int rows()
+  {
+    return rows;
+  }
+
+  public StringDictionary cities()
+  {
+    return cities;
+  }
+
+  public StringDictionary carriers()
+  {
+    return carriers;
+  }
+
+  public StringDictionary flightNums()
+  {
+    return flightNums;
+  }
+
+  public int fid(int row)
+  {
+    return fid[row];
+  }
+
+  public int dayOfMonth(int row)
+  {
+    return dayOfMonth[row];
+  }
+
+  public String carrierId(int row)
+  {
+    return carriers.decode(carrier[row]);
+  }
+
+  /** Dictionary code of the carrier, see {@link #carriers()}. */
+  public int carrierCode(int row)
+  {
+    return carrier[row];
+  }
+
+  /** Dictionary code of the flight number, see {@link #flightNums()}. */
+  public int flightNumCode(int row)
+  {
+    return flightNum[row];
+  }
+
+  public String flightNum(int row)
+  {
+    return flightNums.decode(flightNum[row]);
+  }
+
+  /** Dictionary code of the origin city, see {@link #cities()}. */
+  public int originCode(int row)
+  {
+    return originCity[row];
+  }
+
+  /** Dictionary code of the destination city, see {@link #cities()}. */
+  public int destCode(int row)
+  {
+    return destCity[row];
+  }
+
+  public String originCity(int row)
+  {
+    return cities.decode(originCity[row]);
+  }
+
+  public String destCity(int row)
+  {
+    return cities.decode(destCity[row]);
+  }
+
+  public int time(int row)
+  {
+    return time[row];
+  }
+
+  public int capacity(int row)
+  {
+    return capacity[row];
+  }
+
+  /** Changes the capacity of the given row, which the flights and text returned from now on show. */
+  public synchronized void setCapacity(int row, int capacity)
+  {
+    this.capacity[row] = capacity;
+    text[row] = null;
+  }
+
+  public int price(int row)
+  {
+    return price[row];
+  }
+
+  public int canceled(int row)
+  {
+    return canceled[row];
+  }
+
+  /** Creates a {@code Flight} holding a copy of the given row. */
+  public QuerySearchOnly.Flight flight(int row)
+  {
+    QuerySearchOnly.Flight flight = new QuerySearchOnly.Flight();
+    flight.fid = fid[row];
+    flight.dayOfMonth = dayOfMonth[row];
+    flight.carrierId = carrierId(row);
+    flight.flightNum = flightNum(row);
+    flight.originCity = originCity(row);
+    flight.destCity = destCity(row);
+    flight.time = time[row];
+    flight.capacity = capacity[row];
+    flight.price = price[row];
+    flight.cancelled = canceled[row];
+    flight.text = text(row);
+    return flight;
+  }
+
+  /**
+   * Returns the given row in the same format as {@code Flight.toString()}. The text is built
+   * the first time a row is asked for and kept for later searches.
+   */
+  public String text(int row)
+  {
+    String result = text[row];
+    if (result == null) {
+      int seats = capacity[row];
+      result = "ID: " + fid[row] + " Day: " + dayOfMonth[row] + " Carrier: " + carrierId(row)
+              + " Number: " + flightNum(row) + " Origin: " + originCity(row) + " Dest: " + destCity(row)
+              + " Duration: " + time[row] + " Capacity: " + seats + " Price: " + price[row];
+      // racy but benign: every thread computes the same string, and setCapacity() drops it again
+      synchronized (this) {
+        if (capacity[row] == seats) {
+          text[row] = result;
+        }
+      }
+    }
+    return result;
+  }
+}
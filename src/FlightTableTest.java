@@ -0,0 +1,59 @@
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks that a {@link FlightTable} gives back the rows it was built from.
+ */
+public class FlightTableTest
+{
+  /** Every column of every row, past the point where the builder grows its arrays. */
+  @Test
+  public void keepsRows()
+  {
+    FlightTable.Builder builder = new FlightTable.Builder();
+    int rows = 5000;
+    for (int row = 0; row < rows; row++) {
+      builder.add(row * 3, 1 + row % 31, "C" + row % 7, Integer.toString(row % 100), "Origin " + row % 11,
+              "Dest " + row % 13, 30 + row % 300, row % 20, 100 + row, row % 2);
+    }
+    FlightTable table = builder.build();
+
+    assertEquals(rows, table.rows());
+    for (int row = 0; row < rows; row++) {
+      assertEquals(row * 3, table.fid(row));
+      assertEquals(1 + row % 31, table.dayOfMonth(row));
+      assertEquals("C" + row % 7, table.carrierId(row));
+      assertEquals(Integer.toString(row % 100), table.flightNum(row));
+      assertEquals("Origin " + row % 11, table.originCity(row));
+      assertEquals("Dest " + row % 13, table.destCity(row));
+      assertEquals(30 + row % 300, table.time(row));
+      assertEquals(row % 20, table.capacity(row));
+      assertEquals(100 + row, table.price(row));
+      assertEquals(row % 2, table.canceled(row));
+    }
+    // one string per distinct value
+    assertEquals(11 + 13, table.cities().size());
+  }
+
+  /** A flight of the table reads and prints like one read from the database. */
+  @Test
+  public void buildsFlights()
+  {
+    FlightTable table = new FlightTable.Builder()
+            .add(1016624, 6, "UA", "1281", "Kahului HI", "Los Angeles CA", 287, 11, 375, 0)
+            .add(7, 1, "AA", null, "Kahului HI", null, 1, 2, 3, 0)
+            .build();
+
+    QuerySearchOnly.Flight flight = table.flight(0);
+    assertEquals(1016624, flight.fid);
+    assertEquals("Kahului HI", flight.originCity);
+    assertEquals("ID: 1016624 Day: 6 Carrier: UA Number: 1281 Origin: Kahului HI Dest: Los Angeles CA "
+            + "Duration: 287 Capacity: 11 Price: 375", flight.toString());
+
+    assertNull(table.flightNum(1));
+    assertNull(table.destCity(1));
+    assertEquals(table.cities().lookup("Kahului HI"), table.originCode(1));
+  }
+}
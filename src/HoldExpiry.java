@@ -0,0 +1,403 @@
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Cancels reservations that are not paid within the hold TTL, giving their seats back.
+ *
+ * Every unpaid reservation has a timer in a {@link TimingWheel}, removed when it is paid or
+ * canceled. A sweeper thread advances the wheel every tick and cancels the reservations whose
+ * timer fired, in batches of up to {@code batchSize}: one database transaction per batch, or
+ * one journal entry per reservation when the {@link BookingJournal} is on. Each expiry is
+ * recorded in EXPIREDHOLDS. A hold whose cancellation fails stays expired and is tried
+ * again on the next tick. The work per tick is the holds that expire, whatever the number
+ * of holds waiting; the table is only read once, at startup, to give the unpaid reservations
+ * it holds a full TTL from then.
+ *
+ * A hold past its deadline counts as expired even before the sweeper gets to it, see
+ * {@link #isExpired(int)}.
+ */
+public class HoldExpiry
+{
+  private static final String LIST_UNPAID = "SELECT reservation_id, username, fid1, fid2, seats FROM Reservations "
+          + "WHERE paid = 0";
+  // locks the user first, as the transactions of Query do, and makes the sessions reload their cache
+  private static final String LOCK_USER = "UPDATE Users SET version = version + 1 WHERE username = ?";
+  private static final String DELETE_UNPAID = "DELETE FROM Reservations WHERE reservation_id = ? AND username = ? "
+          + "AND paid = 0";
+  private static final String RELEASE_SEATS = "UPDATE BookedSeats SET booked = booked - ? WHERE fid = ? AND booked >= ?";
+  // to load a user no session holds, see cancelJournaled()
+  private static final String GET_USER = "SELECT balance, version FROM Users WHERE username = ?";
+  private static final String LIST_RESERVATIONS = "SELECT " + Reservation.COLUMNS + " FROM " + Reservation.TABLES
+          + " WHERE R.username = ? ORDER BY R.reservation_id";
+  private static final String RECORD_EXPIRY = "INSERT INTO ExpiredHolds (reservation_id, username, fid1, fid2, seats, "
+          + "expired_at) VALUES (?, ?, ?, ?, ?, SYSUTCDATETIME())";
+
+  private static HoldExpiry shared;
+
+  /** The hold of one unpaid reservation. */
+  public static class Hold
+  {
+    public final int reservationId;
+    public final String username;
+    public final int fid1;
+    public final int fid2;
+    public final int seats;
+    // set once the timer fired, until the reservation is canceled
+    boolean expired;
+    TimingWheel.Timer<Hold> timer;
+
+    Hold(int reservationId, String username, int fid1, int fid2, int seats)
+    {
+      this.reservationId = reservationId;
+      this.username = username;
+      this.fid1 = fid1;
+      this.fid2 = fid2;
+      this.seats = seats;
+    }
+  }
+
+  private final Connection conn;
+  private final BookingJournal journal;
+  private final long ttlMillis;
+  private final long tickMillis;
+  private final int batchSize;
+  private final TransactionRunner transactions;
+
+  private final PreparedStatement lockUserStatement;
+  private final PreparedStatement deleteUnpaidStatement;
+  private final PreparedStatement releaseSeatsStatement;
+  private final PreparedStatement recordExpiryStatement;
+  private final PreparedStatement getUserStatement;
+  private final PreparedStatement listReservationsStatement;
+
+  private final TimingWheel<Hold> wheel;
+  private final Map<Integer, Hold> holds = new HashMap<>();
+
+  private long expired;
+  private long released;
+  private long batches;
+
+  /**
+   * Schedules the unpaid reservations in the tables and starts the sweeper. {@code conn} is
+   * used by the sweeper only.
+   *
+   * @param journal the journal bookings go through, or null
+   */
+  public HoldExpiry(Connection conn, BookingJournal journal, long ttlMillis, long tickMillis, int batchSize,
+                    TransactionRunner transactions) throws SQLException
+  {
+    this.conn = conn;
+    this.journal = journal;
+    this.ttlMillis = ttlMillis;
+    this.tickMillis = Math.max(tickMillis, 1);
+    this.batchSize = Math.max(batchSize, 1);
+    this.transactions = transactions;
+    this.wheel = new TimingWheel<>(System.currentTimeMillis() / this.tickMillis);
+
+    conn.setAutoCommit(true);
+    lockUserStatement = conn.prepareStatement(LOCK_USER);
+    deleteUnpaidStatement = conn.prepareStatement(DELETE_UNPAID);
+    releaseSeatsStatement = conn.prepareStatement(RELEASE_SEATS);
+    recordExpiryStatement = conn.prepareStatement(RECORD_EXPIRY);
+    getUserStatement = conn.prepareStatement(GET_USER);
+    listReservationsStatement = conn.prepareStatement(LIST_RESERVATIONS);
+
+    PreparedStatement listUnpaid = conn.prepareStatement(LIST_UNPAID);
+    ResultSet rs = listUnpaid.executeQuery();
+    while (rs.next()) {
+      schedule(new Hold(rs.getInt("reservation_id"), rs.getString("username"), rs.getInt("fid1"),
+              rs.getInt("fid2"), rs.getInt("seats")));
+    }
+    rs.close();
+    listUnpaid.close();
+
+    Thread thread = new Thread(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        sweepLoop();
+      }
+    }, "hold-expiry");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Returns the hold expiry shared by all sessions, starting it with {@code configProps} the
+   * first time it is requested.
+   */
+  public static synchronized HoldExpiry shared(Properties configProps, BookingJournal journal) throws Exception
+  {
+    if (shared == null) {
+      final Connection conn = QuerySearchOnly.connect(configProps);
+      TransactionRunner transactions = new TransactionRunner(new TransactionRunner.Rollback()
+      {
+        @Override
+        public void rollback() throws SQLException
+        {
+          conn.rollback();
+          conn.setAutoCommit(true);
+        }
+      }, Integer.parseInt(configProps.getProperty("flightservice.transaction_retries", "5").trim()),
+              Long.parseLong(configProps.getProperty("flightservice.transaction_backoff_millis", "10").trim()),
+              Long.parseLong(configProps.getProperty("flightservice.transaction_max_backoff_millis", "500").trim()));
+      shared = new HoldExpiry(conn, journal,
+              Long.parseLong(configProps.getProperty("flightservice.hold_ttl_minutes", "0").trim()) * 60 * 1000,
+              Long.parseLong(configProps.getProperty("flightservice.hold_tick_millis", "1000").trim()),
+              Integer.parseInt(configProps.getProperty("flightservice.hold_release_batch", "500").trim()),
+              transactions);
+    }
+    return shared;
+  }
+
+  private synchronized void schedule(Hold hold)
+  {
+    long deadline = System.currentTimeMillis() + ttlMillis;
+    // rounded up, so that a hold never fires before its TTL
+    hold.timer = wheel.schedule(hold, (deadline + tickMillis - 1) / tickMillis);
+    holds.put(hold.reservationId, hold);
+  }
+
+  /** Starts the hold of a new, unpaid reservation of {@code username}. */
+  public void hold(String username, Reservation reservation)
+  {
+    schedule(new Hold(reservation.id, username, reservation.fid1, reservation.fid2, reservation.seats));
+  }
+
+  /** Ends the hold of a reservation that was paid or canceled. */
+  public synchronized void release(int reservationId)
+  {
+    Hold hold = holds.remove(reservationId);
+    if (hold != null) {
+      wheel.cancel(hold.timer);
+    }
+  }
+
+  /**
+   * Whether the hold of reservation {@code reservationId} expired: it must then be treated
+   * as gone, even if the sweeper has not canceled it yet.
+   */
+  public synchronized boolean isExpired(int reservationId)
+  {
+    Hold hold = holds.get(reservationId);
+    return hold != null && (hold.expired || System.currentTimeMillis() / tickMillis >= hold.timer.deadline);
+  }
+
+  /** Forgets every hold, after the tables were cleared. */
+  public synchronized void clear()
+  {
+    for (Hold hold : holds.values()) {
+      wheel.cancel(hold.timer);
+    }
+    holds.clear();
+  }
+
+  private void sweepLoop()
+  {
+    List<Hold> due = new ArrayList<>();
+    List<Hold> failed = new ArrayList<>();
+    try {
+      while (true) {
+        Thread.sleep(tickMillis);
+        synchronized (this) {
+          // the holds that failed last time, unless they were released or cleared meanwhile
+          for (Hold hold : failed) {
+            if (holds.get(hold.reservationId) == hold) {
+              due.add(hold);
+            }
+          }
+          int retried = due.size();
+          wheel.advance(System.currentTimeMillis() / tickMillis, due);
+          for (Hold hold : due) {
+            hold.expired = true;
+          }
+          expired += due.size() - retried;
+        }
+        failed.clear();
+        for (int from = 0; from < due.size(); from += batchSize) {
+          List<Hold> batch = due.subList(from, Math.min(from + batchSize, due.size()));
+          Set<Hold> batchFailed;
+          if (journal != null) {
+            batchFailed = new HashSet<>(cancelJournaled(batch));
+          } else {
+            batchFailed = cancel(batch) ? Collections.<Hold>emptySet() : new HashSet<>(batch);
+          }
+          synchronized (this) {
+            for (Hold hold : batch) {
+              if (batchFailed.contains(hold)) {
+                // stays, expired, so that it cannot be paid
+                failed.add(hold);
+              } else {
+                // not a hold made after the tables were cleared, with the same ID
+                holds.remove(hold.reservationId, hold);
+              }
+            }
+            batches++;
+          }
+        }
+        due.clear();
+      }
+    } catch (InterruptedException error) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  // cancels the reservations of the batch that are still unpaid, in one transaction; false if it failed
+  private boolean cancel(final List<Hold> batch)
+  {
+    final int[] count = new int[1];
+    String failure = "Failed to release " + batch.size() + " expired holds\n";
+    String response = transactions.run(new TransactionRunner.Transaction()
+    {
+      @Override
+      public String run() throws SQLException
+      {
+        count[0] = 0;
+        recordExpiryStatement.clearBatch();
+        conn.setAutoCommit(false);
+        for (Hold hold : batch) {
+          lockUserStatement.clearParameters();
+          lockUserStatement.setString(1, hold.username);
+          lockUserStatement.executeUpdate();
+
+          deleteUnpaidStatement.clearParameters();
+          deleteUnpaidStatement.setInt(1, hold.reservationId);
+          deleteUnpaidStatement.setString(2, hold.username);
+          // paid, or canceled, meanwhile
+          if (deleteUnpaidStatement.executeUpdate() == 0) {
+            continue;
+          }
+          releaseSeats(hold.fid1, hold.seats);
+          releaseSeats(hold.fid2, hold.seats);
+          record(hold);
+          count[0]++;
+        }
+        recordExpiryStatement.executeBatch();
+        conn.commit();
+        conn.setAutoCommit(true);
+        return null;
+      }
+    }, failure);
+    if (response != null) {
+      System.err.print(response);
+      return false;
+    }
+    synchronized (this) {
+      released += count[0];
+    }
+    return true;
+  }
+
+  // cancels the reservations of the batch that are still unpaid through the journal, as
+  // Query#transaction_cancel does, and records them in one transaction; returns the holds
+  // that could not be canceled
+  private List<Hold> cancelJournaled(List<Hold> batch)
+  {
+    List<Hold> canceled = new ArrayList<>(batch.size());
+    List<Hold> failed = new ArrayList<>();
+    for (Hold hold : batch) {
+      UserCache user;
+      try {
+        user = journalUser(hold.username);
+      } catch (SQLException error) {
+        error.printStackTrace();
+        failed.add(hold);
+        continue;
+      }
+      if (user == null) {
+        continue;
+      }
+      synchronized (user) {
+        Reservation reservation = user.get(hold.reservationId);
+        if (reservation == null || reservation.paid) {
+          continue;
+        }
+        try {
+          journal.cancel(hold.username, reservation, 0);
+        } catch (IOException error) {
+          error.printStackTrace();
+          failed.add(hold);
+          continue;
+        }
+        journal.releaseSeats(reservation.fid1, reservation.seats);
+        journal.releaseSeats(reservation.fid2, reservation.seats);
+        user.canceled(reservation.id, user.balance());
+      }
+      canceled.add(hold);
+    }
+    try {
+      for (Hold hold : canceled) {
+        record(hold);
+      }
+      recordExpiryStatement.executeBatch();
+    } catch (SQLException error) {
+      error.printStackTrace();
+    }
+    synchronized (this) {
+      released += canceled.size();
+    }
+    return failed;
+  }
+
+  // the user's shared cache, loaded if no session holds it: its entries are then all applied
+  private UserCache journalUser(String username) throws SQLException
+  {
+    UserCache user = journal.user(username);
+    if (user != null) {
+      return user;
+    }
+    getUserStatement.clearParameters();
+    getUserStatement.setString(1, username);
+    ResultSet rs = getUserStatement.executeQuery();
+    if (!rs.next()) {
+      rs.close();
+      return null;
+    }
+    int balance = rs.getInt("balance");
+    int version = rs.getInt("version");
+    rs.close();
+    return journal.addUser(UserCache.load(listReservationsStatement, username, version, balance));
+  }
+
+  private void releaseSeats(int fid, int seats) throws SQLException
+  {
+    if (fid < 0) {
+      return;
+    }
+    releaseSeatsStatement.clearParameters();
+    releaseSeatsStatement.setInt(1, seats);
+    releaseSeatsStatement.setInt(2, fid);
+    releaseSeatsStatement.setInt(3, seats);
+    releaseSeatsStatement.executeUpdate();
+  }
+
+  private void record(Hold hold) throws SQLException
+  {
+    recordExpiryStatement.clearParameters();
+    recordExpiryStatement.setInt(1, hold.reservationId);
+    recordExpiryStatement.setString(2, hold.username);
+    recordExpiryStatement.setInt(3, hold.fid1);
+    recordExpiryStatement.setInt(4, hold.fid2);
+    recordExpiryStatement.setInt(5, hold.seats);
+    recordExpiryStatement.addBatch();
+  }
+
+  @Override
+  public synchronized String toString()
+  {
+    return "HoldExpiry{holds=" + holds.size() + ", waiting=" + wheel.size() + ", expired=" + expired
+            + ", released=" + released + ", batches=" + batches + "}";
+  }
+}
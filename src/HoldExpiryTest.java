@@ -0,0 +1,178 @@
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the hold sweeper against a stand-in database whose cancellations fail on demand.
+ */
+public class HoldExpiryTest
+{
+  private static final long TICK_MILLIS = 5;
+  private static final long TIMEOUT_MILLIS = 10000;
+
+  /**
+   * A connection on which every query finds nothing and every update changes one row,
+   * except that the first {@link #failures} updates of a user's version fail.
+   */
+  private static class Database implements InvocationHandler
+  {
+    final AtomicInteger failures = new AtomicInteger();
+    final AtomicInteger userLocks = new AtomicInteger();
+    final AtomicInteger deletes = new AtomicInteger();
+
+    Connection connection()
+    {
+      return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Connection.class},
+              this);
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args)
+    {
+      if (method.getName().equals("prepareStatement")) {
+        return statement((String) args[0]);
+      }
+      return defaultValue(method.getReturnType());
+    }
+
+    private PreparedStatement statement(final String sql)
+    {
+      return (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(),
+              new Class<?>[]{PreparedStatement.class}, new InvocationHandler()
+              {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws SQLException
+                {
+                  if (method.getName().equals("executeQuery")) {
+                    return emptyResult();
+                  }
+                  if (method.getName().equals("executeUpdate")) {
+                    if (sql.startsWith("UPDATE Users")) {
+                      userLocks.incrementAndGet();
+                      if (failures.getAndDecrement() > 0) {
+                        throw new SQLException("Connection reset", "08S01", 0);
+                      }
+                    } else if (sql.startsWith("DELETE FROM Reservations")) {
+                      deletes.incrementAndGet();
+                    }
+                    return 1;
+                  }
+                  if (method.getName().equals("executeBatch")) {
+                    return new int[0];
+                  }
+                  return defaultValue(method.getReturnType());
+                }
+              });
+    }
+
+    private ResultSet emptyResult()
+    {
+      return (ResultSet) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{ResultSet.class},
+              new InvocationHandler()
+              {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args)
+                {
+                  return defaultValue(method.getReturnType());
+                }
+              });
+    }
+
+    private static Object defaultValue(Class<?> type)
+    {
+      if (type == boolean.class) {
+        return false;
+      }
+      if (type == int.class) {
+        return 0;
+      }
+      if (type == long.class) {
+        return 0L;
+      }
+      return null;
+    }
+  }
+
+  private static HoldExpiry start(Database database) throws SQLException
+  {
+    TransactionRunner transactions = new TransactionRunner(new TransactionRunner.Rollback()
+    {
+      @Override
+      public void rollback()
+      {
+      }
+    }, 0, 1, 1);
+    return new HoldExpiry(database.connection(), null, 0, TICK_MILLIS, 10, transactions);
+  }
+
+  private static Reservation reservation(int id)
+  {
+    FlightTable table = new FlightTable.Builder()
+            .add(1, 1, "AA", "1", "Seattle WA", "Boston MA", 300, 5, 100, 0)
+            .build();
+    return new Reservation(id, new Itinerary(table.flight(0)), 1);
+  }
+
+  private static void waitFor(HoldExpiry expiry, String state) throws InterruptedException
+  {
+    long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+    while (!expiry.toString().contains(state)) {
+      assertTrue(expiry + " never had " + state, System.currentTimeMillis() < deadline);
+      Thread.sleep(TICK_MILLIS);
+    }
+  }
+
+  /** A hold whose cancellation fails stays expired and is canceled on a later tick. */
+  @Test
+  public void retriesFailedCancellation() throws Exception
+  {
+    Database database = new Database();
+    database.failures.set(3);
+    HoldExpiry expiry = start(database);
+    expiry.hold("user1", reservation(7));
+
+    waitFor(expiry, "expired=1,");
+    assertTrue(expiry.isExpired(7));
+    waitFor(expiry, "released=1,");
+    assertEquals(4, database.userLocks.get());
+    assertEquals(1, database.deletes.get());
+    assertTrue(expiry.toString(), expiry.toString().contains("holds=0,"));
+    // counted once, however many times it was tried
+    assertTrue(expiry.toString(), expiry.toString().contains("expired=1,"));
+  }
+
+  /** A hold released while its cancellation keeps failing is not tried again. */
+  @Test
+  public void stopsRetryingReleasedHold() throws Exception
+  {
+    Database database = new Database();
+    database.failures.set(Integer.MAX_VALUE);
+    HoldExpiry expiry = start(database);
+    expiry.hold("user1", reservation(8));
+
+    long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+    while (database.userLocks.get() < 2) {
+      assertTrue(System.currentTimeMillis() < deadline);
+      Thread.sleep(TICK_MILLIS);
+    }
+    assertTrue(expiry.isExpired(8));
+    expiry.release(8);
+    // let the sweeper finish the attempt it may be in
+    Thread.sleep(10 * TICK_MILLIS);
+    int attempts = database.userLocks.get();
+    Thread.sleep(20 * TICK_MILLIS);
+    assertEquals(attempts, database.userLocks.get());
+    assertEquals(0, database.deletes.get());
+    assertTrue(expiry.toString(), expiry.toString().contains("holds=0,"));
+  }
+}
@@ -0,0 +1,102 @@
+import java.io.IOException;
+import java.util.Comparator;
+
+/**
+ * A search result: one or more flights on the same day, in travel order.
+ */
+public class Itinerary
+{
+  /** Orders itineraries by total time, then by the fid of each leg in turn. */
+  static final Comparator<Itinerary> BY_TOTAL_TIME = new Comparator<Itinerary>()
+  {
+    @Override
+    public int compare(Itinerary a, Itinerary b)
+    {
+      int cmp = Integer.compare(a.totalTime(), b.totalTime());
+      for (int i = 0; cmp == 0 && i < Math.min(a.flights.length, b.flights.length); i++) {
+        cmp = Integer.compare(a.flights[i].fid, b.flights[i].fid);
+      }
+      if (cmp == 0) {
+        cmp = Integer.compare(a.flights.length, b.flights.length);
+      }
+      return cmp;
+    }
+  };
+
+  private final QuerySearchOnly.Flight[] flights;
+
+  public Itinerary(QuerySearchOnly.Flight... flights)
+  {
+    this.flights = flights;
+  }
+
+  public int size()
+  {
+    return flights.length;
+  }
+
+  public QuerySearchOnly.Flight flight(int i)
+  {
+    return flights[i];
+  }
+
+  public boolean isDirect()
+  {
+    return flights.length == 1;
+  }
+
+  public int dayOfMonth()
+  {
+    return flights[0].dayOfMonth;
+  }
+
+  public int totalTime()
+  {
+    int total = 0;
+    for (QuerySearchOnly.Flight flight : flights) {
+      total += flight.time;
+    }
+    return total;
+  }
+
+  public int totalPrice()
+  {
+    int total = 0;
+    for (QuerySearchOnly.Flight flight : flights) {
+      total += flight.price;
+    }
+    return total;
+  }
+
+  /**
+   * Appends this itinerary in the search output format:
+   *
+   * Itinerary [itinerary number]: [number of flights] flight(s), [total flight time] minutes\n
+   * [first flight in itinerary]\n
+   * ...
+   * [last flight in itinerary]\n
+   */
+  public void appendTo(Appendable out, int itineraryNumber) throws IOException
+  {
+    out.append("Itinerary ");
+    appendInt(out, itineraryNumber);
+    out.append(": ");
+    appendInt(out, flights.length);
+    out.append(" flight(s), ");
+    appendInt(out, totalTime());
+    out.append(" minutes\n");
+    for (QuerySearchOnly.Flight flight : flights) {
+      out.append(flight.toString()).append('\n');
+    }
+  }
+
+  // StringBuilder formats ints in place, other sinks get a string
+  private static void appendInt(Appendable out, int value) throws IOException
+  {
+    if (out instanceof StringBuilder) {
+      ((StringBuilder) out).append(value);
+    } else {
+      out.append(Integer.toString(value));
+    }
+  }
+}
@@ -0,0 +1,191 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Top-K itinerary search over a {@link FlightIndex}.
+ *
+ * Keeps the ordering contract of the SQL searches: direct flights first, ordered by
+ * {@code actual_time, fid}, then one-stop itineraries for the remaining slots, ordered
+ * by {@code total_time, fid, fid2}. Instead of building every F1 x F2 pair for the day
+ * and sorting it, the one-stop search walks the first legs in duration order and keeps
+ * only the best candidates seen so far in a bounded heap, so it can stop as soon as no
+ * remaining first leg can beat the worst of them.
+ *
+ * The search works on row numbers of the index's {@link FlightTable}; {@code Flight}
+ * objects are only created for the itineraries that are returned.
+ */
+public class ItinerarySearch
+{
+  /** A one-stop candidate, as rows of its two legs. */
+  private static class Candidate
+  {
+    final int first;
+    final int second;
+    final int totalTime;
+    final int fid1;
+    final int fid2;
+
+    Candidate(FlightTable table, int first, int second)
+    {
+      this.first = first;
+      this.second = second;
+      this.totalTime = table.time(first) + table.time(second);
+      this.fid1 = table.fid(first);
+      this.fid2 = table.fid(second);
+    }
+  }
+
+  // total_time, fid, fid2
+  private static final Comparator<Candidate> CANDIDATE_ORDER = new Comparator<Candidate>()
+  {
+    @Override
+    public int compare(Candidate a, Candidate b)
+    {
+      if (a.totalTime != b.totalTime) {
+        return Integer.compare(a.totalTime, b.totalTime);
+      }
+      if (a.fid1 != b.fid1) {
+        return Integer.compare(a.fid1, b.fid1);
+      }
+      return Integer.compare(a.fid2, b.fid2);
+    }
+  };
+
+  private ItinerarySearch()
+  {
+  }
+
+  /**
+   * Finds at most {@code numberOfItineraries} itineraries.
+   *
+   * @throws SQLException if {@code numberOfItineraries} is negative, mirroring what
+   * {@code TOP (?)} does on the database
+   */
+  public static List<Itinerary> search(FlightIndex index, String originCity, String destinationCity,
+                                       boolean directFlight, int dayOfMonth,
+                                       int numberOfItineraries) throws SQLException
+  {
+    return search(index, null, originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries);
+  }
+
+  /**
+   * Same as {@link #search(FlightIndex, String, String, boolean, int, int)}, but reads the
+   * one-stop itineraries from {@code pairs} when it is not null.
+   */
+  public static List<Itinerary> search(FlightIndex index, ConnectionPairs pairs, String originCity,
+                                       String destinationCity, boolean directFlight, int dayOfMonth,
+                                       int numberOfItineraries) throws SQLException
+  {
+    if (numberOfItineraries < 0) {
+      throw new SQLException("Invalid number of itineraries: " + numberOfItineraries);
+    }
+    FlightTable table = index.table();
+    int origin = index.cityKey(originCity);
+    int dest = index.cityKey(destinationCity);
+
+    List<Itinerary> result = new ArrayList<>();
+    for (int row : index.route(origin, dest, dayOfMonth)) {
+      if (result.size() >= numberOfItineraries) {
+        break;
+      }
+      if (index.isCanceled(row)) {
+        continue;
+      }
+      result.add(new Itinerary(table.flight(row)));
+    }
+    if (!directFlight && pairs != null) {
+      result.addAll(pairs.oneStop(origin, dest, dayOfMonth, numberOfItineraries - result.size()));
+    } else if (!directFlight) {
+      result.addAll(oneStop(index, origin, dest, dayOfMonth, numberOfItineraries - result.size()));
+    }
+    return result;
+  }
+
+  /**
+   * The best {@code limit} one-stop itineraries, ordered by total time, fid and fid2.
+   */
+  static List<Itinerary> oneStop(FlightIndex index, int origin, int dest, int dayOfMonth, int limit)
+  {
+    return oneStop(index, origin, new int[]{dest}, dayOfMonth, new int[]{limit}).get(0);
+  }
+
+  /**
+   * One-stop itineraries from {@code origin} to several destinations at once, in a single
+   * pass over the origin's departures: the i-th list holds the best {@code limits[i]}
+   * itineraries to {@code dests[i]}, ordered by total time, fid and fid2.
+   */
+  static List<List<Itinerary>> oneStop(FlightIndex index, int origin, int[] dests, int dayOfMonth, int[] limits)
+  {
+    FlightTable table = index.table();
+    int n = dests.length;
+    int[] shortestLastLeg = new int[n];
+    // max-heaps on the ordering, so the head is the worst itinerary kept so far
+    List<PriorityQueue<Candidate>> best = new ArrayList<>(n);
+    // destinations that no later first leg can improve on
+    boolean[] done = new boolean[n];
+    int remaining = n;
+    for (int i = 0; i < n; i++) {
+      shortestLastLeg[i] = index.shortestArrival(dests[i], dayOfMonth);
+      best.add(new PriorityQueue<>(Math.max(limits[i], 0) + 1, Collections.reverseOrder(CANDIDATE_ORDER)));
+      if (limits[i] <= 0 || shortestLastLeg[i] < 0) {
+        done[i] = true;
+        remaining--;
+      }
+    }
+
+    for (int first : index.departures(origin, dayOfMonth)) {
+      if (remaining == 0) {
+        break;
+      }
+      if (index.isCanceled(first)) {
+        continue;
+      }
+      for (int i = 0; i < n; i++) {
+        if (done[i]) {
+          continue;
+        }
+        PriorityQueue<Candidate> kept = best.get(i);
+        int limit = limits[i];
+        // first legs come in duration order, so once even the shortest possible
+        // connection is too slow, every later first leg is too
+        if (kept.size() == limit && table.time(first) + shortestLastLeg[i] > kept.peek().totalTime) {
+          done[i] = true;
+          remaining--;
+          continue;
+        }
+        for (int second : index.route(index.destKey(first), dests[i], dayOfMonth)) {
+          if (index.isCanceled(second)) {
+            continue;
+          }
+          if (kept.size() == limit) {
+            // second legs are also ordered, so nothing after this one fits either
+            Candidate worst = kept.peek();
+            int totalTime = table.time(first) + table.time(second);
+            if (totalTime > worst.totalTime || (totalTime == worst.totalTime && (table.fid(first) > worst.fid1
+                    || (table.fid(first) == worst.fid1 && table.fid(second) >= worst.fid2)))) {
+              break;
+            }
+            kept.poll();
+          }
+          kept.add(new Candidate(table, first, second));
+        }
+      }
+    }
+
+    List<List<Itinerary>> result = new ArrayList<>(n);
+    for (int i = 0; i < n; i++) {
+      List<Candidate> ordered = new ArrayList<>(best.get(i));
+      Collections.sort(ordered, CANDIDATE_ORDER);
+      List<Itinerary> itineraries = new ArrayList<>(ordered.size());
+      for (Candidate candidate : ordered) {
+        itineraries.add(new Itinerary(table.flight(candidate.first), table.flight(candidate.second)));
+      }
+      result.add(itineraries);
+    }
+    return result;
+  }
+}
@@ -0,0 +1,221 @@
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the searches of the flight index against DIRECT_SEARCH_SQL and INDIRECT_SEARCH_SQL,
+ * evaluated by hand over the rows of a fixture table.
+ */
+public class ItinerarySearchTest
+{
+  // the spellings of a city all compare equal in SQL Server
+  static final String[][] CITIES = {
+          {"Seattle WA", "seattle wa", "Seattle WA  "},
+          {"Boston MA"},
+          {"Chicago IL", "CHICAGO IL"},
+          {"Denver CO"},
+          {"Austin TX", "Austin TX "},
+          {"Miami FL"},
+  };
+  static final int DAYS = 3;
+
+  /**
+   * Random flights between a few cities over a few days. Durations are multiples of ten
+   * minutes so that many itineraries tie on total time, and about one flight in ten is
+   * canceled.
+   */
+  static FlightTable fixture(long seed, int flights)
+  {
+    Random random = new Random(seed);
+    List<Integer> fids = new ArrayList<>();
+    for (int i = 0; i < flights; i++) {
+      fids.add(1000 + i * 7);
+    }
+    Collections.shuffle(fids, random);
+
+    FlightTable.Builder builder = new FlightTable.Builder();
+    for (int i = 0; i < flights; i++) {
+      String[] origin = CITIES[random.nextInt(CITIES.length)];
+      // now and then a flight that comes back where it left
+      String[] dest = random.nextInt(50) == 0 ? origin : CITIES[random.nextInt(CITIES.length)];
+      builder.add(fids.get(i), 1 + random.nextInt(DAYS), random.nextBoolean() ? "AA" : "UA",
+              Integer.toString(random.nextInt(100)), origin[random.nextInt(origin.length)],
+              dest[random.nextInt(dest.length)], 10 * (1 + random.nextInt(8)), random.nextInt(20),
+              100 + random.nextInt(900), random.nextInt(10) == 0 ? 1 : 0);
+    }
+    return builder.build();
+  }
+
+  /** The itineraries in the search output format. */
+  static String render(List<Itinerary> itineraries)
+  {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < itineraries.size(); i++) {
+      Itinerary itinerary = itineraries.get(i);
+      sb.append("Itinerary ").append(i).append(": ").append(itinerary.size()).append(" flight(s), ")
+              .append(itinerary.totalTime()).append(" minutes\n");
+      for (int j = 0; j < itinerary.size(); j++) {
+        sb.append(itinerary.flight(j)).append('\n');
+      }
+    }
+    return sb.toString();
+  }
+
+  // as the default collation compares: case-insensitive, trailing spaces ignored
+  private static boolean sameCity(String a, String b)
+  {
+    int i = a.length();
+    while (i > 0 && a.charAt(i - 1) == ' ') {
+      i--;
+    }
+    int j = b.length();
+    while (j > 0 && b.charAt(j - 1) == ' ') {
+      j--;
+    }
+    return i == j && a.regionMatches(true, 0, b, 0, i);
+  }
+
+  /** What transaction_search returns from the database for the same search. */
+  static List<Itinerary> sqlSearch(FlightTable table, final String originCity, String destinationCity,
+                                   boolean directFlight, int dayOfMonth, int numberOfItineraries)
+  {
+    // DIRECT_SEARCH_SQL: TOP (k), ORDER BY actual_time, fid
+    List<Integer> direct = new ArrayList<>();
+    for (int row = 0; row < table.rows(); row++) {
+      if (table.canceled(row) == 0 && table.dayOfMonth(row) == dayOfMonth
+              && sameCity(table.originCity(row), originCity) && sameCity(table.destCity(row), destinationCity)) {
+        direct.add(row);
+      }
+    }
+    final FlightTable t = table;
+    Collections.sort(direct, new Comparator<Integer>()
+    {
+      @Override
+      public int compare(Integer a, Integer b)
+      {
+        int cmp = Integer.compare(t.time(a), t.time(b));
+        return cmp != 0 ? cmp : Integer.compare(t.fid(a), t.fid(b));
+      }
+    });
+    List<Itinerary> result = new ArrayList<>();
+    for (int i = 0; i < direct.size() && i < numberOfItineraries; i++) {
+      result.add(new Itinerary(table.flight(direct.get(i))));
+    }
+    if (directFlight) {
+      return result;
+    }
+
+    // INDIRECT_SEARCH_SQL: TOP (k - directs), ORDER BY total_time, F1.fid, F2.fid
+    List<int[]> pairs = new ArrayList<>();
+    for (int first = 0; first < table.rows(); first++) {
+      if (table.canceled(first) != 0 || table.dayOfMonth(first) != dayOfMonth
+              || !sameCity(table.originCity(first), originCity)) {
+        continue;
+      }
+      for (int second = 0; second < table.rows(); second++) {
+        if (table.canceled(second) == 0 && table.dayOfMonth(second) == dayOfMonth
+                && sameCity(table.originCity(second), table.destCity(first))
+                && sameCity(table.destCity(second), destinationCity)) {
+          pairs.add(new int[]{first, second});
+        }
+      }
+    }
+    Collections.sort(pairs, new Comparator<int[]>()
+    {
+      @Override
+      public int compare(int[] a, int[] b)
+      {
+        int cmp = Integer.compare(t.time(a[0]) + t.time(a[1]), t.time(b[0]) + t.time(b[1]));
+        if (cmp == 0) {
+          cmp = Integer.compare(t.fid(a[0]), t.fid(b[0]));
+        }
+        return cmp != 0 ? cmp : Integer.compare(t.fid(a[1]), t.fid(b[1]));
+      }
+    });
+    int limit = numberOfItineraries - result.size();
+    for (int i = 0; i < pairs.size() && i < limit; i++) {
+      result.add(new Itinerary(table.flight(pairs.get(i)[0]), table.flight(pairs.get(i)[1])));
+    }
+    return result;
+  }
+
+  /** Every search over the fixture, for every spelling of the cities and a range of K. */
+  @Test
+  public void matchesSql() throws SQLException
+  {
+    FlightTable table = fixture(414, 600);
+    FlightIndex index = FlightIndex.of(table);
+    for (String[] origin : CITIES) {
+      for (String[] dest : CITIES) {
+        for (int day = 0; day <= DAYS + 1; day++) {
+          for (int k : Arrays.asList(0, 1, 2, 3, 5, 8, 13, 40, 1000)) {
+            for (boolean direct : new boolean[]{true, false}) {
+              String o = origin[k % origin.length];
+              String d = dest[day % dest.length];
+              String search = o + " -> " + d + " day " + day + " top " + k + (direct ? " direct" : "");
+              assertEquals(search, render(sqlSearch(table, o, d, direct, day, k)),
+                      render(ItinerarySearch.search(index, o, d, direct, day, k)));
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /** Fewer itineraries than there are direct flights, with the cut between two that tie. */
+  @Test
+  public void cutsTiesByFid() throws SQLException
+  {
+    FlightTable table = new FlightTable.Builder()
+            .add(30, 1, "AA", "1", "Seattle WA", "Boston MA", 300, 5, 100, 0)
+            .add(20, 1, "AA", "2", "Seattle WA", "Boston MA", 250, 5, 100, 0)
+            .add(10, 1, "AA", "3", "Seattle WA", "Boston MA", 300, 5, 100, 0)
+            .add(40, 1, "AA", "4", "Seattle WA", "Denver CO", 100, 5, 100, 0)
+            .add(50, 1, "AA", "5", "Denver CO", "Boston MA", 150, 5, 100, 0)
+            .build();
+    FlightIndex index = FlightIndex.of(table);
+    List<Itinerary> found = ItinerarySearch.search(index, "Seattle WA", "Boston MA", false, 1, 2);
+    assertEquals(2, found.size());
+    assertEquals(20, found.get(0).flight(0).fid);
+    assertEquals(10, found.get(1).flight(0).fid);
+    // the one-stop is as short as the best direct flight but comes after all of them
+    assertEquals(render(sqlSearch(table, "Seattle WA", "Boston MA", false, 1, 4)),
+            render(ItinerarySearch.search(index, "Seattle WA", "Boston MA", false, 1, 4)));
+  }
+
+  /** Canceled flights are neither direct flights nor legs of a connection. */
+  @Test
+  public void skipsCanceledFlights() throws SQLException
+  {
+    FlightTable table = new FlightTable.Builder()
+            .add(1, 1, "AA", "1", "Seattle WA", "Boston MA", 100, 5, 100, 1)
+            .add(2, 1, "AA", "2", "Seattle WA", "Boston MA", 200, 5, 100, 0)
+            .add(3, 1, "AA", "3", "Seattle WA", "Denver CO", 10, 5, 100, 1)
+            .add(4, 1, "AA", "4", "Seattle WA", "Denver CO", 60, 5, 100, 0)
+            .add(5, 1, "AA", "5", "Denver CO", "Boston MA", 10, 5, 100, 0)
+            .add(6, 1, "AA", "6", "Denver CO", "Boston MA", 5, 5, 100, 1)
+            .build();
+    FlightIndex index = FlightIndex.of(table);
+    List<Itinerary> found = ItinerarySearch.search(index, "Seattle WA", "Boston MA", false, 1, 10);
+    assertEquals(render(sqlSearch(table, "Seattle WA", "Boston MA", false, 1, 10)), render(found));
+    assertEquals(2, found.size());
+    assertEquals(2, found.get(0).flight(0).fid);
+    assertEquals(4, found.get(1).flight(0).fid);
+    assertEquals(5, found.get(1).flight(1).fid);
+  }
+
+  /** TOP (?) fails on a negative number of rows, and so does the index. */
+  @Test(expected = SQLException.class)
+  public void rejectsNegativeCount() throws SQLException
+  {
+    ItinerarySearch.search(FlightIndex.of(fixture(1, 10)), "Seattle WA", "Boston MA", false, 1, -1);
+  }
+}
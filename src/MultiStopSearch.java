@@ -0,0 +1,200 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Top-K search for itineraries of up to N flights over a {@link FlightIndex}.
+ *
+ * Runs a best-first (A*) search over partial itineraries of a single day, keyed by the
+ * time flown so far plus a lower bound on the time still needed: zero once at the
+ * destination, otherwise the shortest flight landing there. The bound never overestimates,
+ * so complete itineraries come off the queue in order of total time, and anything whose
+ * bound exceeds the K-th best complete itinerary found so far is dropped.
+ *
+ * Itineraries never visit the same city twice, except to come back to the origin when it is
+ * also the destination. As in the k-shortest-paths algorithm the search is based on, each
+ * state (the current city and the set of cities already visited) is expanded at most K times:
+ * those K can be extended by exactly the same flights as any later itinerary in that state,
+ * and are at least as short, so the later ones can never make the top K.
+ */
+public class MultiStopSearch
+{
+  /** A partial itinerary, as a linked list of rows ending at {@code row}. */
+  private static class Path
+  {
+    final Path previous;
+    final int row;
+    // fid of each leg, to break ties the same way as Itinerary.BY_TOTAL_TIME
+    final int[] fids;
+    final int city;
+    final int flights;
+    final int time;
+    final int bound;
+
+    Path(Path previous, int row, int fid, int city, int flights, int time, int bound)
+    {
+      this.previous = previous;
+      this.row = row;
+      this.fids = previous == null ? new int[1] : Arrays.copyOf(previous.fids, flights);
+      this.fids[flights - 1] = fid;
+      this.city = city;
+      this.flights = flights;
+      this.time = time;
+      this.bound = bound;
+    }
+
+    boolean visits(FlightIndex index, int city)
+    {
+      for (Path p = this; p != null; p = p.previous) {
+        if (p.city == city || index.originKey(p.row) == city) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Where a partial itinerary stands: its current city, then the cities it went through in
+   * ascending order. Itineraries in the same state can be extended by the same flights.
+   */
+  private static class State
+  {
+    final int[] cities;
+
+    State(FlightIndex index, Path path)
+    {
+      cities = new int[path.flights + 1];
+      int i = 1;
+      for (Path p = path; p != null; p = p.previous) {
+        cities[i++] = index.originKey(p.row);
+      }
+      Arrays.sort(cities, 1, cities.length);
+      cities[0] = path.city;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+      return o instanceof State && Arrays.equals(cities, ((State) o).cities);
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return Arrays.hashCode(cities);
+    }
+  }
+
+  private static final Comparator<Path> BY_BOUND = new Comparator<Path>()
+  {
+    @Override
+    public int compare(Path a, Path b)
+    {
+      if (a.bound != b.bound) {
+        return Integer.compare(a.bound, b.bound);
+      }
+      for (int i = 0; i < a.fids.length && i < b.fids.length; i++) {
+        if (a.fids[i] != b.fids[i]) {
+          return Integer.compare(a.fids[i], b.fids[i]);
+        }
+      }
+      return Integer.compare(a.fids.length, b.fids.length);
+    }
+  };
+
+  private MultiStopSearch()
+  {
+  }
+
+  /**
+   * Returns the best {@code numberOfItineraries} itineraries of at most {@code maxFlights}
+   * flights from {@code originCity} to {@code destinationCity} on {@code dayOfMonth}, ordered
+   * by total time and then by the fid of each leg.
+   */
+  public static List<Itinerary> search(FlightIndex index, String originCity, String destinationCity,
+                                       int maxFlights, int dayOfMonth, int numberOfItineraries)
+  {
+    List<Itinerary> result = new ArrayList<>();
+    int origin = index.cityKey(originCity);
+    int dest = index.cityKey(destinationCity);
+    int shortestLastLeg = index.shortestArrival(dest, dayOfMonth);
+    if (origin < 0 || shortestLastLeg < 0 || maxFlights <= 0 || numberOfItineraries <= 0) {
+      return result;
+    }
+    FlightTable table = index.table();
+
+    // max-heap of the best complete itineraries so far, head is the K-th best
+    PriorityQueue<Itinerary> complete =
+            new PriorityQueue<>(numberOfItineraries + 1, Collections.reverseOrder(Itinerary.BY_TOTAL_TIME));
+    PriorityQueue<Path> open = new PriorityQueue<>(64, BY_BOUND);
+    Map<State, Integer> expansions = new HashMap<>();
+
+    for (int row : index.departures(origin, dayOfMonth)) {
+      int city = index.destKey(row);
+      if ((city == origin && city != dest) || index.isCanceled(row)) {
+        continue;
+      }
+      int time = table.time(row);
+      open.add(new Path(null, row, table.fid(row), city, 1, time, time + (city == dest ? 0 : shortestLastLeg)));
+    }
+
+    while (!open.isEmpty()) {
+      Path path = open.poll();
+      if (complete.size() == numberOfItineraries && path.bound > complete.peek().totalTime()) {
+        break;
+      }
+      if (path.city == dest) {
+        complete.add(toItinerary(table, path));
+        if (complete.size() > numberOfItineraries) {
+          complete.poll();
+        }
+        continue;
+      }
+      if (path.flights == maxFlights) {
+        continue;
+      }
+      State state = new State(index, path);
+      Integer count = expansions.get(state);
+      if (count != null && count >= numberOfItineraries) {
+        continue;
+      }
+      expansions.put(state, count == null ? 1 : count + 1);
+
+      int[] next = path.flights + 1 == maxFlights
+              ? index.route(path.city, dest, dayOfMonth)
+              : index.departures(path.city, dayOfMonth);
+      for (int row : next) {
+        int city = index.destKey(row);
+        if (index.isCanceled(row) || (city != dest && path.visits(index, city))) {
+          continue;
+        }
+        int time = path.time + table.time(row);
+        int bound = time + (city == dest ? 0 : shortestLastLeg);
+        if (complete.size() == numberOfItineraries && bound > complete.peek().totalTime()) {
+          // rows are ordered by duration, so the remaining ones are worse still
+          break;
+        }
+        open.add(new Path(path, row, table.fid(row), city, path.flights + 1, time, bound));
+      }
+    }
+
+    result.addAll(complete);
+    Collections.sort(result, Itinerary.BY_TOTAL_TIME);
+    return result;
+  }
+
+  private static Itinerary toItinerary(FlightTable table, Path path)
+  {
+    QuerySearchOnly.Flight[] flights = new QuerySearchOnly.Flight[path.flights];
+    for (Path p = path; p != null; p = p.previous) {
+      flights[p.flights - 1] = table.flight(p.row);
+    }
+    return new Itinerary(flights);
+  }
+}
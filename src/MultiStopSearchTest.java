@@ -0,0 +1,119 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the multi-stop search against every itinerary of the fixture, listed by brute force.
+ */
+public class MultiStopSearchTest
+{
+  /**
+   * Every itinerary of at most {@code maxFlights} non-canceled flights from {@code origin} to
+   * {@code dest} that visits no city twice, other than the origin as destination, best first.
+   */
+  private static List<Itinerary> allItineraries(FlightTable table, String origin, String dest, int maxFlights,
+                                                int dayOfMonth)
+  {
+    List<Itinerary> found = new ArrayList<>();
+    List<String> cities = new ArrayList<>();
+    cities.add(FlightIndex.normalizeCity(origin));
+    extend(table, FlightIndex.normalizeCity(dest), maxFlights, dayOfMonth, cities, new ArrayList<Integer>(), found);
+    Collections.sort(found, Itinerary.BY_TOTAL_TIME);
+    return found;
+  }
+
+  private static void extend(FlightTable table, String dest, int maxFlights, int dayOfMonth, List<String> cities,
+                             List<Integer> rows, List<Itinerary> found)
+  {
+    String city = cities.get(cities.size() - 1);
+    if (city.equals(dest) && !rows.isEmpty()) {
+      QuerySearchOnly.Flight[] flights = new QuerySearchOnly.Flight[rows.size()];
+      for (int i = 0; i < flights.length; i++) {
+        flights[i] = table.flight(rows.get(i));
+      }
+      found.add(new Itinerary(flights));
+      return;
+    }
+    if (rows.size() == maxFlights) {
+      return;
+    }
+    for (int row = 0; row < table.rows(); row++) {
+      String next = FlightIndex.normalizeCity(table.destCity(row));
+      if (table.canceled(row) != 0 || table.dayOfMonth(row) != dayOfMonth
+              || !FlightIndex.normalizeCity(table.originCity(row)).equals(city)
+              || (cities.contains(next) && !next.equals(dest))) {
+        continue;
+      }
+      cities.add(next);
+      rows.add(row);
+      extend(table, dest, maxFlights, dayOfMonth, cities, rows, found);
+      rows.remove(rows.size() - 1);
+      cities.remove(cities.size() - 1);
+    }
+  }
+
+  /**
+   * Every route of the fixture, for a range of flight limits and K: with many itineraries
+   * tied on total time, and K small enough for the pruning, the cap on expansions per state
+   * and the early break on ordered flights to cut the search short.
+   */
+  @Test
+  public void findsBestItineraries()
+  {
+    FlightTable table = ItinerarySearchTest.fixture(8, 300);
+    FlightIndex index = FlightIndex.of(table);
+    for (String[] origin : ItinerarySearchTest.CITIES) {
+      for (String[] dest : ItinerarySearchTest.CITIES) {
+        for (int day = 1; day <= 2; day++) {
+          for (int maxFlights = 1; maxFlights <= 4; maxFlights++) {
+            String o = origin[maxFlights % origin.length];
+            String d = dest[day % dest.length];
+            List<Itinerary> all = allItineraries(table, o, d, maxFlights, day);
+            for (int k : Arrays.asList(1, 2, 3, 7, 50)) {
+              String search = o + " -> " + d + " day " + day + " flights " + maxFlights + " top " + k;
+              assertEquals(search, ItinerarySearchTest.render(all.subList(0, Math.min(k, all.size()))),
+                      ItinerarySearchTest.render(MultiStopSearch.search(index, o, d, maxFlights, day, k)));
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * The second best itinerary goes through a city the best one reached sooner, in the same
+   * state: a cap of one expansion per state must not lose it when K is two.
+   */
+  @Test
+  public void keepsSecondPathThroughState()
+  {
+    FlightTable table = new FlightTable.Builder()
+            .add(1, 1, "AA", "1", "Seattle WA", "Boston MA", 10, 5, 100, 0)
+            .add(2, 1, "AA", "2", "Boston MA", "Denver CO", 10, 5, 100, 0)
+            .add(3, 1, "AA", "3", "Seattle WA", "Boston MA", 20, 5, 100, 0)
+            .add(4, 1, "AA", "4", "Denver CO", "Miami FL", 10, 5, 100, 0)
+            .add(5, 1, "AA", "5", "Boston MA", "Miami FL", 100, 5, 100, 0)
+            .build();
+    List<Itinerary> found = MultiStopSearch.search(FlightIndex.of(table), "Seattle WA", "Miami FL", 3, 1, 2);
+    assertEquals(ItinerarySearchTest.render(allItineraries(table, "Seattle WA", "Miami FL", 3, 1).subList(0, 2)),
+            ItinerarySearchTest.render(found));
+    assertEquals(30, found.get(0).totalTime());
+    assertEquals(40, found.get(1).totalTime());
+  }
+
+  /** No itineraries for a limit below one flight, for K of zero or for an unknown city. */
+  @Test
+  public void findsNothing()
+  {
+    FlightIndex index = FlightIndex.of(ItinerarySearchTest.fixture(8, 300));
+    assertEquals(0, MultiStopSearch.search(index, "Seattle WA", "Boston MA", 0, 1, 5).size());
+    assertEquals(0, MultiStopSearch.search(index, "Seattle WA", "Boston MA", 3, 1, 0).size());
+    assertEquals(0, MultiStopSearch.search(index, "Seattle WA", "Nowhere", 3, 1, 5).size());
+    assertEquals(0, MultiStopSearch.search(index, "Nowhere", "Boston MA", 3, 1, 5).size());
+  }
+}
@@ -1,16 +1,35 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.sql.*;
-import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
 
 public class Query extends QuerySearchOnly {
 
-	// Logged In User
-	private String username; // customer username is unique
+	// The logged in user and their last search, booking and payment are kept in the
+	// session the commands run for, see QuerySearchOnly#attach(Session)
 
 	// Reservation ID
-	private int res_id_pay;
-	private int curr_res_id = 1;
+	private ReservationIdAllocator reservationIds;
 
-	private ArrayList<ArrayList<Integer>> itineraries;
+	// when set, book, pay and cancel are journaled instead of run as transactions
+	private BookingJournal journal;
+
+	// when set, unpaid reservations are canceled once their hold expires
+	private HoldExpiry holds;
+
+	// signs the tokens handed out at login, see transaction_resume()
+	private SessionTokens sessionTokens;
+
+	// recently verified logins, disabled when `flightservice.credential_cache_size` is 0
+	private CredentialCache credentials;
+
+	// rows fetched per round trip when listing a page of reservations
+	private static final int MAX_FETCH_SIZE = 256;
+
+	// runs book, pay and cancel, retrying them when the database picks them as deadlock victims
+	private TransactionRunner transactions;
 
 	private static final String CLEAR_USERS = "DELETE FROM Users";
 	private PreparedStatement clearUsersStatement;
@@ -18,41 +37,56 @@ public class Query extends QuerySearchOnly {
 	private static final String CLEAR_RESERVATIONS = "DELETE FROM Reservations";
 	private PreparedStatement clearReservationsStatement;
 
-	private static final String CLEAR_ITINERARIES = "DELETE FROM Itineraries";
-	private PreparedStatement clearItinerariesStatement;
-
-	private static final String CREATE_CUSTOMER = "INSERT INTO Users VALUES (?, ?, ?)";
+	private static final String CREATE_CUSTOMER = "INSERT INTO Users (username, password, balance, version) VALUES (?, ?, ?, 0)";
 	private PreparedStatement createCustomerStatement;
 
-	private static final String LOGIN = "SELECT COUNT(*) as count FROM Users WHERE username = ? AND password = ?";
+	private static final String LOGIN = "SELECT balance, version FROM Users WHERE username = ? AND password = ?";
 	private PreparedStatement loginStatement;
 
-	private static final String GET_ITINERARY = "SELECT * FROM Itineraries WHERE itinerary_id = ?";
-	private PreparedStatement getItineraryStatement;
-
-	private static final String UPDATE_RESERVATION = "INSERT INTO Reservations VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+	private static final String UPDATE_RESERVATION = "INSERT INTO Reservations (reservation_id, username, paid, fid1, fid2, "
+			+ "day, total_price, seats) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
 	private PreparedStatement updateReservationStatement;
 
-	private static final String COUNT_RESERVATION = "SELECT COUNT(*) AS count FROM Reservations";
-	private PreparedStatement countReservationStatement;
+	// reservations are looked up through the (username, reservation_id) index
+	private static final String LIST_RESERVATIONS = "SELECT " + Reservation.COLUMNS + " FROM " + Reservation.TABLES
+			+ " WHERE R.username = ? ORDER BY R.reservation_id";
+	private PreparedStatement listReservationsStatement;
 
-	private static final String DAY_RESERVATION = "SELECT day AS rday FROM Reservations";
-	private PreparedStatement dayReservationStatement;
+	// one page of a user's reservations, resuming after the last reservation ID listed
+	private static final String LIST_RESERVATIONS_PAGE = "SELECT TOP (?) " + Reservation.COLUMNS + " FROM "
+			+ Reservation.TABLES + " WHERE R.username = ? AND R.reservation_id > ? ORDER BY R.reservation_id";
+	private PreparedStatement listReservationsPageStatement;
 
-	private static final String GET_RESERVATION = "SELECT * FROM Reservations";
-	private PreparedStatement getReservationStatement;
-
-	private static final String UPDATE_PAID_RESERVATION = "UPDATE Reservations SET paid = 1 WHERE reservation_id = ?";
+	private static final String UPDATE_PAID_RESERVATION = "UPDATE Reservations SET paid = 1 WHERE reservation_id = ? AND username = ?";
 	private PreparedStatement updatePaidReservationStatement;
 
-	private static final String GET_LAST_RESERVATION = "SELECT TOP 1 * FROM Reservations ORDER BY reservation_id DESC";
-	private PreparedStatement getLastReservationStatement;
-
-	private static final String CANCEL_RESERVATION = "DELETE FROM Reservations WHERE reservation_id = ?";
+	private static final String CANCEL_RESERVATION = "DELETE FROM Reservations WHERE reservation_id = ? AND username = ?";
 	private PreparedStatement cancelReservationStatement;
 
-	private static final String GET_USER_BALANCE = "SELECT balance FROM Users WHERE username = ?";
-	private PreparedStatement getUserBalanceStatement;
+	// seat inventory: takes seats on a flight if enough of its capacity is not booked yet
+	private static final String RESERVE_SEAT = "MERGE BookedSeats WITH (HOLDLOCK) AS s "
+			+ "USING (SELECT fid, capacity, ? AS seats FROM Flights WHERE fid = ?) AS f ON s.fid = f.fid "
+			+ "WHEN MATCHED AND s.booked + f.seats <= f.capacity THEN UPDATE SET booked = s.booked + f.seats "
+			+ "WHEN NOT MATCHED AND f.seats <= f.capacity THEN INSERT (fid, booked) VALUES (f.fid, f.seats);";
+	private PreparedStatement reserveSeatStatement;
+
+	private static final String RELEASE_SEAT = "UPDATE BookedSeats SET booked = booked - ? WHERE fid = ? AND booked >= ?";
+	private PreparedStatement releaseSeatStatement;
+
+	private static final String CLEAR_BOOKED_SEATS = "DELETE FROM BookedSeats";
+	private PreparedStatement clearBookedSeatsStatement;
+
+	// expiries recorded by HoldExpiry, keyed by reservation ID, which start again from 1
+	private static final String CLEAR_EXPIRED_HOLDS = "DELETE FROM ExpiredHolds";
+	private PreparedStatement clearExpiredHoldsStatement;
+
+	private static final String GET_USER_VERSION = "SELECT balance, version FROM Users WHERE username = ?";
+	private PreparedStatement getUserVersionStatement;
+
+	// every write to a user's balance or reservations goes through this first, see lockUser()
+	private static final String LOCK_USER = "UPDATE Users SET version = version + 1 "
+			+ "OUTPUT deleted.balance, deleted.version WHERE username = ?";
+	private PreparedStatement lockUserStatement;
 
 	private static final String UPDATE_USER_BALANCE = "UPDATE Users SET balance = ? WHERE username = ?";
 	private PreparedStatement updateUserBalanceStatement;
@@ -64,6 +98,10 @@ public class Query extends QuerySearchOnly {
 	private static final String COMMIT_SQL = "COMMIT TRANSACTION";
 	protected PreparedStatement commitTransactionStatement;
 
+	// bookings only lock the seat rows they update, see reserveSeats()
+	private static final String BEGIN_BOOKING_SQL = "SET TRANSACTION ISOLATION LEVEL READ COMMITTED; BEGIN TRANSACTION;";
+	protected PreparedStatement beginBookingStatement;
+
 	private static final String ROLLBACK_SQL = "ROLLBACK TRANSACTION";
 	protected PreparedStatement rollbackTransactionStatement;
 
@@ -82,9 +120,32 @@ public class Query extends QuerySearchOnly {
 	{
 		// your code here
 		try {
-			clearUsersStatement.executeUpdate();
-			clearReservationsStatement.executeUpdate();
-			clearItinerariesStatement.executeUpdate();
+			if (journal != null) {
+				// nothing journaled before may be applied to the cleared tables
+				journal.awaitApplied();
+			}
+			borrowConnection();
+			try {
+				// reservations reference their user
+				clearReservationsStatement.executeUpdate();
+				clearUsersStatement.executeUpdate();
+				clearBookedSeatsStatement.executeUpdate();
+				clearExpiredHoldsStatement.executeUpdate();
+			} finally {
+				releaseConnection();
+			}
+			reservationIds.reset();
+			if (journal != null) {
+				journal.clear();
+			}
+			if (holds != null) {
+				holds.clear();
+			}
+			if (credentials != null) {
+				credentials.clear();
+			}
+			sessionTokens.revokeAll();
+			session.user = null;
 		} catch (SQLException error) {
 		}
 	}
@@ -96,39 +157,88 @@ public class Query extends QuerySearchOnly {
 	 * Note that the parameters (with ?) are still not filled in
 	 */
 	@Override
-	public void prepareStatements() throws Exception
+	protected void bindStatements() throws SQLException
 	{
-		super.prepareStatements();
-		beginTransactionStatement = conn.prepareStatement(BEGIN_TRANSACTION_SQL);
-		commitTransactionStatement = conn.prepareStatement(COMMIT_SQL);
-		rollbackTransactionStatement = conn.prepareStatement(ROLLBACK_SQL);
+		super.bindStatements();
+		beginTransactionStatement = prepare(BEGIN_TRANSACTION_SQL);
+		commitTransactionStatement = prepare(COMMIT_SQL);
+		rollbackTransactionStatement = prepare(ROLLBACK_SQL);
+		beginBookingStatement = prepare(BEGIN_BOOKING_SQL);
 
 		/* add here more prepare statements for all the other queries you need */
 		/* . . . . . . */
-		clearUsersStatement = conn.prepareStatement(CLEAR_USERS);
-		clearReservationsStatement = conn.prepareStatement(CLEAR_RESERVATIONS);
-		clearItinerariesStatement = conn.prepareStatement(CLEAR_ITINERARIES);
+		clearUsersStatement = prepare(CLEAR_USERS);
+		clearReservationsStatement = prepare(CLEAR_RESERVATIONS);
 
-		createCustomerStatement = conn.prepareStatement(CREATE_CUSTOMER);
-		loginStatement = conn.prepareStatement(LOGIN);
-		getItineraryStatement = conn.prepareStatement(GET_ITINERARY);
-		updateReservationStatement = conn.prepareStatement(UPDATE_RESERVATION);
-		countReservationStatement = conn.prepareStatement(COUNT_RESERVATION);
-		dayReservationStatement = conn.prepareStatement(DAY_RESERVATION);
-		getReservationStatement = conn.prepareStatement(GET_RESERVATION);
-		updatePaidReservationStatement = conn.prepareStatement(UPDATE_PAID_RESERVATION);
-		getUserBalanceStatement = conn.prepareStatement(GET_USER_BALANCE);
-		updateUserBalanceStatement = conn.prepareStatement(UPDATE_USER_BALANCE);
-		getLastReservationStatement = conn.prepareStatement(GET_LAST_RESERVATION);
-		cancelReservationStatement = conn.prepareStatement(CANCEL_RESERVATION);
+		createCustomerStatement = prepare(CREATE_CUSTOMER);
+		loginStatement = prepare(LOGIN);
+		updateReservationStatement = prepare(UPDATE_RESERVATION);
+		listReservationsStatement = prepare(LIST_RESERVATIONS);
+		listReservationsPageStatement = prepare(LIST_RESERVATIONS_PAGE);
+		updatePaidReservationStatement = prepare(UPDATE_PAID_RESERVATION);
+		getUserVersionStatement = prepare(GET_USER_VERSION);
+		lockUserStatement = prepare(LOCK_USER);
+		updateUserBalanceStatement = prepare(UPDATE_USER_BALANCE);
+		cancelReservationStatement = prepare(CANCEL_RESERVATION);
+		reserveSeatStatement = prepare(RESERVE_SEAT);
+		releaseSeatStatement = prepare(RELEASE_SEAT);
+		clearBookedSeatsStatement = prepare(CLEAR_BOOKED_SEATS);
+		clearExpiredHoldsStatement = prepare(CLEAR_EXPIRED_HOLDS);
+	}
 
-		clearTables();
+	@Override
+	public void prepareStatements() throws Exception
+	{
+		prepareStatements(true);
+	}
+
+	/**
+	 * Same as {@link #prepareStatements()}, but only clears the tables if {@code clear} is
+	 * set, for queries opened while others are already serving sessions.
+	 */
+	public void prepareStatements(boolean clear) throws Exception
+	{
+		super.prepareStatements();
+		transactions = new TransactionRunner(new TransactionRunner.Rollback() {
+			@Override
+			public void rollback() throws SQLException {
+				rollbackTransaction();
+			}
+		}, Integer.parseInt(configProps.getProperty("flightservice.transaction_retries", "5").trim()),
+				Long.parseLong(configProps.getProperty("flightservice.transaction_backoff_millis", "10").trim()),
+				Long.parseLong(configProps.getProperty("flightservice.transaction_max_backoff_millis", "500").trim()));
+
+		if (!configProps.getProperty("flightservice.journal", "").trim().isEmpty()) {
+			journal = BookingJournal.shared(configProps);
+		}
+
+		reservationIds = ReservationIdAllocator.shared(configProps,
+				Integer.parseInt(configProps.getProperty("flightservice.reservation_id_block", "20").trim()));
+
+		sessionTokens = SessionTokens.shared(configProps);
+		int credentialCacheSize = Integer.parseInt(
+				configProps.getProperty("flightservice.credential_cache_size", "0").trim());
+		if (credentialCacheSize > 0) {
+			credentials = CredentialCache.shared(credentialCacheSize);
+		}
+
+		if (Long.parseLong(configProps.getProperty("flightservice.hold_ttl_minutes", "0").trim()) > 0) {
+			holds = HoldExpiry.shared(configProps, journal);
+		}
+
+		if (clear) {
+			clearTables();
+		}
 	}
 
 
 	/**
 	 * Takes a user's username and password and attempts to log the user in.
 	 *
+	 * A login that matches one recently verified (see CredentialCache) is accepted without
+	 * asking the database. Either way the session gets a signed token, see
+	 * {@link #sessionToken()}, to log in again later without a password.
+	 *
 	 * @return If someone has already logged in, then return "User already logged in\n"
 	 * For all other errors, return "Login failed\n".
 	 *
@@ -136,26 +246,114 @@ public class Query extends QuerySearchOnly {
 	 */
 	public String transaction_login(String username, String password)
 	{
+		if (session.username != null) {
+			return "User already logged in\n";
+		}
 		try {
-			if (this.username != null) {
-				return "User already logged in\n";
-			}
-			loginStatement.clearParameters();
-			loginStatement.setString(1, username);
-			loginStatement.setString(2, password);
-			ResultSet results = loginStatement.executeQuery();
-			results.next();
-			int count = results.getInt("count");
-			results.close();
-			if (count == 1) {
-				this.username = username;
-				return "Logged in as " + username + "\n";
+			// a recent login is accepted without a connection, unless the user's cache has to be loaded
+			if (credentials != null && credentials.matches(username, password)) {
+				return loggedIn(username, journal == null ? null : sharedUser(username));
+			}
+			borrowConnection();
+			try {
+				loginStatement.clearParameters();
+				loginStatement.setString(1, username);
+				loginStatement.setString(2, password);
+				ResultSet results = loginStatement.executeQuery();
+				if (!results.next()) {
+					results.close();
+					return "Login failed\n";
+				}
+				int balance = results.getInt("balance");
+				int version = results.getInt("version");
+				results.close();
+				if (credentials != null) {
+					credentials.put(username, password);
+				}
+				// with the journal, the tables may lag behind the cache of the user's other sessions
+				UserCache shared = journal == null ? null : journal.user(username);
+				if (shared == null) {
+					shared = UserCache.load(listReservationsStatement, username, version, balance);
+					if (journal != null) {
+						shared = journal.addUser(shared);
+					}
+				}
+				return loggedIn(username, shared);
+			} finally {
+				releaseConnection();
 			}
 		} catch (SQLException error) {
 			error.printStackTrace();
 			return "Login failed\n";
 		}
-		return "Login failed\n";
+	}
+
+	/**
+	 * Logs in again with a token from {@link #sessionToken()}, which is checked without the
+	 * database. Tokens expire after `flightservice.session_token_ttl_minutes` and when the
+	 * tables are cleared.
+	 *
+	 * @return If someone has already logged in, then return "User already logged in\n"
+	 * If the token is not valid, or for any other error, return "Login failed\n".
+	 *
+	 * Otherwise, return "Logged in as [username]\n".
+	 */
+	public String transaction_resume(String token)
+	{
+		if (session.username != null) {
+			return "User already logged in\n";
+		}
+		String username = sessionTokens.verify(token);
+		if (username == null) {
+			return "Login failed\n";
+		}
+		try {
+			return loggedIn(username, journal == null ? null : sharedUser(username));
+		} catch (SQLException error) {
+			error.printStackTrace();
+			return "Login failed\n";
+		}
+	}
+
+	/** The signed token of the logged in user, or null if nobody is logged in. */
+	public String sessionToken()
+	{
+		return session.username == null ? null : session.loginToken;
+	}
+
+	// without the journal, a null cache is loaded by the first command that needs it, see loadUserIfChanged()
+	private String loggedIn(String username, UserCache user)
+	{
+		session.user = user;
+		session.username = username;
+		session.loginToken = sessionTokens.issue(username);
+		return "Logged in as " + username + "\n";
+	}
+
+	// the cache of username shared with the user's other sessions, loaded if there is none yet;
+	// only then is a connection borrowed
+	private UserCache sharedUser(String username) throws SQLException
+	{
+		UserCache shared = journal.user(username);
+		if (shared != null) {
+			return shared;
+		}
+		borrowConnection();
+		try {
+			getUserVersionStatement.clearParameters();
+			getUserVersionStatement.setString(1, username);
+			ResultSet results = getUserVersionStatement.executeQuery();
+			if (!results.next()) {
+				results.close();
+				throw new SQLException("No user " + username);
+			}
+			int balance = results.getInt("balance");
+			int version = results.getInt("version");
+			results.close();
+			return journal.addUser(UserCache.load(listReservationsStatement, username, version, balance));
+		} finally {
+			releaseConnection();
+		}
 	}
 
 	/**
@@ -170,12 +368,20 @@ public class Query extends QuerySearchOnly {
 	public String transaction_createCustomer (String username, String password, int initAmount)
 	{
 		try {
-			createCustomerStatement.clearParameters();
-			createCustomerStatement.setString(1, username);
-			createCustomerStatement.setString(2, password);
-			createCustomerStatement.setInt(3, initAmount);
-			createCustomerStatement.executeUpdate();
-			return "Created user " + username + "\n";
+			borrowConnection();
+			try {
+				createCustomerStatement.clearParameters();
+				createCustomerStatement.setString(1, username);
+				createCustomerStatement.setString(2, password);
+				createCustomerStatement.setInt(3, initAmount);
+				createCustomerStatement.executeUpdate();
+				if (credentials != null) {
+					credentials.invalidate(username);
+				}
+				return "Created user " + username + "\n";
+			} finally {
+				releaseConnection();
+			}
 		} catch (SQLException error) {
 			error.printStackTrace();
 			return "Failed to create user\n";
@@ -198,115 +404,202 @@ public class Query extends QuerySearchOnly {
 	 * successful reservation is made by any user in the system.
 	 */
 	public String transaction_book(int itineraryId) {
-		if (username == null) {
+		return transaction_book_group(new int[]{itineraryId}, 1);
+	}
+
+	/**
+	 * Books several itineraries of the current session's last search, for one or more
+	 * passengers each, in a single transaction: either all of them are booked or none is.
+	 * Each itinerary becomes one reservation of {@code passengers} seats, and the reservations
+	 * get increasing IDs in the order the itineraries are given.
+	 *
+	 * @return If the user is not logged in, then return "Cannot book reservations, not logged in\n".
+	 * If any itinerary ID is invalid, then return "No such itinerary {@code itineraryId}\n".
+	 * If two itineraries are on the same day, or the user already has a reservation on the day of one of them,
+	 * then return "You cannot book two flights in the same day\n".
+	 * For all other errors, including too few seats left on any flight, return "Booking failed\n".
+	 *
+	 * If booking succeeded, return "Booked flight(s), reservation ID: [reservationId]\n" for each itinerary.
+	 */
+	public String transaction_book_group(int[] itineraryIds, final int passengers) {
+		if (session.username == null) {
 			return "Cannot book reservations, not logged in\n";
 		}
+		if (itineraryIds.length == 0 || passengers < 1) {
+			return "Booking failed\n";
+		}
 
-		try {
-			beginTransaction();
-			getItineraryStatement.clearParameters();
-			getItineraryStatement.setInt(1, itineraryId);
-			ResultSet rs1 = getItineraryStatement.executeQuery();
-			rs1.next();
-			int fid1 = rs1.getInt("fid1");
-			int fid2 = rs1.getInt("fid2");
-			int day = rs1.getInt("day");
-			int price = rs1.getInt("total_price");
-			int capacity1 = rs1.getInt("capacity1");
-			int capacity2 = rs1.getInt("capacity2");
-			String carrier1 = rs1.getString("carrier1");
-			String carrier2 = rs1.getString("carrier2");
-			String flightNum1 = rs1.getString("flight_num1");
-			String flightNum2 = rs1.getString("flight_num2");
-			String origin_city1 = rs1.getString("origin_city1");
-			String origin_city2 = rs1.getString("origin_city2");
-			String dest_city1 = rs1.getString("dest_city1");
-			String dest_city2 = rs1.getString("dest_city2");
-			int duration1 = rs1.getInt("duration1");
-			int duration2 = rs1.getInt("duration2");
-			int price2 = rs1.getInt("price2");
-			int direct = rs1.getInt("direct");
-			dayReservationStatement.clearParameters();
-			ResultSet day_rs = dayReservationStatement.executeQuery();
-			while (day_rs.next()) {
-				if (day == day_rs.getInt("rday")) {
-					day_rs.close();
-					rollbackTransaction();
-					return "You cannot book two flights in the same day\n";
-				}
+		final Itinerary[] itineraries = new Itinerary[itineraryIds.length];
+		for (int i = 0; i < itineraryIds.length; i++) {
+			itineraries[i] = getItinerary(itineraryIds[i]);
+			if (itineraries[i] == null) {
+				return "No such itinerary " + itineraryIds[i] + "\n";
 			}
-			rs1.close();
-			day_rs.close();
-			getItineraryStatement.clearParameters();
-			getItineraryStatement.setInt(1, itineraryId);
-			ResultSet cap = getItineraryStatement.executeQuery();
-			while (cap.next()) {
-				if (itineraryId == cap.getInt("itinerary_id")){
-					if (cap.getInt("capacity1") == 0 || cap.getInt("capacity2") == 0) {
-						cap.close();
-						rollbackTransaction();
-						return "Flight(s) has no capacity\n";
-					}
-				}
+			if (itineraries[i].size() > 2) {
+				// RESERVATIONS only has room for two flights
+				return "Booking failed\n";
 			}
+		}
+
+		if (journal != null) {
+			return bookJournaled(itineraries, passengers);
+		}
+		return runTransaction(new TransactionRunner.Transaction() {
+			// claimed by the first attempt that gets that far, and kept if the booking is retried
+			private int[] ids;
 
-			getItineraryStatement.clearParameters();
-			getItineraryStatement.setInt(1, itineraryId);
-			ResultSet rs = getItineraryStatement.executeQuery();
-			while (rs.next()) {
-				if (itineraryId == rs.getInt("itinerary_id")) {
-					countReservationStatement.clearParameters();
-					ResultSet count = countReservationStatement.executeQuery();
-					count.next();
-					int res_id = count.getInt("count");
-					if (res_id == 0) {
-						curr_res_id = 1;
-					} else {
-						ResultSet last = getLastReservationStatement.executeQuery();
-						last.next();
-						curr_res_id = last.getInt("reservation_id");
-						curr_res_id++;
-						last.close();
+			@Override
+			public String run() throws SQLException, TransactionRunner.Abort {
+				beginBooking();
+				lockUser();
+				if (hasSameDay(itineraries)) {
+					throw new TransactionRunner.Abort("You cannot book two flights in the same day\n");
+				}
+				TreeMap<Integer, Integer> seats = seatsNeeded(itineraries, passengers);
+				if (seats == null) {
+					throw new TransactionRunner.Abort("Flight(s) has no capacity\n");
+				}
+				// in fid order, so that bookings sharing flights cannot deadlock
+				for (Map.Entry<Integer, Integer> e : seats.entrySet()) {
+					if (!reserveSeats(e.getKey(), e.getValue())) {
+						throw new TransactionRunner.Abort("Booking failed\n");
 					}
-					updateReservationStatement.clearParameters();
-					updateReservationStatement.setInt(1, curr_res_id);
-					updateReservationStatement.setInt(2, 0);
-					updateReservationStatement.setInt(3, fid1);
-					updateReservationStatement.setInt(4, fid2);
-					updateReservationStatement.setInt(5, day);
-					updateReservationStatement.setInt(6, price);
-					updateReservationStatement.setInt(7, capacity1);
-					updateReservationStatement.setInt(8, capacity2);
-					updateReservationStatement.setString(9, carrier1);
-					updateReservationStatement.setString(10, carrier2);
-					updateReservationStatement.setString(11, flightNum1);
-					updateReservationStatement.setString(12, flightNum2);
-					updateReservationStatement.setString(13, origin_city1);
-					updateReservationStatement.setString(14, origin_city2);
-					updateReservationStatement.setString(15, dest_city1);
-					updateReservationStatement.setString(16, dest_city2);
-					updateReservationStatement.setInt(17, duration1);
-					updateReservationStatement.setInt(18, duration2);
-					updateReservationStatement.setInt(19, price2);
-					updateReservationStatement.setInt(20, direct);
-					updateReservationStatement.executeUpdate();
-
-					count.close();
+				}
 
-					rs.close();
-					commitTransaction();
-					return "Booked flight(s), reservation ID: " + curr_res_id + "\n";
-				} else {
-					rs.close();
-					rollbackTransaction();
-					return "No such itinerary " + itineraryId + "\n";
+				if (ids == null) {
+					ids = reservationIds.next(itineraries.length);
 				}
+				Reservation[] reservations = new Reservation[itineraries.length];
+				updateReservationStatement.clearBatch();
+				for (int i = 0; i < itineraries.length; i++) {
+					reservations[i] = new Reservation(ids[i], itineraries[i], passengers);
+					addReservation(reservations[i]);
+				}
+				updateReservationStatement.executeBatch();
+
+				commitTransaction();
+				session.user.booked(reservations);
+				StringBuilder sb = new StringBuilder();
+				for (Reservation reservation : reservations) {
+					if (holds != null) {
+						holds.hold(session.username, reservation);
+					}
+					sb.append("Booked flight(s), reservation ID: ").append(reservation.id).append("\n");
+				}
+				session.lastReservationId = reservations[reservations.length - 1].id;
+				return sb.toString();
 			}
+		}, "Booking failed\n");
+	}
+
+	// runs the transaction on a connection borrowed for it, see QuerySearchOnly#borrowConnection()
+	private String runTransaction(TransactionRunner.Transaction transaction, String failure)
+	{
+		try {
+			borrowConnection();
 		} catch (SQLException error) {
 			error.printStackTrace();
-			return "Booking failed\n";
+			return failure;
+		}
+		try {
+			return transactions.run(transaction, failure);
+		} finally {
+			releaseConnection();
 		}
-		return "Booking failed\n";
+	}
+
+	// books in memory and journals the reservations, see BookingJournal
+	private String bookJournaled(Itinerary[] itineraries, int passengers)
+	{
+		synchronized (session.user) {
+			if (hasSameDay(itineraries)) {
+				return "You cannot book two flights in the same day\n";
+			}
+			TreeMap<Integer, Integer> seats = seatsNeeded(itineraries, passengers);
+			if (seats == null) {
+				return "Flight(s) has no capacity\n";
+			}
+			Map<Integer, Integer> capacities = new HashMap<>();
+			for (Itinerary itinerary : itineraries) {
+				for (int i = 0; i < itinerary.size(); i++) {
+					capacities.put(itinerary.flight(i).fid, itinerary.flight(i).capacity);
+				}
+			}
+			if (!journal.reserveSeats(seats, capacities)) {
+				return "Booking failed\n";
+			}
+
+			Reservation[] reservations = new Reservation[itineraries.length];
+			try {
+				int[] ids = reservationIds.next(itineraries.length);
+				for (int i = 0; i < itineraries.length; i++) {
+					reservations[i] = new Reservation(ids[i], itineraries[i], passengers);
+				}
+				journal.book(session.username, reservations);
+			} catch (SQLException | IOException error) {
+				error.printStackTrace();
+				for (Map.Entry<Integer, Integer> e : seats.entrySet()) {
+					journal.releaseSeats(e.getKey(), e.getValue());
+				}
+				return "Booking failed\n";
+			}
+
+			session.user.booked(reservations);
+			StringBuilder sb = new StringBuilder();
+			for (Reservation reservation : reservations) {
+				if (holds != null) {
+					holds.hold(session.username, reservation);
+				}
+				sb.append("Booked flight(s), reservation ID: ").append(reservation.id).append("\n");
+			}
+			session.lastReservationId = reservations[reservations.length - 1].id;
+			return sb.toString();
+		}
+	}
+
+	// whether two of the itineraries, or one of them and a reservation of the user, are on the same day
+	private boolean hasSameDay(Itinerary[] itineraries)
+	{
+		int days = 0;
+		for (Itinerary itinerary : itineraries) {
+			int day = 1 << (itinerary.dayOfMonth() - 1);
+			if ((days & day) != 0 || session.user.hasReservationOn(itinerary.dayOfMonth())) {
+				return true;
+			}
+			days |= day;
+		}
+		return false;
+	}
+
+	// seats needed on each flight by fid, or null if a flight has no capacity at all
+	private static TreeMap<Integer, Integer> seatsNeeded(Itinerary[] itineraries, int passengers)
+	{
+		TreeMap<Integer, Integer> seats = new TreeMap<>();
+		for (Itinerary itinerary : itineraries) {
+			for (int i = 0; i < itinerary.size(); i++) {
+				if (itinerary.flight(i).capacity == 0) {
+					return null;
+				}
+				Integer booked = seats.get(itinerary.flight(i).fid);
+				seats.put(itinerary.flight(i).fid, (booked == null ? 0 : booked) + passengers);
+			}
+		}
+		return seats;
+	}
+
+	// adds the reservation to the batch of updateReservationStatement
+	private void addReservation(Reservation reservation) throws SQLException
+	{
+		updateReservationStatement.clearParameters();
+		updateReservationStatement.setInt(1, reservation.id);
+		updateReservationStatement.setString(2, session.username);
+		updateReservationStatement.setInt(3, reservation.paid ? 1 : 0);
+		updateReservationStatement.setInt(4, reservation.fid1);
+		updateReservationStatement.setInt(5, reservation.fid2);
+		updateReservationStatement.setInt(6, reservation.dayOfMonth);
+		updateReservationStatement.setInt(7, reservation.totalPrice);
+		updateReservationStatement.setInt(8, reservation.seats);
+		updateReservationStatement.addBatch();
 	}
 
 	/**
@@ -315,7 +608,8 @@ public class Query extends QuerySearchOnly {
 	 * @param reservationId the reservation to pay for.
 	 *
 	 * @return If no user has logged in, then return "Cannot pay, not logged in\n"
-	 * If the reservation is not found / not under the logged in user's name, then return
+	 * If the reservation is not found / not under the logged in user's name, or its hold
+	 * expired (see HoldExpiry), then return
 	 * "Cannot find unpaid reservation [reservationId] under user: [username]\n"
 	 * If the user does not have enough money in their account, then return
 	 * "User has only [balance] in account but itinerary costs [cost]\n"
@@ -324,57 +618,75 @@ public class Query extends QuerySearchOnly {
 	 * If successful, return "Paid reservation: [reservationId] remaining balance: [balance]\n"
 	 * where [balance] is the remaining balance in the user's account.
 	 */
-	public String transaction_pay (int reservationId)
+	public String transaction_pay (final int reservationId)
 	{
-		if (username == null) {
+		if (session.username == null) {
 			return "Cannot pay, not logged in\n";
 		}
-		try {
-			beginTransaction();
-			getReservationStatement.clearParameters();
-			ResultSet reservation = getReservationStatement.executeQuery();
-			while (reservation.next()) {
-				int res_id = reservation.getInt("reservation_id");
-			    if (res_id == reservationId && reservation.getInt("paid") == 1){
-					reservation.close();
-					rollbackTransaction();
-					return "Cannot find unpaid reservation " + reservationId + " under user: " + username + "\n";
-				} else if (res_id == reservationId) {
-					res_id_pay = res_id;
-					int payment = reservation.getInt("total_price");
-					getUserBalanceStatement.clearParameters();
-					getUserBalanceStatement.setString(1, username);
-					ResultSet user = getUserBalanceStatement.executeQuery();
-					user.next();
-					int balance = user.getInt("balance");
-					if (balance < payment) {
-						reservation.close();
-						rollbackTransaction();
-						return "User has only " + balance + " in account but itinerary costs " + payment  +"\n";
-					} else {
-						int new_balance = balance - payment;
-						updateUserBalanceStatement.clearParameters();
-						updateUserBalanceStatement.setInt(1, new_balance);
-						updateUserBalanceStatement.setString(2, username);
-						updateUserBalanceStatement.executeUpdate();
-
-						updatePaidReservationStatement.clearParameters();
-						updatePaidReservationStatement.setInt(1, res_id);
-						updatePaidReservationStatement.executeUpdate();
-
-						user.close();
-						reservation.close();
-
-						commitTransaction();;
-						return "Paid reservation: " + res_id + " remaining balance: " + new_balance + "\n";
-					}
-			    }
+		if (journal != null) {
+			return payJournaled(reservationId);
+		}
+		return runTransaction(new TransactionRunner.Transaction() {
+			@Override
+			public String run() throws SQLException, TransactionRunner.Abort {
+				beginTransaction();
+				lockUser();
+				Reservation reservation = session.user.get(reservationId);
+				if (reservation == null || reservation.paid || isHoldExpired(reservationId)) {
+					throw new TransactionRunner.Abort("Cannot find unpaid reservation " + reservationId
+							+ " under user: " + session.username + "\n");
+				}
+				int payment = reservation.totalPrice;
+				int balance = session.user.balance();
+				if (balance < payment) {
+					throw new TransactionRunner.Abort("User has only " + balance + " in account but itinerary costs "
+							+ payment + "\n");
+				}
+
+				int new_balance = balance - payment;
+				updateUserBalanceStatement.clearParameters();
+				updateUserBalanceStatement.setInt(1, new_balance);
+				updateUserBalanceStatement.setString(2, session.username);
+				updateUserBalanceStatement.executeUpdate();
+
+				updatePaidReservationStatement.clearParameters();
+				updatePaidReservationStatement.setInt(1, reservationId);
+				updatePaidReservationStatement.setString(2, session.username);
+				updatePaidReservationStatement.executeUpdate();
+
+				commitTransaction();
+				session.lastPaidId = reservationId;
+				session.user.paid(reservationId, new_balance);
+				releaseHold(reservationId);
+				return "Paid reservation: " + reservationId + " remaining balance: " + new_balance + "\n";
 			}
-		} catch (SQLException error) {
-			error.printStackTrace();
-			return "Failed to pay for reservation " +  reservationId + "\n";
+		}, "Failed to pay for reservation " + reservationId + "\n");
+	}
+
+	private String payJournaled(int reservationId)
+	{
+		synchronized (session.user) {
+			Reservation reservation = session.user.get(reservationId);
+			if (reservation == null || reservation.paid || isHoldExpired(reservationId)) {
+				return "Cannot find unpaid reservation " + reservationId + " under user: " + session.username + "\n";
+			}
+			int payment = reservation.totalPrice;
+			int balance = session.user.balance();
+			if (balance < payment) {
+				return "User has only " + balance + " in account but itinerary costs " + payment + "\n";
+			}
+			try {
+				journal.pay(session.username, reservationId, payment);
+			} catch (IOException error) {
+				error.printStackTrace();
+				return "Failed to pay for reservation " + reservationId + "\n";
+			}
+			int new_balance = balance - payment;
+			session.lastPaidId = reservationId;
+			session.user.paid(reservationId, new_balance);
+			releaseHold(reservationId);
+			return "Paid reservation: " + reservationId + " remaining balance: " + new_balance + "\n";
 		}
-		return "Cannot find unpaid reservation " + reservationId + " under user: " + username + "\n";
 	}
 
 	/**
@@ -400,79 +712,133 @@ public class Query extends QuerySearchOnly {
 	 */
 	public String transaction_reservations()
 	{
-		if (username == null) {
+		if (session.username == null) {
 			return "Cannot view reservations, not logged in\n";
 		}
 
-		StringBuffer sb = new StringBuffer();
+		if (journal == null) {
+			try {
+				borrowConnection();
+				try {
+					refreshUser();
+				} finally {
+					releaseConnection();
+				}
+			} catch (SQLException error) {
+				error.printStackTrace();
+				return "Failed to retrieve reservations\n";
+			}
+		}
+		// with the journal, the cache is ahead of the tables and shared with the user's other sessions
+		synchronized (session.user) {
+			if (session.user.isEmpty()) {
+				return "No reservations found\n";
+			}
+			return session.user.appendTo(new StringBuilder()).toString();
+		}
+	}
+
+	/**
+	 * Lists the logged in user's reservations one page at a time, in reservation ID order
+	 * and in the format of {@link #transaction_reservations()}.
+	 *
+	 * @param pageSize most reservations to list
+	 * @param continuation null or empty for the first page, otherwise the token printed at
+	 * the end of the previous page
+	 *
+	 * @return the same messages as {@link #transaction_reservations()}, and, if more
+	 * reservations follow the page, a last line "Next page: [continuation token]\n".
+	 * An invalid page size or token gives "Failed to retrieve reservations\n".
+	 */
+	public String transaction_reservations(int pageSize, String continuation)
+	{
+		StringBuilder sb = new StringBuilder();
+		try {
+			transaction_reservations(pageSize, continuation, sb);
+		} catch (IOException error) {
+			// StringBuilder never throws
+			throw new UncheckedIOException(error);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Same as {@link #transaction_reservations(int, String)}, but writes the page straight to
+	 * {@code out} as the rows arrive, so that only one reservation is held at a time.
+	 */
+	public void transaction_reservations(int pageSize, String continuation, Appendable out) throws IOException
+	{
+		if (session.username == null) {
+			out.append("Cannot view reservations, not logged in\n");
+			return;
+		}
+		// the token is the ID of the last reservation listed
+		int after;
 		try {
-		getReservationStatement.clearParameters();
-		ResultSet rs = getReservationStatement.executeQuery();
-			while (rs.next()) {
-				int res_id = rs.getInt("reservation_id");
-				String paid = rs.getInt("paid") == 0 ? "false" : "true";
-				int fid1 = rs.getInt("fid1");
-				int fid2 = rs.getInt("fid2");
-				int day = rs.getInt("day");
-				int price = rs.getInt("total_price");
-				int capacity1 = rs.getInt("capacity1");
-				int capacity2 = rs.getInt("capacity2");
-				String carrier1 = rs.getString("carrier1");
-				String carrier2 = rs.getString("carrier2");
-				String flightNum1 = rs.getString("flight_num1");
-				String flightNum2 = rs.getString("flight_num2");
-				String origin_city1 = rs.getString("origin_city1");
-				String origin_city2 = rs.getString("origin_city2");
-				String dest_city1 = rs.getString("dest_city1");
-				String dest_city2 = rs.getString("dest_city2");
-				int duration1 = rs.getInt("duration1");
-				int duration2 = rs.getInt("duration2");
-				int price2 = rs.getInt("price2");
-				int direct = rs.getInt("direct");
-
-				if (direct == 1) {
-					sb.append("Reservation ").append(res_id)
-							.append(" paid: ").append(paid).append(":\n")
-							.append("ID: ").append(fid1)
-							.append(" Day: ").append(day)
-							.append(" Carrier: ").append(carrier1)
-							.append(" Number: ").append(flightNum1)
-							.append(" Origin: ").append(origin_city1)
-							.append(" Dest: ").append(dest_city1)
-							.append(" Duration: ").append(duration1)
-							.append(" Capacity: ").append(capacity1)
-							.append(" Price: ").append(price).append("\n");
-				} else if(direct == 0) {
-					sb.append("Reservation ").append(res_id)
-							.append(" paid: ").append(paid).append(":\n")
-							.append("ID: ").append(fid1)
-							.append(" Day: ").append(day)
-							.append(" Carrier: ").append(carrier1)
-							.append(" Number: ").append(flightNum1)
-							.append(" Origin: ").append(origin_city1)
-							.append(" Dest: ").append(dest_city1)
-							.append(" Duration: ").append(duration1)
-							.append(" Capacity: ").append(capacity1)
-							.append(" Price: ").append(price).append("\n")
-							.append("ID: ").append(fid2)
-							.append(" Day: ").append(day)
-							.append(" Carrier: ").append(carrier2)
-							.append(" Number: ").append(flightNum2)
-							.append(" Origin: ").append(origin_city2)
-							.append(" Dest: ").append(dest_city2)
-							.append(" Duration: ").append(duration2)
-							.append(" Capacity: ").append(capacity2)
-							.append(" Price: ").append(price2).append("\n");
+			after = continuation == null || continuation.isEmpty() ? 0 : Integer.parseInt(continuation);
+		} catch (NumberFormatException error) {
+			after = -1;
+		}
+		if (pageSize < 1 || after < 0) {
+			out.append("Failed to retrieve reservations\n");
+			return;
+		}
+
+		if (journal != null) {
+			// the cache is ahead of the tables, and holds all the reservations anyway
+			synchronized (session.user) {
+				int listed = 0;
+				for (Reservation reservation : session.user.after(after)) {
+					if (listed == pageSize) {
+						out.append("Next page: ").append(Integer.toString(after)).append("\n");
+						return;
+					}
+					reservation.writeTo(out);
+					after = reservation.id;
+					listed++;
+				}
+				if (listed == 0) {
+					out.append("No reservations found\n");
 				}
+			}
+			return;
+		}
 
-				rs.close();
-				return sb.toString();
+		try {
+			borrowConnection();
+			try {
+				// one row more than the page tells whether another page follows
+				listReservationsPageStatement.clearParameters();
+				listReservationsPageStatement.setInt(1, Math.min(pageSize, Integer.MAX_VALUE - 1) + 1);
+				listReservationsPageStatement.setString(2, session.username);
+				listReservationsPageStatement.setInt(3, after);
+				listReservationsPageStatement.setFetchSize(Math.min(pageSize, MAX_FETCH_SIZE - 1) + 1);
+				ResultSet rs = listReservationsPageStatement.executeQuery();
+				int listed = 0;
+				try {
+					while (rs.next()) {
+						if (listed == pageSize) {
+							out.append("Next page: ").append(Integer.toString(after)).append("\n");
+							return;
+						}
+						Reservation reservation = new Reservation(rs);
+						reservation.writeTo(out);
+						after = reservation.id;
+						listed++;
+					}
+				} finally {
+					rs.close();
+				}
+				if (listed == 0) {
+					out.append("No reservations found\n");
+				}
+			} finally {
+				releaseConnection();
 			}
 		} catch (SQLException error) {
 			error.printStackTrace();
-			return "Failed to retrieve reservations\n";
+			out.append("Failed to retrieve reservations\n");
 		}
-		return "Failed to retrieve reservations\n";
 	}
 
 	/**
@@ -487,57 +853,133 @@ public class Query extends QuerySearchOnly {
 	 *
 	 * Even though a reservation has been canceled, its ID should not be reused by the system.
 	 */
-	public String transaction_cancel(int reservationId)
+	public String transaction_cancel(final int reservationId)
 	{
 		// only implement this if you are interested in earning extra credit for the HW!
-		if (username == null) {
+		if (session.username == null) {
 			return "Cannot cancel reservations, not logged in\n";
 		}
 
-		try {
-			beginTransaction();
-			getReservationStatement.clearParameters();
-			ResultSet rs = getReservationStatement.executeQuery();
-			while (rs.next()) {
-				int res_id = rs.getInt("reservation_id");
-				if (reservationId == res_id) {
-					cancelReservationStatement.clearParameters();
-					cancelReservationStatement.setInt(1, res_id);
-					cancelReservationStatement.executeUpdate();
-
-					getUserBalanceStatement.clearParameters();
-					getUserBalanceStatement.setString(1, username);
-					ResultSet balance = getUserBalanceStatement.executeQuery();
-					balance.next();
-					int curr_balance = balance.getInt("balance");
-
-					int refund = rs.getInt("total_price");
-
-					int new_balance = curr_balance + refund;
+		final String failure = "Failed to cancel reservation " + reservationId + "\n";
+		if (journal != null) {
+			return cancelJournaled(reservationId, failure);
+		}
+		return runTransaction(new TransactionRunner.Transaction() {
+			@Override
+			public String run() throws SQLException, TransactionRunner.Abort {
+				beginTransaction();
+				lockUser();
+				Reservation reservation = session.user.get(reservationId);
+				if (reservation == null) {
+					throw new TransactionRunner.Abort(failure);
+				}
+				// only paid reservations are refunded
+				int refund = reservation.paid ? reservation.totalPrice : 0;
+				int new_balance = session.user.balance() + refund;
+
+				cancelReservationStatement.clearParameters();
+				cancelReservationStatement.setInt(1, reservationId);
+				cancelReservationStatement.setString(2, session.username);
+				cancelReservationStatement.executeUpdate();
+				releaseSeats(reservation.fid1, reservation.seats);
+				releaseSeats(reservation.fid2, reservation.seats);
+
+				if (refund > 0) {
 					updateUserBalanceStatement.clearParameters();
 					updateUserBalanceStatement.setInt(1, new_balance);
-					updateUserBalanceStatement.setString(2, username);
+					updateUserBalanceStatement.setString(2, session.username);
 					updateUserBalanceStatement.executeUpdate();
-					balance.close();
-
-					rs.close();
-					commitTransaction();
-					return "Canceled reservation " + reservationId + "\n";
-				} else {
-					rs.close();
-					rollbackTransaction();
-					return "Failed to cancel reservation " + reservationId + "\n";
 				}
+
+				commitTransaction();
+				session.user.canceled(reservationId, new_balance);
+				releaseHold(reservationId);
+				return "Canceled reservation " + reservationId + "\n";
 			}
-		} catch (SQLException error) {
-			error.printStackTrace();
-			return "Failed to cancel reservation " + reservationId + "\n";
+		}, failure);
+	}
+
+	private String cancelJournaled(int reservationId, String failure)
+	{
+		synchronized (session.user) {
+			Reservation reservation = session.user.get(reservationId);
+			if (reservation == null) {
+				return failure;
+			}
+			// only paid reservations are refunded
+			int refund = reservation.paid ? reservation.totalPrice : 0;
+			try {
+				journal.cancel(session.username, reservation, refund);
+			} catch (IOException error) {
+				error.printStackTrace();
+				return failure;
+			}
+			journal.releaseSeats(reservation.fid1, reservation.seats);
+			journal.releaseSeats(reservation.fid2, reservation.seats);
+			session.user.canceled(reservationId, session.user.balance() + refund);
+			releaseHold(reservationId);
+			return "Canceled reservation " + reservationId + "\n";
 		}
-		return "Failed to cancel reservation " + reservationId + "\n";
 	}
 
 	/* some utility functions below */
 
+	// an unpaid reservation whose hold expired is as good as canceled, see HoldExpiry
+	private boolean isHoldExpired(int reservationId)
+	{
+		return holds != null && holds.isExpired(reservationId);
+	}
+
+	private void releaseHold(int reservationId)
+	{
+		if (holds != null) {
+			holds.release(reservationId);
+		}
+	}
+
+	/**
+	 * Increments the logged in user's version in the current transaction, which keeps their
+	 * row locked until it ends, so no other session can change the user's balance or
+	 * reservations meanwhile. Loads the user's cache again, inside the transaction, if its
+	 * version is not the one that was in the table.
+	 */
+	private void lockUser() throws SQLException
+	{
+		lockUserStatement.clearParameters();
+		lockUserStatement.setString(1, session.username);
+		loadUserIfChanged(lockUserStatement.executeQuery());
+	}
+
+	/**
+	 * Loads the logged in user's cache again if another session changed the user since it
+	 * was loaded. Only reads the user's version when nothing changed.
+	 */
+	private void refreshUser() throws SQLException
+	{
+		getUserVersionStatement.clearParameters();
+		getUserVersionStatement.setString(1, session.username);
+		loadUserIfChanged(getUserVersionStatement.executeQuery());
+	}
+
+	// takes the result of LOCK_USER or GET_USER_VERSION
+	private void loadUserIfChanged(ResultSet results) throws SQLException
+	{
+		if (!results.next()) {
+			results.close();
+			throw new SQLException("No user " + session.username);
+		}
+		int balance = results.getInt("balance");
+		int version = results.getInt("version");
+		results.close();
+		if (session.user == null || session.user.version() != version) {
+			if (session.user != null && credentials != null) {
+				// the row changed behind this session's back
+				credentials.invalidate(session.username);
+			}
+			session.user = UserCache.load(listReservationsStatement, session.username, version, balance);
+		}
+	}
+
 	public void beginTransaction() throws SQLException
 	{
 		conn.setAutoCommit(false);
@@ -550,9 +992,49 @@ public class Query extends QuerySearchOnly {
 		conn.setAutoCommit(true);
 	}
 
+	/**
+	 * Starts a booking transaction. Seats are taken with a single conditional update per
+	 * flight, so bookings do not need SERIALIZABLE and only contend on the flights they share.
+	 */
+	public void beginBooking() throws SQLException
+	{
+		conn.setAutoCommit(false);
+		beginBookingStatement.executeUpdate();
+	}
+
+	/**
+	 * Takes {@code seats} seats on flight {@code fid} for the current transaction.
+	 *
+	 * @return false if fewer seats of the flight are left
+	 */
+	private boolean reserveSeats(int fid, int seats) throws SQLException
+	{
+		reserveSeatStatement.clearParameters();
+		reserveSeatStatement.setInt(1, seats);
+		reserveSeatStatement.setInt(2, fid);
+		return reserveSeatStatement.executeUpdate() == 1;
+	}
+
+	/** Gives back seats taken by {@link #reserveSeats(int, int)}. */
+	private void releaseSeats(int fid, int seats) throws SQLException
+	{
+		if (fid < 0) {
+			return;
+		}
+		releaseSeatStatement.clearParameters();
+		releaseSeatStatement.setInt(1, seats);
+		releaseSeatStatement.setInt(2, fid);
+		releaseSeatStatement.setInt(3, seats);
+		releaseSeatStatement.executeUpdate();
+	}
+
 	public void rollbackTransaction() throws SQLException
 	{
-		rollbackTransactionStatement.executeUpdate();
-		conn.setAutoCommit(true);
+		try {
+			rollbackTransactionStatement.executeUpdate();
+		} finally {
+			// even if the server had already ended the transaction, e.g. as a deadlock victim
+			conn.setAutoCommit(true);
+		}
 	}
 }
@@ -1,5 +1,10 @@
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
 
 /**
@@ -11,13 +16,39 @@ public class QuerySearchOnly
   // `dbconn.properties` config file
   private String configFilename;
 
-  // DB Connection
+  // DB Connection: the session's own, or the one borrowed from the pool between
+  // borrowConnection() and releaseConnection() when `flightservice.pool_max_size` is set
   protected Connection conn;
+  private ConnectionPool pool;
+  private ConnectionPool.PooledConnection lease;
+  private int leaseDepth;
+
+  // Settings read from the config file by openConnection()
+  protected Properties configProps;
+
+  // Whether searches are answered from the in-memory flight index (`flightservice.flight_index`)
+  private boolean useFlightIndex;
+  private FlightIndex flightIndex;
+
+  // Optional snapshot the flight index is mapped from (`flightservice.flight_snapshot`)
+  private String flightSnapshot;
+  private long flightSnapshotMaxAgeMillis;
+
+  // Shared search result cache, disabled when `flightservice.search_cache_size` is 0
+  private int searchCacheSize;
+  private SearchCache searchCache;
+
+  // Shared one-stop connection pairs, disabled when `flightservice.connection_pairs` is 0
+  private long connectionPairsSize;
+  private ConnectionPairs connectionPairs;
 
   // Canned queries
   private static final String CHECK_FLIGHT_CAPACITY = "SELECT capacity FROM Flights WHERE fid = ?";
   protected PreparedStatement checkFlightCapacityStatement;
 
+  private static final String GET_FLIGHT_STATUS = "SELECT canceled, capacity FROM Flights WHERE fid = ?";
+  private PreparedStatement getFlightStatusStatement;
+
   private static final String DIRECT_SEARCH_SQL =
           "SELECT TOP (?) day_of_month,carrier_id,flight_num,origin_city,dest_city,actual_time,fid,capacity,price,canceled "
                   + "FROM Flights "
@@ -41,13 +72,14 @@ public class QuerySearchOnly
                   + "ORDER BY F1.actual_time + F2.actual_time ASC, F1.fid ASC, F2.fid ASC";
   protected PreparedStatement indirectSearchStatement;
 
-  private static final String ITINERARY_UPDATE = "INSERT INTO ITINERARIES VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
-  protected PreparedStatement itineraryUpdateStatement;
+  // The session commands run for: a private one until attach() is called
+  protected Session session = new Session(null);
 
-  private static final String CLEAR_ITINERARIES = "DELETE FROM Itineraries";
-  private PreparedStatement clearItinerariesStatement;
+  // Buffer the responses of this session are formatted in, dropped once it grows past the limit
+  private static final int MAX_RETAINED_OUTPUT = 1 << 16;
+  private StringBuilder output = new StringBuilder();
 
-  class Flight
+  static class Flight
   {
     public int fid;
     public int dayOfMonth;
@@ -60,12 +92,18 @@ public class QuerySearchOnly
     public int price;
     public int cancelled;
 
+    // toString() of this flight, built on first use: flights are not modified once returned by a search
+    String text;
+
     @Override
     public String toString()
     {
-      return "ID: " + fid + " Day: " + dayOfMonth + " Carrier: " + carrierId +
-              " Number: " + flightNum + " Origin: " + originCity + " Dest: " + destCity + " Duration: " + time +
-              " Capacity: " + capacity + " Price: " + price;
+      if (text == null) {
+        text = "ID: " + fid + " Day: " + dayOfMonth + " Carrier: " + carrierId +
+                " Number: " + flightNum + " Origin: " + originCity + " Dest: " + destCity + " Duration: " + time +
+                " Capacity: " + capacity + " Price: " + price;
+      }
+      return text;
     }
   }
 
@@ -77,9 +115,42 @@ public class QuerySearchOnly
   /** Open a connection to SQL Server in Microsoft Azure.  */
   public void openConnection() throws Exception
   {
-    Properties configProps = new Properties();
+    configProps = new Properties();
     configProps.load(new FileInputStream(configFilename));
+    // settings given as system properties, e.g. -Dflightservice.flight_index=true, win over the file
+    for (String name : System.getProperties().stringPropertyNames()) {
+      if (name.startsWith("flightservice.")) {
+        configProps.setProperty(name, System.getProperty(name));
+      }
+    }
 
+    useFlightIndex = Boolean.parseBoolean(configProps.getProperty("flightservice.flight_index", "false").trim());
+    flightSnapshot = configProps.getProperty("flightservice.flight_snapshot");
+    if (flightSnapshot != null && flightSnapshot.trim().isEmpty()) {
+      flightSnapshot = null;
+    }
+    flightSnapshotMaxAgeMillis = Long.parseLong(
+            configProps.getProperty("flightservice.flight_snapshot_max_age_hours", "24").trim()) * 3600 * 1000;
+    searchCacheSize = Integer.parseInt(configProps.getProperty("flightservice.search_cache_size", "0").trim());
+    connectionPairsSize = Long.parseLong(configProps.getProperty("flightservice.connection_pairs", "0").trim());
+
+    if (Integer.parseInt(configProps.getProperty("flightservice.pool_max_size", "0").trim()) > 0) {
+      pool = ConnectionPool.shared(configProps);
+      return;
+    }
+    conn = connect(configProps);
+
+    conn.setAutoCommit(true); //by default automatically commit after each statement
+    /* In the full Query class, you will also want to appropriately set the transaction's isolation level:
+          conn.setTransactionIsolation(...)
+       See Connection class's JavaDoc for details.
+    */
+    conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+  }
+
+  /** Opens a new connection to the database described by {@code configProps}. */
+  static Connection connect(Properties configProps) throws Exception
+  {
     String jSQLDriver = configProps.getProperty("flightservice.jdbc_driver");
     String jSQLUrl = configProps.getProperty("flightservice.url");
     String jSQLUser = configProps.getProperty("flightservice.sqlazure_username");
@@ -89,51 +160,119 @@ public class QuerySearchOnly
     Class.forName(jSQLDriver).newInstance();
 
     /* open connections to the flights database */
-    conn = DriverManager.getConnection(jSQLUrl, // database
+    return DriverManager.getConnection(jSQLUrl, // database
             jSQLUser, // user
             jSQLPassword); // password
-
-    conn.setAutoCommit(true); //by default automatically commit after each statement
-    /* In the full Query class, you will also want to appropriately set the transaction's isolation level:
-          conn.setTransactionIsolation(...)
-       See Connection class's JavaDoc for details.
-    */
-    conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
   }
 
   public void closeConnection() throws Exception
   {
-    conn.close();
+    // pooled connections stay open for the other sessions
+    if (pool == null) {
+      conn.close();
+    }
   }
 
   /**
-   * prepare all the SQL statements in this method.
-   * "preparing" a statement is almost like compiling it.
-   * Note that the parameters (with ?) are still not filled in
+   * Runs the following commands for {@code session}: its login and last search are used
+   * and updated instead of those of this object's own session. A query serves one session
+   * at a time.
    */
-  public void prepareStatements() throws Exception
+  public void attach(Session session)
   {
-    checkFlightCapacityStatement = conn.prepareStatement(CHECK_FLIGHT_CAPACITY);
-
-    /* add here more prepare statements for all the other queries you need */
-    /* . . . . . . */
-
-    directSearchStatement = conn.prepareStatement(DIRECT_SEARCH_SQL);
-    indirectSearchStatement = conn.prepareStatement(INDIRECT_SEARCH_SQL);
+    this.session = session;
+  }
 
-    itineraryUpdateStatement = conn.prepareStatement(ITINERARY_UPDATE);
+  /** The session commands run for. */
+  public Session session()
+  {
+    return session;
+  }
 
-    clearItinerariesStatement = conn.prepareStatement(CLEAR_ITINERARIES);
+  /**
+   * Makes {@code conn} and the statements usable until the matching
+   * {@link #releaseConnection()}. Without a pool, the session keeps its own connection and
+   * this does nothing. With one, a connection is borrowed and the statements are bound to
+   * it. Calls nest: only the outermost one borrows.
+   */
+  protected void borrowConnection() throws SQLException
+  {
+    if (pool == null || leaseDepth++ > 0) {
+      return;
+    }
     try {
-      clearItinerariesStatement.executeUpdate();
-    } catch (SQLException e) {
+      lease = pool.borrow();
+      conn = lease.connection();
+      bindStatements();
+    } catch (SQLException error) {
+      leaseDepth--;
+      if (lease != null) {
+        pool.release(lease);
+      }
+      lease = null;
+      conn = null;
+      throw error;
+    }
+  }
 
+  /** Gives back the connection borrowed by {@link #borrowConnection()}. */
+  protected void releaseConnection()
+  {
+    if (pool == null || --leaseDepth > 0) {
+      return;
     }
+    pool.release(lease);
+    lease = null;
+    conn = null;
   }
 
-  private int itineraryCount;
+  /** Prepares {@code sql} on the current connection, or takes it from the connection's cache. */
+  protected PreparedStatement prepare(String sql) throws SQLException
+  {
+    return lease != null ? lease.prepare(sql) : conn.prepareStatement(sql);
+  }
 
+  /**
+   * Sets the statement fields to statements of the current connection: once for the
+   * session's own connection, or on every borrow from the pool.
+   */
+  protected void bindStatements() throws SQLException
+  {
+    checkFlightCapacityStatement = prepare(CHECK_FLIGHT_CAPACITY);
+    getFlightStatusStatement = prepare(GET_FLIGHT_STATUS);
+
+    /* add here more prepare statements for all the other queries you need */
+    /* . . . . . . */
+
+    directSearchStatement = prepare(DIRECT_SEARCH_SQL);
+    indirectSearchStatement = prepare(INDIRECT_SEARCH_SQL);
+  }
 
+  /**
+   * prepare all the SQL statements in this method.
+   * "preparing" a statement is almost like compiling it.
+   * Note that the parameters (with ?) are still not filled in
+   */
+  public void prepareStatements() throws Exception
+  {
+    if (pool == null) {
+      bindStatements();
+    }
+    if (useFlightIndex) {
+      borrowConnection();
+      try {
+        flightIndex = FlightIndex.shared(conn, flightSnapshot, flightSnapshotMaxAgeMillis);
+      } finally {
+        releaseConnection();
+      }
+    }
+    if (searchCacheSize > 0) {
+      searchCache = SearchCache.shared(searchCacheSize);
+    }
+    if (flightIndex != null && connectionPairsSize > 0) {
+      connectionPairs = ConnectionPairs.shared(flightIndex, connectionPairsSize);
+    }
+  }
 
   /**
    * Implement the search function.
@@ -173,39 +312,355 @@ public class QuerySearchOnly
     // Please implement your own (safe) version that uses prepared statements rather than string concatenation.
     // You may use the `Flight` class (defined above).
 
+    return format(findItineraries(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries));
+  }
+
+  /**
+   * Same as {@link #transaction_search(String, String, boolean, int, int)}, but writes the
+   * response straight to {@code out} instead of returning it.
+   */
+  public void transaction_search(String originCity, String destinationCity, boolean directFlight, int dayOfMonth,
+                                 int numberOfItineraries, Appendable out) throws IOException
+  {
+    writeItineraries(findItineraries(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries),
+            out);
+  }
+
+  /**
+   * Runs a search through the cache and remembers the results in the session.
+   *
+   * @return the itineraries found, or null if the search failed
+   */
+  private List<Itinerary> findItineraries(String originCity, String destinationCity, boolean directFlight,
+                                          int dayOfMonth, int numberOfItineraries)
+  {
+    session.itineraries = Collections.emptyList();
+    List<Itinerary> found = null;
+    long generation = 0;
+    if (searchCache != null && numberOfItineraries >= 0) {
+      found = searchCache.get(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries);
+      generation = searchCache.generation();
+    }
+    if (found == null) {
+      found = search(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries);
+      if (found == null) {
+        return null;
+      }
+      if (searchCache != null) {
+        searchCache.put(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries, found,
+                generation);
+      }
+    }
+    session.itineraries = found;
+    return found;
+  }
+
+  /**
+   * Runs a search against the flight index if it is loaded, or the database otherwise.
+   *
+   * @return the itineraries found, or null if the search failed
+   */
+  private List<Itinerary> search(String originCity, String destinationCity, boolean directFlight, int dayOfMonth,
+                                 int numberOfItineraries)
+  {
     try {
-      clearItinerariesStatement.clearParameters();
-      clearItinerariesStatement.executeUpdate();
+      if (flightIndex != null) {
+        return ItinerarySearch.search(flightIndex, connectionPairs, originCity, destinationCity, directFlight,
+                dayOfMonth, numberOfItineraries);
+      }
+      borrowConnection();
+      try {
+        if (directFlight) {
+          return directSearch(numberOfItineraries, originCity, destinationCity, dayOfMonth);
+        } else {
+          return indirectSearch(numberOfItineraries, originCity, destinationCity, dayOfMonth);
+        }
+      } finally {
+        releaseConnection();
+      }
     } catch (SQLException error) {
       error.printStackTrace();
-      return "Failed to clear itineraries\n";
+      return null;
+    }
+  }
+
+  /**
+   * Searches every day from {@code firstDay} to {@code lastDay} (inclusive) and returns the
+   * best {@code numberOfItineraries} itineraries over the whole range.
+   *
+   * Unlike {@code transaction_search}, direct and one-stop itineraries are ranked together:
+   * the results are sorted by total flight time, then by the fid of each leg. Itineraries are
+   * printed and numbered as in {@code transaction_search} and can be booked the same way.
+   *
+   * When the flight index is loaded the days are searched in parallel, otherwise one day
+   * after the other against the database.
+   *
+   * @return If no itineraries were found, return "No flights match your selection\n".
+   * If an error occurs or the range is empty, then return "Failed to search\n".
+   *
+   * @see #transaction_search(String, String, boolean, int, int)
+   */
+  public String transaction_search_range(String originCity, String destinationCity, boolean directFlight,
+                                         int firstDay, int lastDay, int numberOfItineraries)
+  {
+    return format(findRange(originCity, destinationCity, directFlight, firstDay, lastDay, numberOfItineraries));
+  }
+
+  /**
+   * Same as {@link #transaction_search_range(String, String, boolean, int, int, int)}, but
+   * writes the response straight to {@code out} instead of returning it.
+   */
+  public void transaction_search_range(String originCity, String destinationCity, boolean directFlight,
+                                       int firstDay, int lastDay, int numberOfItineraries, Appendable out)
+          throws IOException
+  {
+    writeItineraries(findRange(originCity, destinationCity, directFlight, firstDay, lastDay, numberOfItineraries),
+            out);
+  }
+
+  private List<Itinerary> findRange(String originCity, String destinationCity, boolean directFlight,
+                                    int firstDay, int lastDay, int numberOfItineraries)
+  {
+    session.itineraries = Collections.emptyList();
+    if (firstDay > lastDay || numberOfItineraries < 0) {
+      return null;
     }
-    String result = "";
-    if (directFlight) {
+
+    List<Itinerary> found;
+    if (flightIndex != null) {
+      found = RangeSearch.search(flightIndex, originCity, destinationCity, directFlight, firstDay, lastDay,
+              numberOfItineraries);
+    } else {
+      found = new ArrayList<>();
       try {
-        result = directSearch(numberOfItineraries, originCity, destinationCity, dayOfMonth);
+        borrowConnection();
+        try {
+          for (int day = firstDay; day <= lastDay; day++) {
+            List<Itinerary> sameDay = directSearch(numberOfItineraries, originCity, destinationCity, day);
+            if (!directFlight) {
+              sameDay.addAll(oneStopSearch(numberOfItineraries, originCity, destinationCity, day));
+            }
+            found = RangeSearch.merge(found, sameDay, numberOfItineraries);
+          }
+        } finally {
+          releaseConnection();
+        }
       } catch (SQLException error) {
         error.printStackTrace();
-        return "Failed to search\n";
+        return null;
       }
-      if (result.length() == 0) {
-        return "No flights match your selection\n";
+    }
+    session.itineraries = found;
+    return found;
+  }
+
+  /**
+   * Searches for itineraries of up to {@code maxFlights} flights on the given day, connecting
+   * in any city. Itineraries are ranked by total flight time, then by the fid of each leg,
+   * and printed and numbered as in {@code transaction_search}.
+   *
+   * Multi-stop searches always run against the flight index, which is loaded on first use
+   * if {@code flightservice.flight_index} is off.
+   *
+   * @return If no itineraries were found, return "No flights match your selection\n".
+   * If an error occurs, then return "Failed to search\n".
+   *
+   * @see #transaction_search(String, String, boolean, int, int)
+   */
+  public String transaction_search_multi(String originCity, String destinationCity, int maxFlights,
+                                         int dayOfMonth, int numberOfItineraries)
+  {
+    return format(findMulti(originCity, destinationCity, maxFlights, dayOfMonth, numberOfItineraries));
+  }
+
+  /**
+   * Same as {@link #transaction_search_multi(String, String, int, int, int)}, but writes the
+   * response straight to {@code out} instead of returning it.
+   */
+  public void transaction_search_multi(String originCity, String destinationCity, int maxFlights,
+                                       int dayOfMonth, int numberOfItineraries, Appendable out) throws IOException
+  {
+    writeItineraries(findMulti(originCity, destinationCity, maxFlights, dayOfMonth, numberOfItineraries), out);
+  }
+
+  private List<Itinerary> findMulti(String originCity, String destinationCity, int maxFlights,
+                                    int dayOfMonth, int numberOfItineraries)
+  {
+    session.itineraries = Collections.emptyList();
+    if (maxFlights < 1 || numberOfItineraries < 0) {
+      return null;
+    }
+    FlightIndex index = flightIndex;
+    try {
+      if (index == null) {
+        borrowConnection();
+        try {
+          index = FlightIndex.shared(conn, flightSnapshot, flightSnapshotMaxAgeMillis);
+        } finally {
+          releaseConnection();
+        }
+      }
+    } catch (SQLException error) {
+      error.printStackTrace();
+      return null;
+    }
+
+    session.itineraries = MultiStopSearch.search(index, originCity, destinationCity, maxFlights,
+            dayOfMonth, numberOfItineraries);
+    return session.itineraries;
+  }
+
+  /**
+   * Runs many searches at once, for callers that send them in bulk. The requests are
+   * grouped by day and origin and each group is answered in one scan, either of the flight
+   * index or of the day's flights loaded with a single query.
+   *
+   * Itineraries found by a batch are not kept in the session and cannot be booked.
+   *
+   * @return the response of each request, in input order, in the same format and with the
+   * same messages as {@code transaction_search}
+   *
+   * @see #transaction_search(String, String, boolean, int, int)
+   */
+  public List<String> searchBatch(List<SearchRequest> requests)
+  {
+    session.itineraries = Collections.emptyList();
+    List<List<Itinerary>> found;
+    try {
+      if (flightIndex != null) {
+        found = BatchSearch.search(flightIndex, requests);
       } else {
-        return result;
+        borrowConnection();
+        try {
+          found = BatchSearch.search(conn, requests);
+        } finally {
+          releaseConnection();
+        }
       }
+    } catch (SQLException error) {
+      error.printStackTrace();
+      found = Collections.nCopies(requests.size(), null);
+    }
+
+    List<String> responses = new ArrayList<>(found.size());
+    for (List<Itinerary> result : found) {
+      responses.add(format(result));
+    }
+    return responses;
+  }
+
+  /**
+   * Writes a search response: the itineraries, numbered from 0, or the message for a failed
+   * ({@code found} is null) or empty search.
+   */
+  private static void writeItineraries(List<Itinerary> found, Appendable out) throws IOException
+  {
+    if (found == null) {
+      out.append("Failed to search\n");
+    } else if (found.isEmpty()) {
+      out.append("No flights match your selection\n");
     } else {
-      try {
-        result = indirectSearch(numberOfItineraries, originCity, destinationCity, dayOfMonth);
-      } catch (SQLException error) {
-        error.printStackTrace();
-        return "Failed to search\n";
+      for (int i = 0; i < found.size(); i++) {
+        found.get(i).appendTo(out, i);
       }
-      if (result.length() == 0) {
-        return "No flights match your selection\n";
-      } else {
-        return result;
+    }
+  }
+
+  // formats a search response in the session's buffer, which is reused from one search to the next
+  private String format(List<Itinerary> found)
+  {
+    if (output.capacity() > MAX_RETAINED_OUTPUT) {
+      output = new StringBuilder();
+    }
+    output.setLength(0);
+    try {
+      writeItineraries(found, output);
+    } catch (IOException error) {
+      // StringBuilder never throws
+      throw new UncheckedIOException(error);
+    }
+    return output.toString();
+  }
+
+  /**
+   * Returns the itinerary numbered {@code itineraryId} by the last search in this
+   * session, or null if there is no such itinerary.
+   */
+  protected Itinerary getItinerary(int itineraryId)
+  {
+    if (itineraryId < 0 || itineraryId >= session.itineraries.size()) {
+      return null;
+    }
+    return session.itineraries.get(itineraryId);
+  }
+
+  // drops any cached search results that include flight fid, after its FLIGHTS row changed
+  private void invalidateCachedSearches(int fid)
+  {
+    if (searchCache != null) {
+      searchCache.invalidateFlight(fid);
+    }
+  }
+
+  /**
+   * Picks up a change made to flight {@code fid} in the database, by an operator or a
+   * schedule update: its {@code canceled} flag or its {@code capacity}.
+   *
+   * @return If the flight could not be read, then return "Failed to refresh flight [fid]\n".
+   *
+   * Otherwise, return "Refreshed flight [fid]\n".
+   */
+  public String transaction_refresh_flight(int fid)
+  {
+    try {
+      refreshFlight(fid);
+      return "Refreshed flight " + fid + "\n";
+    } catch (SQLException error) {
+      error.printStackTrace();
+      return "Failed to refresh flight " + fid + "\n";
+    }
+  }
+
+  /**
+   * Re-reads the {@code canceled} flag and the {@code capacity} of flight {@code fid} after
+   * they were changed in the database. The flight index is updated, the connection pairs
+   * that hold the flight only if it was canceled or reinstated (pairs do not depend on
+   * capacity), and the cached searches that show the flight are dropped. Flights that
+   * were already canceled when the index was loaded are not in it, and only come back with
+   * a new index.
+   */
+  public void refreshFlight(int fid) throws SQLException
+  {
+    boolean canceled;
+    int capacity = 0;
+    borrowConnection();
+    try {
+      getFlightStatusStatement.clearParameters();
+      getFlightStatusStatement.setInt(1, fid);
+      ResultSet results = getFlightStatusStatement.executeQuery();
+      boolean found = results.next();
+      canceled = !found || results.getInt("canceled") != 0;
+      if (found) {
+        capacity = results.getInt("capacity");
       }
+      results.close();
+    } finally {
+      releaseConnection();
     }
+
+    if (flightIndex != null) {
+      int row = flightIndex.row(fid);
+      if (row >= 0 && flightIndex.isCanceled(row) != canceled) {
+        flightIndex.setCanceled(row, canceled);
+        if (connectionPairs != null) {
+          connectionPairs.flightChanged(row);
+        }
+      }
+      if (row >= 0 && !canceled) {
+        flightIndex.setCapacity(row, capacity);
+      }
+    }
+    invalidateCachedSearches(fid);
   }
 
   /**
@@ -281,10 +736,10 @@ public class QuerySearchOnly
     return capacity;
   }
 
-  private String directSearch(int numberOfItineraries, String originCity, String destinationCity, int dayOfMonth) throws SQLException
+  private List<Itinerary> directSearch(int numberOfItineraries, String originCity, String destinationCity,
+                                       int dayOfMonth) throws SQLException
   {
-
-    StringBuffer sb = new StringBuffer();
+    List<Itinerary> result = new ArrayList<>();
 
     directSearchStatement.clearParameters();
     directSearchStatement.setInt(1, numberOfItineraries);
@@ -292,72 +747,34 @@ public class QuerySearchOnly
     directSearchStatement.setString(3, destinationCity);
     directSearchStatement.setInt(4, dayOfMonth);
     ResultSet rs = directSearchStatement.executeQuery();
-    //int row_id = 0;
-    itineraryCount = 0;
     while (rs.next()) {
-
-      int result_fid = rs.getInt("fid");
-      int result_dayOfMonth = rs.getInt("day_of_month");
-      String result_carrierId = rs.getString("carrier_id");
-      String result_flightNum = rs.getString("flight_num");
-      String result_originCity = rs.getString("origin_city");
-      String result_destCity = rs.getString("dest_city");
-      int result_time = rs.getInt("actual_time");
-      int result_capacity = rs.getInt("capacity");
-      int result_price = rs.getInt("price");
-
-      sb.append("Itinerary ").append(itineraryCount).append((": "))
-              .append("1 flight(s), ")
-              .append(result_time).append(" minutes")
-              .append('\n')
-              .append("ID: ").append(result_fid)
-              .append(" Day: ").append(result_dayOfMonth)
-              .append(" Carrier: ").append(result_carrierId)
-              .append(" Number: ").append(result_flightNum)
-              .append(" Origin: ").append(result_originCity)
-              .append(" Dest: ").append(result_destCity)
-              .append(" Duration: ").append(result_time)
-              .append(" Capacity: ").append(result_capacity)
-              .append(" Price: ").append(result_price)
-              .append('\n');
-
-      itineraryUpdateStatement.clearParameters();
-      itineraryUpdateStatement.setInt(1, itineraryCount);
-      itineraryUpdateStatement.setInt(2, result_fid);
-      itineraryUpdateStatement.setInt(3, -1);
-      itineraryUpdateStatement.setInt(4, result_dayOfMonth);
-      itineraryUpdateStatement.setInt(5, result_capacity);
-      itineraryUpdateStatement.setInt(6, -1);
-      itineraryUpdateStatement.setInt(7, result_price);
-      itineraryUpdateStatement.setString(8, result_carrierId);
-      itineraryUpdateStatement.setString(9, "");
-      itineraryUpdateStatement.setString(10, result_flightNum);
-      itineraryUpdateStatement.setString(11, "");
-      itineraryUpdateStatement.setString(12, result_originCity);
-      itineraryUpdateStatement.setString(13, "");
-      itineraryUpdateStatement.setString(14, result_destCity);
-      itineraryUpdateStatement.setString(15, "");
-      itineraryUpdateStatement.setInt(16, result_time);
-      itineraryUpdateStatement.setInt(17, -1);
-      itineraryUpdateStatement.setInt(18, -1);
-      itineraryUpdateStatement.setInt(19, 1);
-      itineraryUpdateStatement.executeUpdate();
-      itineraryCount++;
-      //row_id++;
+      Flight flight = new Flight();
+      flight.fid = rs.getInt("fid");
+      flight.dayOfMonth = rs.getInt("day_of_month");
+      flight.carrierId = rs.getString("carrier_id");
+      flight.flightNum = rs.getString("flight_num");
+      flight.originCity = rs.getString("origin_city");
+      flight.destCity = rs.getString("dest_city");
+      flight.time = rs.getInt("actual_time");
+      flight.capacity = rs.getInt("capacity");
+      flight.price = rs.getInt("price");
+      flight.cancelled = rs.getInt("canceled");
+      result.add(new Itinerary(flight));
     }
     rs.close();
-    return sb.toString();
+    return result;
   }
 
-  private String indirectSearch(int numberOfItineraries, String originCity, String destinationCity, int dayOfMonth) throws SQLException {
-    //if (numberOfItineraries == 1) {
-    //  return directSearch(numberOfItineraries, originCity, destinationCity, dayOfMonth);
-    //}
-    String result = "";
-    result = directSearch(numberOfItineraries, originCity, destinationCity, dayOfMonth);
-    numberOfItineraries = numberOfItineraries - itineraryCount;
+  private List<Itinerary> indirectSearch(int numberOfItineraries, String originCity, String destinationCity,
+                                         int dayOfMonth) throws SQLException {
+    List<Itinerary> result = directSearch(numberOfItineraries, originCity, destinationCity, dayOfMonth);
+    result.addAll(oneStopSearch(numberOfItineraries - result.size(), originCity, destinationCity, dayOfMonth));
+    return result;
+  }
 
-    StringBuffer sb = new StringBuffer();
+  private List<Itinerary> oneStopSearch(int numberOfItineraries, String originCity, String destinationCity,
+                                        int dayOfMonth) throws SQLException {
+    List<Itinerary> result = new ArrayList<>();
 
     indirectSearchStatement.clearParameters();
     indirectSearchStatement.setInt(1, numberOfItineraries);
@@ -365,83 +782,34 @@ public class QuerySearchOnly
     indirectSearchStatement.setString(3, destinationCity);
     indirectSearchStatement.setInt(4, dayOfMonth);
     ResultSet rs = indirectSearchStatement.executeQuery();
-    //int flight_count = 0;
     while (rs.next()) {
-
-      int result_dayOfMonth = rs.getInt(1);
-      String result_carrierId = rs.getString(2);
-      String result_flightNum = rs.getString(3);
-      String result_originCity = rs.getString(4);
-      String result_destCity = rs.getString(5);
-      int result_time = rs.getInt(6);
-      int result_fid = rs.getInt(7);
-      int result_capacity = rs.getInt(8);
-      int result_price = rs.getInt(9);
-
-      int result_dayOfMonth2 = rs.getInt(11);
-      String result_carrierId2 = rs.getString(12);
-      String result_flightNum2 = rs.getString(13);
-      String result_originCity2 = rs.getString(14);
-      String result_destCity2 = rs.getString(15);
-      int result_time2 = rs.getInt(16);
-      int result_fid2 = rs.getInt(17);
-      int result_capacity2 = rs.getInt(18);
-      int result_price2 = rs.getInt(19);
-
-      int total_price = result_price + result_price2;
-
-      int result_total_time = rs.getInt("total_time");
-
-      sb.append("Itinerary ").append(itineraryCount).append((": "))
-              .append("2 flight(s), ")
-              .append(result_total_time).append(" minutes")
-              .append('\n')
-              .append("ID: ").append(result_fid)
-              .append(" Day: ").append(result_dayOfMonth)
-              .append(" Carrier: ").append(result_carrierId)
-              .append(" Number: ").append(result_flightNum)
-              .append(" Origin: ").append(result_originCity)
-              .append(" Dest: ").append(result_destCity)
-              .append(" Duration: ").append(result_time)
-              .append(" Capacity: ").append(result_capacity)
-              .append(" Price: ").append(result_price)
-              .append('\n')
-              .append("ID: ").append(result_fid2)
-              .append(" Day: ").append(result_dayOfMonth2)
-              .append(" Carrier: ").append(result_carrierId2)
-              .append(" Number: ").append(result_flightNum2)
-              .append(" Origin: ").append(result_originCity2)
-              .append(" Dest: ").append(result_destCity2)
-              .append(" Duration: ").append(result_time2)
-              .append(" Capacity: ").append(result_capacity2)
-              .append(" Price: ").append(result_price2)
-              .append('\n');
-
-      itineraryUpdateStatement.clearParameters();
-      itineraryUpdateStatement.setInt(1, itineraryCount);
-      itineraryUpdateStatement.setInt(2, result_fid);
-      itineraryUpdateStatement.setInt(3, result_fid2);
-      itineraryUpdateStatement.setInt(4, result_dayOfMonth);
-      itineraryUpdateStatement.setInt(5, result_capacity);
-      itineraryUpdateStatement.setInt(6, result_capacity2);
-      itineraryUpdateStatement.setInt(7, total_price);
-      itineraryUpdateStatement.setString(8, result_carrierId);
-      itineraryUpdateStatement.setString(9, result_carrierId2);
-      itineraryUpdateStatement.setString(10, result_flightNum);
-      itineraryUpdateStatement.setString(11, result_flightNum2);
-      itineraryUpdateStatement.setString(12, result_originCity);
-      itineraryUpdateStatement.setString(13, result_originCity2);
-      itineraryUpdateStatement.setString(14, result_destCity);
-      itineraryUpdateStatement.setString(15, result_destCity2);
-      itineraryUpdateStatement.setInt(16, result_time);
-      itineraryUpdateStatement.setInt(17, result_time2);
-      itineraryUpdateStatement.setInt(18, result_price2);
-      itineraryUpdateStatement.setInt(19, 1);
-      itineraryUpdateStatement.executeUpdate();
-
-      itineraryCount++;
+      Flight first = new Flight();
+      first.dayOfMonth = rs.getInt(1);
+      first.carrierId = rs.getString(2);
+      first.flightNum = rs.getString(3);
+      first.originCity = rs.getString(4);
+      first.destCity = rs.getString(5);
+      first.time = rs.getInt(6);
+      first.fid = rs.getInt(7);
+      first.capacity = rs.getInt(8);
+      first.price = rs.getInt(9);
+      first.cancelled = rs.getInt(10);
+
+      Flight second = new Flight();
+      second.dayOfMonth = rs.getInt(11);
+      second.carrierId = rs.getString(12);
+      second.flightNum = rs.getString(13);
+      second.originCity = rs.getString(14);
+      second.destCity = rs.getString(15);
+      second.time = rs.getInt(16);
+      second.fid = rs.getInt(17);
+      second.capacity = rs.getInt(18);
+      second.price = rs.getInt(19);
+      second.cancelled = rs.getInt(20);
+
+      result.add(new Itinerary(first, second));
     }
     rs.close();
-    return result + sb.toString();
+    return result;
   }
 }
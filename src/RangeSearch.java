@@ -0,0 +1,104 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Searches a range of days of a {@link FlightIndex} in parallel.
+ *
+ * The range is split in halves until single days are left; each day computes its own
+ * top-K by total time and the halves are merged back, keeping only the best K of each
+ * merge. The index is read-only, so the days can be searched concurrently.
+ */
+public class RangeSearch extends RecursiveTask<List<Itinerary>>
+{
+  private static final long serialVersionUID = 1L;
+
+  private final FlightIndex index;
+  private final String originCity;
+  private final String destinationCity;
+  private final boolean directFlight;
+  private final int firstDay;
+  private final int lastDay;
+  private final int numberOfItineraries;
+
+  private RangeSearch(FlightIndex index, String originCity, String destinationCity, boolean directFlight,
+                      int firstDay, int lastDay, int numberOfItineraries)
+  {
+    this.index = index;
+    this.originCity = originCity;
+    this.destinationCity = destinationCity;
+    this.directFlight = directFlight;
+    this.firstDay = firstDay;
+    this.lastDay = lastDay;
+    this.numberOfItineraries = numberOfItineraries;
+  }
+
+  /**
+   * Returns the best {@code numberOfItineraries} itineraries from {@code firstDay} to
+   * {@code lastDay} (inclusive), ordered by total time and then by the fid of each leg.
+   */
+  public static List<Itinerary> search(FlightIndex index, String originCity, String destinationCity,
+                                       boolean directFlight, int firstDay, int lastDay, int numberOfItineraries)
+  {
+    firstDay = Math.max(firstDay, 1);
+    lastDay = Math.min(lastDay, FlightIndex.DAYS_IN_MONTH);
+    if (firstDay > lastDay || numberOfItineraries <= 0) {
+      return new ArrayList<>();
+    }
+    return ForkJoinPool.commonPool().invoke(new RangeSearch(index, originCity, destinationCity, directFlight,
+            firstDay, lastDay, numberOfItineraries));
+  }
+
+  /**
+   * Combines two result lists into the best {@code numberOfItineraries} of both, ordered by
+   * total time and then by the fid of each leg.
+   */
+  static List<Itinerary> merge(List<Itinerary> a, List<Itinerary> b, int numberOfItineraries)
+  {
+    List<Itinerary> merged = new ArrayList<>(a.size() + b.size());
+    merged.addAll(a);
+    merged.addAll(b);
+    Collections.sort(merged, Itinerary.BY_TOTAL_TIME);
+    if (merged.size() > numberOfItineraries) {
+      return new ArrayList<>(merged.subList(0, numberOfItineraries));
+    }
+    return merged;
+  }
+
+  @Override
+  protected List<Itinerary> compute()
+  {
+    if (firstDay == lastDay) {
+      return searchDay(firstDay);
+    }
+    int middle = (firstDay + lastDay) >>> 1;
+    RangeSearch left = new RangeSearch(index, originCity, destinationCity, directFlight, firstDay, middle,
+            numberOfItineraries);
+    RangeSearch right = new RangeSearch(index, originCity, destinationCity, directFlight, middle + 1, lastDay,
+            numberOfItineraries);
+    right.fork();
+    List<Itinerary> leftResult = left.compute();
+    return merge(leftResult, right.join(), numberOfItineraries);
+  }
+
+  // top-K of a single day, direct and one-stop ranked together
+  private List<Itinerary> searchDay(int dayOfMonth)
+  {
+    List<Itinerary> direct;
+    try {
+      direct = ItinerarySearch.search(index, originCity, destinationCity, true, dayOfMonth, numberOfItineraries);
+    } catch (SQLException error) {
+      // only thrown for a negative number of itineraries, which search() rules out
+      throw new IllegalArgumentException(error);
+    }
+    if (directFlight) {
+      return direct;
+    }
+    List<Itinerary> oneStop = ItinerarySearch.oneStop(index, index.cityKey(originCity),
+            index.cityKey(destinationCity), dayOfMonth, numberOfItineraries);
+    return merge(direct, oneStop, numberOfItineraries);
+  }
+}
@@ -0,0 +1,199 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * One row of RESERVATIONS: a booked itinerary of one or two flights. The table only keeps
+ * the flights' IDs; the rest of each flight is read from FLIGHTS along with the row.
+ *
+ * For a direct reservation the second flight's numbers are -1 and its strings empty. A
+ * group booking reserves several seats on the same flights, paying for all of them.
+ */
+public class Reservation
+{
+  public final int id;
+  public boolean paid;
+  public final int fid1;
+  public final int fid2;
+  public final int dayOfMonth;
+  public final int totalPrice;
+  public final int capacity1;
+  public final int capacity2;
+  public final String carrier1;
+  public final String carrier2;
+  public final String flightNum1;
+  public final String flightNum2;
+  public final String originCity1;
+  public final String originCity2;
+  public final String destCity1;
+  public final String destCity2;
+  public final int duration1;
+  public final int duration2;
+  public final int price2;
+  public final boolean direct;
+  public final int seats;
+
+  /** A new, unpaid reservation of {@code seats} seats on {@code itinerary}, which has one or two flights. */
+  public Reservation(int id, Itinerary itinerary, int seats)
+  {
+    QuerySearchOnly.Flight first = itinerary.flight(0);
+    QuerySearchOnly.Flight second = itinerary.isDirect() ? null : itinerary.flight(1);
+    this.id = id;
+    this.paid = false;
+    this.fid1 = first.fid;
+    this.fid2 = second == null ? -1 : second.fid;
+    this.dayOfMonth = itinerary.dayOfMonth();
+    this.totalPrice = itinerary.totalPrice() * seats;
+    this.capacity1 = first.capacity;
+    this.capacity2 = second == null ? -1 : second.capacity;
+    this.carrier1 = first.carrierId;
+    this.carrier2 = second == null ? "" : second.carrierId;
+    this.flightNum1 = first.flightNum;
+    this.flightNum2 = second == null ? "" : second.flightNum;
+    this.originCity1 = first.originCity;
+    this.originCity2 = second == null ? "" : second.originCity;
+    this.destCity1 = first.destCity;
+    this.destCity2 = second == null ? "" : second.destCity;
+    this.duration1 = first.time;
+    this.duration2 = second == null ? -1 : second.time;
+    this.price2 = second == null ? -1 : second.price;
+    this.direct = second == null;
+    this.seats = seats;
+  }
+
+  /** An unpaid reservation with the given columns. */
+  public Reservation(int id, int fid1, int fid2, int dayOfMonth, int totalPrice, int capacity1, int capacity2,
+                     String carrier1, String carrier2, String flightNum1, String flightNum2, String originCity1,
+                     String originCity2, String destCity1, String destCity2, int duration1, int duration2, int price2,
+                     boolean direct, int seats)
+  {
+    this.id = id;
+    this.paid = false;
+    this.fid1 = fid1;
+    this.fid2 = fid2;
+    this.dayOfMonth = dayOfMonth;
+    this.totalPrice = totalPrice;
+    this.capacity1 = capacity1;
+    this.capacity2 = capacity2;
+    this.carrier1 = carrier1;
+    this.carrier2 = carrier2;
+    this.flightNum1 = flightNum1;
+    this.flightNum2 = flightNum2;
+    this.originCity1 = originCity1;
+    this.originCity2 = originCity2;
+    this.destCity1 = destCity1;
+    this.destCity2 = destCity2;
+    this.duration1 = duration1;
+    this.duration2 = duration2;
+    this.price2 = price2;
+    this.direct = direct;
+    this.seats = seats;
+  }
+
+  /**
+   * Columns read by {@link #Reservation(ResultSet)}, from {@link #TABLES}: the reservation's
+   * own columns and the display columns of its flights.
+   */
+  public static final String COLUMNS = "R.reservation_id, R.paid, R.fid1, R.fid2, R.day, R.total_price, R.seats, "
+          + "F1.capacity AS capacity1, F1.carrier_id AS carrier1, F1.flight_num AS flight_num1, "
+          + "F1.origin_city AS origin_city1, F1.dest_city AS dest_city1, F1.actual_time AS duration1, "
+          + "F2.capacity AS capacity2, F2.carrier_id AS carrier2, F2.flight_num AS flight_num2, "
+          + "F2.origin_city AS origin_city2, F2.dest_city AS dest_city2, F2.actual_time AS duration2, "
+          + "F2.price AS price2";
+
+  /** RESERVATIONS as R, joined with the flights of each reservation. */
+  public static final String TABLES = "Reservations AS R JOIN Flights AS F1 ON F1.fid = R.fid1 "
+          + "LEFT JOIN Flights AS F2 ON F2.fid = R.fid2";
+
+  /** Reads the reservation at the current row of {@code rs}, selected with {@link #COLUMNS}. */
+  public Reservation(ResultSet rs) throws SQLException
+  {
+    this.id = rs.getInt("reservation_id");
+    this.paid = rs.getInt("paid") == 1;
+    this.fid1 = rs.getInt("fid1");
+    this.fid2 = rs.getInt("fid2");
+    this.dayOfMonth = rs.getInt("day");
+    this.totalPrice = rs.getInt("total_price");
+    this.seats = rs.getInt("seats");
+    this.direct = fid2 < 0;
+    this.capacity1 = rs.getInt("capacity1");
+    this.carrier1 = rs.getString("carrier1");
+    this.flightNum1 = rs.getString("flight_num1");
+    this.originCity1 = rs.getString("origin_city1");
+    this.destCity1 = rs.getString("dest_city1");
+    this.duration1 = rs.getInt("duration1");
+    this.capacity2 = direct ? -1 : rs.getInt("capacity2");
+    this.carrier2 = direct ? "" : rs.getString("carrier2");
+    this.flightNum2 = direct ? "" : rs.getString("flight_num2");
+    this.originCity2 = direct ? "" : rs.getString("origin_city2");
+    this.destCity2 = direct ? "" : rs.getString("dest_city2");
+    this.duration2 = direct ? -1 : rs.getInt("duration2");
+    this.price2 = direct ? -1 : rs.getInt("price2");
+  }
+
+  /** Price of a seat on the first flight: the total covers every seat on both flights. */
+  public int price1()
+  {
+    return direct ? totalPrice / seats : totalPrice / seats - price2;
+  }
+
+  /** Appends the reservation as listed by {@code transaction_reservations}. */
+  public StringBuilder appendTo(StringBuilder sb)
+  {
+    try {
+      writeTo(sb);
+    } catch (IOException error) {
+      // StringBuilder never throws
+      throw new UncheckedIOException(error);
+    }
+    return sb;
+  }
+
+  /** Writes the reservation as listed by {@code transaction_reservations}. */
+  public void writeTo(Appendable out) throws IOException
+  {
+    out.append("Reservation ");
+    appendInt(out, id);
+    out.append(" paid: ").append(paid ? "true" : "false");
+    if (seats != 1) {
+      out.append(" seats: ");
+      appendInt(out, seats);
+    }
+    out.append(":\n");
+    writeFlight(out, fid1, carrier1, flightNum1, originCity1, destCity1, duration1, capacity1, price1());
+    if (!direct) {
+      writeFlight(out, fid2, carrier2, flightNum2, originCity2, destCity2, duration2, capacity2, price2);
+    }
+  }
+
+  private void writeFlight(Appendable out, int fid, String carrier, String flightNum, String originCity,
+                           String destCity, int duration, int capacity, int price) throws IOException
+  {
+    out.append("ID: ");
+    appendInt(out, fid);
+    out.append(" Day: ");
+    appendInt(out, dayOfMonth);
+    out.append(" Carrier: ").append(carrier)
+            .append(" Number: ").append(flightNum)
+            .append(" Origin: ").append(originCity)
+            .append(" Dest: ").append(destCity)
+            .append(" Duration: ");
+    appendInt(out, duration);
+    out.append(" Capacity: ");
+    appendInt(out, capacity);
+    out.append(" Price: ");
+    appendInt(out, price);
+    out.append("\n");
+  }
+
+  // StringBuilder formats ints in place, other sinks get a string
+  private static void appendInt(Appendable out, int value) throws IOException
+  {
+    if (out instanceof StringBuilder) {
+      ((StringBuilder) out).append(value);
+    } else {
+      out.append(Integer.toString(value));
+    }
+  }
+}
@@ -0,0 +1,128 @@
+import java.sql.*;
+import java.util.Properties;
+
+/**
+ * Hands out reservation IDs from the ReservationIds sequence table in blocks (hi/lo).
+ *
+ * The table holds a single row with the next ID no process has claimed yet. Claiming a
+ * block advances it by the block size in one autocommitted UPDATE on the allocator's own
+ * connection, so the claim is never rolled back with a failed booking and never holds
+ * locks inside a booking transaction. IDs within a block are then handed out from memory.
+ *
+ * IDs are never reused, even after a cancellation. Within a process they are handed out in
+ * strictly increasing order; processes sharing the database each draw from their own blocks.
+ * IDs are not given back: those of a booking that does not commit, and those of a block
+ * that are not used before the process exits, are skipped and leave a gap.
+ */
+public class ReservationIdAllocator
+{
+  private static final String CLAIM_BLOCK_SQL =
+          "UPDATE ReservationIds SET next_id = next_id + ? OUTPUT deleted.next_id";
+  private static final String RESET_SQL = "UPDATE ReservationIds SET next_id = 1";
+
+  private static ReservationIdAllocator shared;
+
+  private final Connection conn;
+  private final PreparedStatement claimBlockStatement;
+  private final PreparedStatement resetStatement;
+  private final int blockSize;
+
+  // next ID to hand out, and the end (exclusive) of the current block
+  private int next;
+  private int limit;
+
+  private long blocks;
+
+  public ReservationIdAllocator(Connection conn, int blockSize) throws SQLException
+  {
+    this.conn = conn;
+    this.blockSize = Math.max(blockSize, 1);
+    conn.setAutoCommit(true);
+    claimBlockStatement = conn.prepareStatement(CLAIM_BLOCK_SQL);
+    resetStatement = conn.prepareStatement(RESET_SQL);
+  }
+
+  /**
+   * Returns the allocator shared by all sessions, opening its connection with
+   * {@code configProps} the first time it is requested.
+   */
+  public static synchronized ReservationIdAllocator shared(Properties configProps, int blockSize) throws Exception
+  {
+    if (shared == null) {
+      shared = new ReservationIdAllocator(QuerySearchOnly.connect(configProps), blockSize);
+    }
+    return shared;
+  }
+
+  /** Returns a reservation ID that was never handed out before. */
+  public int next() throws SQLException
+  {
+    return next(1)[0];
+  }
+
+  /**
+   * Returns {@code count} reservation IDs that were never handed out before, in increasing
+   * order. The IDs left in the current block come first, and a new block is only claimed
+   * for the ones still missing.
+   */
+  public synchronized int[] next(int count) throws SQLException
+  {
+    if (count < 1) {
+      throw new IllegalArgumentException("count " + count);
+    }
+    int[] ids = new int[count];
+    int left = Math.min(limit - next, count);
+    int leftFrom = next;
+    if (left < count) {
+      // claimed before anything is taken, so that nothing is skipped if the claim fails
+      claimBlock(Math.max(blockSize, count - left));
+    } else {
+      next += left;
+    }
+    for (int i = 0; i < left; i++) {
+      ids[i] = leftFrom + i;
+    }
+    for (int i = left; i < count; i++) {
+      ids[i] = next++;
+    }
+    return ids;
+  }
+
+  private void claimBlock(int size) throws SQLException
+  {
+    claimBlockStatement.clearParameters();
+    claimBlockStatement.setInt(1, size);
+    ResultSet results = claimBlockStatement.executeQuery();
+    if (!results.next()) {
+      results.close();
+      throw new SQLException("ReservationIds has no row");
+    }
+    next = results.getInt(1);
+    limit = next + size;
+    results.close();
+    blocks++;
+  }
+
+  /**
+   * Starts again from ID 1. Only for clearing the tables, when no reservation is left and
+   * no other process is booking.
+   */
+  public synchronized void reset() throws SQLException
+  {
+    resetStatement.executeUpdate();
+    next = 0;
+    limit = 0;
+  }
+
+  public void close() throws SQLException
+  {
+    conn.close();
+  }
+
+  @Override
+  public synchronized String toString()
+  {
+    return "ReservationIdAllocator{next=" + next + ", limit=" + limit + ", blockSize=" + blockSize
+            + ", blocks=" + blocks + "}";
+  }
+}
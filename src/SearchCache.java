@@ -0,0 +1,224 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * LRU cache of search results, shared by every session in the JVM.
+ *
+ * Entries are keyed by (origin, destination, direct, day). Each entry remembers how many
+ * itineraries were asked for when it was computed, so an answer for a larger
+ * {@code numberOfItineraries} also serves every smaller request: the first K itineraries
+ * of a top-K' result (K <= K') are exactly the top-K result. An entry that returned fewer
+ * itineraries than were asked for is complete and serves any request.
+ *
+ * The cached flights are FLIGHTS rows, which bookings do not change (seats taken are kept
+ * in BookedSeats), so entries stay valid across bookings and cancellations. Entries that
+ * include a flight are dropped when the flight itself changes, see
+ * {@link #invalidateFlight(int)}. A result computed while a flight changed is not cached:
+ * {@link #put} takes the {@link #generation()} read before the search started.
+ */
+public class SearchCache
+{
+  private static SearchCache shared;
+
+  private static class Entry
+  {
+    final List<Itinerary> itineraries;
+    final int numberOfItineraries;
+
+    Entry(List<Itinerary> itineraries, int numberOfItineraries)
+    {
+      this.itineraries = itineraries;
+      this.numberOfItineraries = numberOfItineraries;
+    }
+
+    boolean isComplete()
+    {
+      return itineraries.size() < numberOfItineraries;
+    }
+  }
+
+  private final int capacity;
+  private final LinkedHashMap<String, Entry> entries;
+  // fid -> keys of the entries containing that flight
+  private final Map<Integer, Set<String>> keysByFlight = new HashMap<>();
+  // bumped by every invalidation, see put()
+  private long generation;
+
+  private long hits;
+  private long misses;
+  private long evictions;
+  private long invalidations;
+
+  public SearchCache(int capacity)
+  {
+    this.capacity = capacity;
+    this.entries = new LinkedHashMap<>(16, 0.75f, true);
+  }
+
+  /**
+   * Returns the cache shared by all sessions, creating it with the given capacity the
+   * first time it is requested.
+   */
+  public static synchronized SearchCache shared(int capacity)
+  {
+    if (shared == null) {
+      shared = new SearchCache(capacity);
+    }
+    return shared;
+  }
+
+  static String key(String originCity, String destinationCity, boolean directFlight, int dayOfMonth)
+  {
+    return FlightIndex.normalizeCity(originCity) + '\n' + FlightIndex.normalizeCity(destinationCity) + '\n'
+            + (directFlight ? 1 : 0) + '\n' + dayOfMonth;
+  }
+
+  /**
+   * Returns the cached top-{@code numberOfItineraries} result, or null if it is not cached.
+   */
+  public synchronized List<Itinerary> get(String originCity, String destinationCity, boolean directFlight,
+                                          int dayOfMonth, int numberOfItineraries)
+  {
+    Entry entry = entries.get(key(originCity, destinationCity, directFlight, dayOfMonth));
+    if (entry == null || (entry.numberOfItineraries < numberOfItineraries && !entry.isComplete())) {
+      misses++;
+      return null;
+    }
+    hits++;
+    int n = Math.min(numberOfItineraries, entry.itineraries.size());
+    return new ArrayList<>(entry.itineraries.subList(0, n));
+  }
+
+  /**
+   * The number of invalidations so far, to be read before running a search whose result
+   * is then passed to {@link #put}.
+   */
+  public synchronized long generation()
+  {
+    return generation;
+  }
+
+  /**
+   * Caches the result of a search, unless a result for at least as many itineraries is
+   * already cached, or a flight changed since {@code generation} was read: the result
+   * may then hold the flight as it was.
+   */
+  public synchronized void put(String originCity, String destinationCity, boolean directFlight, int dayOfMonth,
+                               int numberOfItineraries, List<Itinerary> itineraries, long generation)
+  {
+    if (capacity <= 0 || generation != this.generation) {
+      return;
+    }
+    String key = key(originCity, destinationCity, directFlight, dayOfMonth);
+    Entry existing = entries.get(key);
+    if (existing != null) {
+      if (existing.numberOfItineraries >= numberOfItineraries || existing.isComplete()) {
+        return;
+      }
+      remove(key);
+    }
+
+    Entry entry = new Entry(new ArrayList<>(itineraries), numberOfItineraries);
+    entries.put(key, entry);
+    for (Itinerary itinerary : entry.itineraries) {
+      for (int i = 0; i < itinerary.size(); i++) {
+        int fid = itinerary.flight(i).fid;
+        Set<String> keys = keysByFlight.get(fid);
+        if (keys == null) {
+          keys = new HashSet<>();
+          keysByFlight.put(fid, keys);
+        }
+        keys.add(key);
+      }
+    }
+
+    while (entries.size() > capacity) {
+      remove(entries.keySet().iterator().next());
+      evictions++;
+    }
+  }
+
+  /**
+   * Drops every cached result that includes flight {@code fid}. Called whenever a FLIGHTS
+   * row is canceled, reinstated or changes capacity.
+   */
+  public synchronized void invalidateFlight(int fid)
+  {
+    generation++;
+    Set<String> keys = keysByFlight.remove(fid);
+    if (keys == null) {
+      return;
+    }
+    for (String key : new ArrayList<>(keys)) {
+      if (remove(key)) {
+        invalidations++;
+      }
+    }
+  }
+
+  public synchronized void clear()
+  {
+    generation++;
+    entries.clear();
+    keysByFlight.clear();
+  }
+
+  public synchronized long hits()
+  {
+    return hits;
+  }
+
+  public synchronized long misses()
+  {
+    return misses;
+  }
+
+  public synchronized long evictions()
+  {
+    return evictions;
+  }
+
+  public synchronized long invalidations()
+  {
+    return invalidations;
+  }
+
+  public synchronized int size()
+  {
+    return entries.size();
+  }
+
+  @Override
+  public synchronized String toString()
+  {
+    return "SearchCache size: " + entries.size() + "/" + capacity + " hits: " + hits + " misses: " + misses
+            + " evictions: " + evictions + " invalidations: " + invalidations;
+  }
+
+  private boolean remove(String key)
+  {
+    Entry entry = entries.remove(key);
+    if (entry == null) {
+      return false;
+    }
+    // drop the key from the reverse index of every flight in the entry
+    for (Itinerary itinerary : entry.itineraries) {
+      for (int i = 0; i < itinerary.size(); i++) {
+        int fid = itinerary.flight(i).fid;
+        Set<String> keys = keysByFlight.get(fid);
+        if (keys != null) {
+          keys.remove(key);
+          if (keys.isEmpty()) {
+            keysByFlight.remove(fid);
+          }
+        }
+      }
+    }
+    return true;
+  }
+}
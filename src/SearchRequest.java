@@ -0,0 +1,28 @@
+/**
+ * Parameters of one search in a batch, see {@link QuerySearchOnly#searchBatch(java.util.List)}.
+ */
+public class SearchRequest
+{
+  public final String originCity;
+  public final String destinationCity;
+  public final boolean directFlight;
+  public final int dayOfMonth;
+  public final int numberOfItineraries;
+
+  public SearchRequest(String originCity, String destinationCity, boolean directFlight, int dayOfMonth,
+                       int numberOfItineraries)
+  {
+    this.originCity = originCity;
+    this.destinationCity = destinationCity;
+    this.directFlight = directFlight;
+    this.dayOfMonth = dayOfMonth;
+    this.numberOfItineraries = numberOfItineraries;
+  }
+
+  @Override
+  public String toString()
+  {
+    return originCity + " -> " + destinationCity + (directFlight ? " direct" : "") + " day " + dayOfMonth
+            + " top " + numberOfItineraries;
+  }
+}
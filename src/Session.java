@@ -0,0 +1,49 @@
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What the service remembers about one client between its commands: who is logged in,
+ * their cached balance and reservations, and the itineraries of their last search.
+ *
+ * A session holds no connection or statement, so it costs a few hundred bytes plus its
+ * search results. Commands run for it on any {@link Query}, see
+ * {@link QuerySearchOnly#attach(Session)}, one command at a time.
+ */
+public class Session
+{
+  /** The key the session is looked up by, or null for a session that is not registered. */
+  public final String token;
+
+  // null until login
+  String username;
+  UserCache user;
+  // signed at login, see SessionTokens
+  String loginToken;
+
+  // results of the last search, indexed by itinerary number
+  List<Itinerary> itineraries = Collections.emptyList();
+
+  // last reservation booked and paid in this session
+  int lastReservationId;
+  int lastPaidId;
+
+  // System.nanoTime() of the last command, see SessionManager
+  volatile long lastUsed = System.nanoTime();
+
+  public Session(String token)
+  {
+    this.token = token;
+  }
+
+  /** The logged in user, or null. */
+  public String username()
+  {
+    return username;
+  }
+
+  @Override
+  public String toString()
+  {
+    return "Session{username=" + username + ", itineraries=" + itineraries.size() + "}";
+  }
+}
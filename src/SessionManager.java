@@ -0,0 +1,234 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the commands of many sessions on a few {@link Query} objects.
+ *
+ * A {@link Session} only holds what a client is remembered by, and is looked up by its
+ * random token. To run a command, the manager takes an idle query, attaches the session to
+ * it, runs the command and gives the query back, so there are only as many queries, each
+ * with its statements and possibly a connection, as there are commands running at the same
+ * time. The commands of one session run one at a time, those of different sessions in
+ * parallel.
+ *
+ * Sessions without a command for {@code flightservice.session_ttl_minutes} are dropped by a
+ * background thread, or when they are next looked up.
+ */
+public class SessionManager
+{
+  private final String configFilename;
+  private final long ttlNanos;
+  private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+  private final SecureRandom random = new SecureRandom();
+  private final ScheduledExecutorService reaper;
+
+  // queries not running a command, most recently used last, and all of them
+  private final ArrayDeque<Query> idle = new ArrayDeque<>();
+  private final List<Query> queries = new ArrayList<>();
+
+  private final AtomicLong opened = new AtomicLong();
+  private final AtomicLong evicted = new AtomicLong();
+  private final AtomicLong commands = new AtomicLong();
+
+  /**
+   * Opens a first query with the settings in {@code configFilename}, clearing the tables as
+   * opening a {@link Query} always does.
+   */
+  public SessionManager(String configFilename) throws Exception
+  {
+    this.configFilename = configFilename;
+    Query first = newQuery(true);
+    idle.add(first);
+    ttlNanos = TimeUnit.MINUTES.toNanos(
+            Long.parseLong(first.configProps.getProperty("flightservice.session_ttl_minutes", "30").trim()));
+
+    reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+    {
+      @Override
+      public Thread newThread(Runnable r)
+      {
+        Thread thread = new Thread(r, "session-reaper");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    long period = Math.max(TimeUnit.NANOSECONDS.toMillis(ttlNanos) / 4, 1000);
+    reaper.scheduleWithFixedDelay(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        evictIdle();
+      }
+    }, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  private Query newQuery(boolean clearTables) throws Exception
+  {
+    Query query = new Query(configFilename);
+    query.openConnection();
+    query.prepareStatements(clearTables);
+    synchronized (this) {
+      queries.add(query);
+    }
+    return query;
+  }
+
+  /** Starts a new session, not logged in. */
+  public Session open()
+  {
+    byte[] bytes = new byte[16];
+    random.nextBytes(bytes);
+    Session session = new Session(Base64.getUrlEncoder().withoutPadding().encodeToString(bytes));
+    sessions.put(session.token, session);
+    opened.incrementAndGet();
+    return session;
+  }
+
+  /** Returns the session with {@code token}, or null if there is none or it expired. */
+  public Session session(String token)
+  {
+    Session session = token == null ? null : sessions.get(token);
+    if (session == null) {
+      return null;
+    }
+    if (System.nanoTime() - session.lastUsed > ttlNanos) {
+      if (sessions.remove(token, session)) {
+        evicted.incrementAndGet();
+      }
+      return null;
+    }
+    return session;
+  }
+
+  /** Ends {@code session}: its token is no longer accepted. */
+  public void close(Session session)
+  {
+    sessions.remove(session.token, session);
+  }
+
+  /**
+   * Runs a command of the session with {@code token}, as
+   * {@link FlightService#execute(Query, String)} does.
+   */
+  public String execute(String token, String command)
+  {
+    Session session = session(token);
+    if (session == null) {
+      return "Unknown or expired session\n";
+    }
+    StringBuilder sb = new StringBuilder();
+    try {
+      execute(session, command, sb);
+    } catch (IOException error) {
+      // StringBuilder never throws
+      throw new UncheckedIOException(error);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Runs a command of {@code session} and writes its response to {@code out}, as
+   * {@link FlightService#execute(Query, String, Appendable)} does. The session is closed
+   * once a command ends it.
+   *
+   * @return false if the command ended the session
+   */
+  public boolean execute(Session session, String command, Appendable out) throws IOException
+  {
+    boolean more;
+    synchronized (session) {
+      session.lastUsed = System.nanoTime();
+      commands.incrementAndGet();
+      Query query;
+      try {
+        query = borrow();
+      } catch (Exception error) {
+        error.printStackTrace();
+        out.append("Failed to run command\n");
+        return true;
+      }
+      try {
+        query.attach(session);
+        more = FlightService.execute(query, command, out);
+      } finally {
+        // an idle query must not keep the session alive
+        query.attach(new Session(null));
+        release(query);
+      }
+      session.lastUsed = System.nanoTime();
+    }
+    if (!more) {
+      close(session);
+    }
+    return more;
+  }
+
+  private Query borrow() throws Exception
+  {
+    synchronized (this) {
+      if (!idle.isEmpty()) {
+        return idle.pollLast();
+      }
+    }
+    // opened outside the lock, the other commands need not wait for it
+    return newQuery(false);
+  }
+
+  private synchronized void release(Query query)
+  {
+    idle.addLast(query);
+  }
+
+  /** Drops the sessions without a command for longer than the TTL. */
+  public void evictIdle()
+  {
+    long now = System.nanoTime();
+    for (Iterator<Session> it = sessions.values().iterator(); it.hasNext(); ) {
+      if (now - it.next().lastUsed > ttlNanos) {
+        it.remove();
+        evicted.incrementAndGet();
+      }
+    }
+  }
+
+  /** How many sessions are open. */
+  public int size()
+  {
+    return sessions.size();
+  }
+
+  /** Stops the background eviction and closes the connections of the queries. */
+  public void close() throws Exception
+  {
+    reaper.shutdownNow();
+    List<Query> all;
+    synchronized (this) {
+      all = new ArrayList<>(queries);
+      queries.clear();
+      idle.clear();
+    }
+    for (Query query : all) {
+      query.closeConnection();
+    }
+  }
+
+  @Override
+  public synchronized String toString()
+  {
+    return "SessionManager{sessions=" + sessions.size() + ", queries=" + queries.size() + ", idle=" + idle.size()
+            + ", opened=" + opened + ", evicted=" + evicted + ", commands=" + commands + "}";
+  }
+}
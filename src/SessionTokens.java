@@ -0,0 +1,113 @@
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Properties;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Signed session tokens, handed out at login and checked without the database.
+ *
+ * A token is {@code <username>.<expiry>.<signature>}: the username in URL-safe base64, the
+ * expiry in milliseconds since the epoch in base 36, and the HMAC-SHA256 of both. The key is
+ * {@code flightservice.session_token_key} (base64), shared by the processes that must accept
+ * each other's tokens, or a random key of this process if that is empty. The signature also
+ * covers a generation that {@link #revokeAll()} increments, so clearing the tables revokes
+ * every token handed out before.
+ */
+public class SessionTokens
+{
+  private static final String ALGORITHM = "HmacSHA256";
+
+  private static SessionTokens shared;
+
+  private final SecretKeySpec key;
+  private final long ttlMillis;
+  private volatile int generation;
+
+  public SessionTokens(byte[] key, long ttlMillis)
+  {
+    this.key = new SecretKeySpec(key, ALGORITHM);
+    this.ttlMillis = ttlMillis;
+  }
+
+  /**
+   * Returns the tokens shared by all sessions, set up with {@code configProps} the first
+   * time they are requested.
+   */
+  public static synchronized SessionTokens shared(Properties configProps)
+  {
+    if (shared == null) {
+      String configured = configProps.getProperty("flightservice.session_token_key", "").trim();
+      byte[] key;
+      if (configured.isEmpty()) {
+        key = new byte[32];
+        new SecureRandom().nextBytes(key);
+      } else {
+        key = Base64.getDecoder().decode(configured);
+      }
+      shared = new SessionTokens(key, Long.parseLong(
+              configProps.getProperty("flightservice.session_token_ttl_minutes", "1440").trim()) * 60 * 1000);
+    }
+    return shared;
+  }
+
+  /** A new token for {@code username}, valid for the TTL. */
+  public String issue(String username)
+  {
+    String payload = Base64.getUrlEncoder().withoutPadding().encodeToString(username.getBytes(StandardCharsets.UTF_8))
+            + "." + Long.toString(System.currentTimeMillis() + ttlMillis, 36);
+    return payload + "." + Base64.getUrlEncoder().withoutPadding().encodeToString(sign(payload, generation));
+  }
+
+  /** Returns the username of {@code token}, or null if it is malformed, forged, expired or revoked. */
+  public String verify(String token)
+  {
+    int signatureStart = token.lastIndexOf('.');
+    int expiryStart = signatureStart <= 0 ? -1 : token.lastIndexOf('.', signatureStart - 1);
+    if (expiryStart <= 0) {
+      return null;
+    }
+    String payload = token.substring(0, signatureStart);
+    try {
+      byte[] signature = Base64.getUrlDecoder().decode(token.substring(signatureStart + 1));
+      if (!MessageDigest.isEqual(signature, sign(payload, generation))) {
+        return null;
+      }
+      if (Long.parseLong(token.substring(expiryStart + 1, signatureStart), 36) < System.currentTimeMillis()) {
+        return null;
+      }
+      return new String(Base64.getUrlDecoder().decode(token.substring(0, expiryStart)), StandardCharsets.UTF_8);
+    } catch (IllegalArgumentException error) {
+      // not base64, or not a number
+      return null;
+    }
+  }
+
+  /** Revokes every token issued so far. */
+  public void revokeAll()
+  {
+    synchronized (this) {
+      generation++;
+    }
+  }
+
+  private byte[] sign(String payload, int generation)
+  {
+    try {
+      // a Mac is not thread-safe and cheap to set up
+      Mac mac = Mac.getInstance(ALGORITHM);
+      mac.init(key);
+      mac.update((byte) (generation >>> 24));
+      mac.update((byte) (generation >>> 16));
+      mac.update((byte) (generation >>> 8));
+      mac.update((byte) generation);
+      return mac.doFinal(payload.getBytes(StandardCharsets.UTF_8));
+    } catch (GeneralSecurityException error) {
+      // every JVM has HmacSHA256
+      throw new IllegalStateException(error);
+    }
+  }
+}
@@ -0,0 +1,46 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Assigns a small int code to each distinct string, so that columns with few distinct
+ * values (cities, carriers) can be stored as int arrays instead of one String per row.
+ */
+public class StringDictionary
+{
+  private final Map<String, Integer> codes = new HashMap<>();
+  private String[] values = new String[64];
+  private int size;
+
+  /** Returns the code of {@code value}, adding it to the dictionary if needed. */
+  public int encode(String value)
+  {
+    Integer code = codes.get(value);
+    if (code == null) {
+      if (size == values.length) {
+        values = Arrays.copyOf(values, size * 2);
+      }
+      code = size;
+      values[size++] = value;
+      codes.put(value, code);
+    }
+    return code;
+  }
+
+  /** Returns the code of {@code value}, or -1 if it is not in the dictionary. */
+  public int lookup(String value)
+  {
+    Integer code = codes.get(value);
+    return code == null ? -1 : code;
+  }
+
+  public String decode(int code)
+  {
+    return values[code];
+  }
+
+  public int size()
+  {
+    return size;
+  }
+}
@@ -0,0 +1,166 @@
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel: timers that fire on a given tick, for any number of timers.
+ *
+ * Level 0 has one slot per tick for the next {@code SLOTS} ticks, and each level above has
+ * slots {@code SLOTS} times as wide. A timer goes into the lowest level whose span covers
+ * its deadline, and when the wheel reaches one of its higher-level slots the timers of that
+ * slot move down to the lower levels. Scheduling and canceling take constant time, and
+ * each timer moves down at most once per level, so advancing the wheel costs the timers that
+ * fire plus a constant per tick, however many timers are waiting. Deadlines beyond the top
+ * level are kept at its last slot and placed again as the wheel turns.
+ *
+ * The wheel is not thread-safe.
+ */
+public class TimingWheel<T>
+{
+  private static final int SLOT_BITS = 6;
+  private static final int SLOTS = 1 << SLOT_BITS;
+  private static final int SLOT_MASK = SLOTS - 1;
+  private static final int LEVELS = 5;
+
+  /** A scheduled item, in the list of its slot. */
+  public static final class Timer<T>
+  {
+    public final T item;
+    public final long deadline;
+    private Timer<T> prev;
+    private Timer<T> next;
+    private int level = -1;
+    private int slot;
+
+    private Timer(T item, long deadline)
+    {
+      this.item = item;
+      this.deadline = deadline;
+    }
+
+    /** Whether the timer is still waiting to fire. */
+    public boolean isScheduled()
+    {
+      return level >= 0;
+    }
+  }
+
+  // the first timer of each slot, by level and slot
+  @SuppressWarnings("unchecked")
+  private final Timer<T>[][] slots = (Timer<T>[][]) new Timer<?>[LEVELS][SLOTS];
+  private long tick;
+  private int size;
+
+  /** Starts the wheel at tick {@code tick}. */
+  public TimingWheel(long tick)
+  {
+    this.tick = tick;
+  }
+
+  /** The last tick the wheel was advanced to. */
+  public long tick()
+  {
+    return tick;
+  }
+
+  /** How many timers are waiting. */
+  public int size()
+  {
+    return size;
+  }
+
+  /**
+   * Schedules {@code item} to fire on tick {@code deadline}, or on the next advance if that
+   * tick has passed.
+   */
+  public Timer<T> schedule(T item, long deadline)
+  {
+    Timer<T> timer = new Timer<>(item, deadline);
+    // the current tick's slot has been emptied already
+    insert(timer, tick + 1);
+    size++;
+    return timer;
+  }
+
+  /** Removes {@code timer} if it has not fired yet. */
+  public void cancel(Timer<T> timer)
+  {
+    if (timer.isScheduled()) {
+      unlink(timer);
+      size--;
+    }
+  }
+
+  /**
+   * Moves the wheel to tick {@code now} and adds the items whose deadline is at or before it
+   * to {@code fired}, in no particular order.
+   */
+  public void advance(long now, List<T> fired)
+  {
+    while (tick < now) {
+      tick++;
+      // when a slot of a level is done, the next slot of the level above moves down
+      for (int level = 1; level < LEVELS && (tick & ((1L << (SLOT_BITS * level)) - 1)) == 0; level++) {
+        cascade(level, (int) (tick >>> (SLOT_BITS * level)) & SLOT_MASK);
+      }
+      int slot = (int) tick & SLOT_MASK;
+      for (Timer<T> timer = slots[0][slot]; timer != null; timer = slots[0][slot]) {
+        unlink(timer);
+        size--;
+        fired.add(timer.item);
+      }
+    }
+  }
+
+  private void cascade(int level, int slot)
+  {
+    Timer<T> timer = slots[level][slot];
+    slots[level][slot] = null;
+    while (timer != null) {
+      Timer<T> next = timer.next;
+      timer.prev = null;
+      timer.next = null;
+      timer.level = -1;
+      // cascading comes before the current tick's slot is emptied
+      insert(timer, tick);
+      timer = next;
+    }
+  }
+
+  // places the timer by its deadline, or on tick {@code earliest} if that is later
+  private void insert(Timer<T> timer, long earliest)
+  {
+    long deadline = Math.max(timer.deadline, earliest);
+    long delta = deadline - tick;
+    int level = 0;
+    while (level < LEVELS - 1 && delta >= 1L << (SLOT_BITS * (level + 1))) {
+      level++;
+    }
+    if (level == LEVELS - 1 && delta >= 1L << (SLOT_BITS * LEVELS)) {
+      // the last slot before the top level comes back around
+      deadline = tick + (1L << (SLOT_BITS * LEVELS)) - 1;
+    }
+    int slot = (int) (deadline >>> (SLOT_BITS * level)) & SLOT_MASK;
+    Timer<T> head = slots[level][slot];
+    timer.next = head;
+    if (head != null) {
+      head.prev = timer;
+    }
+    slots[level][slot] = timer;
+    timer.level = level;
+    timer.slot = slot;
+  }
+
+  private void unlink(Timer<T> timer)
+  {
+    if (timer.prev != null) {
+      timer.prev.next = timer.next;
+    } else {
+      slots[timer.level][timer.slot] = timer.next;
+    }
+    if (timer.next != null) {
+      timer.next.prev = timer.prev;
+    }
+    timer.prev = null;
+    timer.next = null;
+    timer.level = -1;
+  }
+}
@@ -0,0 +1,158 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that every timer of a {@link TimingWheel} fires once, on its deadline, however far
+ * away the deadline is.
+ */
+public class TimingWheelTest
+{
+  // around the span of each level: 64, 64^2, ... ticks
+  private static final long[] DELAYS = {
+          1, 2, 62, 63, 64, 65, 127, 128, 4095, 4096, 4097, 8191, 8192, 262143, 262144, 262145, 300000
+  };
+
+  /** Timers on both sides of each level boundary, advanced one tick at a time. */
+  @Test
+  public void firesOnDeadlineTickByTick()
+  {
+    for (long start : new long[]{0, 1, 63, 4090, 262100, (1L << 30) - 5, 1L << 40}) {
+      TimingWheel<Long> wheel = new TimingWheel<>(start);
+      for (long delay : DELAYS) {
+        wheel.schedule(start + delay, start + delay);
+      }
+      Set<Long> pending = new HashSet<>();
+      for (long delay : DELAYS) {
+        pending.add(start + delay);
+      }
+
+      List<Long> fired = new ArrayList<>();
+      for (long now = start + 1; now <= start + DELAYS[DELAYS.length - 1]; now++) {
+        wheel.advance(now, fired);
+        if (pending.remove(now)) {
+          assertEquals("start " + start + " tick " + now, Arrays.asList(now), fired);
+        } else {
+          assertTrue("start " + start + " tick " + now + " fired " + fired, fired.isEmpty());
+        }
+        fired.clear();
+      }
+      assertTrue(pending.isEmpty());
+      assertEquals(0, wheel.size());
+    }
+  }
+
+  /** Deadlines past the top level come back around until they are due. */
+  @Test
+  public void firesBeyondTopLevel()
+  {
+    TimingWheel<Long> wheel = new TimingWheel<>(7);
+    long[] deadlines = {7 + (1L << 30) - 1, 7 + (1L << 30), 7 + (1L << 30) + 1, 7 + (1L << 30) + 4097};
+    for (long deadline : deadlines) {
+      wheel.schedule(deadline, deadline);
+    }
+    List<Long> fired = new ArrayList<>();
+    for (long deadline : deadlines) {
+      wheel.advance(deadline - 1, fired);
+      assertTrue("before " + deadline + " fired " + fired, fired.isEmpty());
+      wheel.advance(deadline, fired);
+      assertEquals(Arrays.asList(deadline), fired);
+      fired.clear();
+    }
+    assertEquals(0, wheel.size());
+  }
+
+  /** A timer canceled after it moved down a level is gone from the wheel. */
+  @Test
+  public void cancelsAfterCascade()
+  {
+    TimingWheel<String> wheel = new TimingWheel<>(0);
+    TimingWheel.Timer<String> canceled = wheel.schedule("canceled", 5000);
+    TimingWheel.Timer<String> kept = wheel.schedule("kept", 5000);
+    List<String> fired = new ArrayList<>();
+    // past 4096, where the level 2 slot of both timers moved down, and 4992, where they
+    // reached level 0
+    wheel.advance(4096, fired);
+    wheel.advance(4995, fired);
+    assertTrue(fired.isEmpty());
+    assertTrue(canceled.isScheduled());
+
+    wheel.cancel(canceled);
+    assertFalse(canceled.isScheduled());
+    assertEquals(1, wheel.size());
+    wheel.advance(6000, fired);
+    assertEquals(Arrays.asList("kept"), fired);
+    assertFalse(kept.isScheduled());
+
+    // canceling a timer that fired changes nothing
+    wheel.cancel(kept);
+    assertEquals(0, wheel.size());
+  }
+
+  /** A deadline that has passed fires on the next advance. */
+  @Test
+  public void firesPastDeadlineNext()
+  {
+    TimingWheel<String> wheel = new TimingWheel<>(100);
+    wheel.schedule("late", 10);
+    wheel.schedule("now", 100);
+    List<String> fired = new ArrayList<>();
+    wheel.advance(100, fired);
+    assertTrue(fired.isEmpty());
+    wheel.advance(101, fired);
+    assertEquals(new HashSet<>(Arrays.asList("late", "now")), new HashSet<>(fired));
+  }
+
+  /** Random deadlines, cancellations and advances of any length. */
+  @Test
+  public void firesOnceInRandomRuns()
+  {
+    Random random = new Random(24);
+    TimingWheel<Integer> wheel = new TimingWheel<>(random.nextInt(1 << 20));
+    List<TimingWheel.Timer<Integer>> timers = new ArrayList<>();
+    Set<Integer> canceled = new HashSet<>();
+    Set<Integer> fired = new HashSet<>();
+    List<Integer> firing = new ArrayList<>();
+    for (int step = 0; step < 5000; step++) {
+      for (int i = random.nextInt(5); i > 0; i--) {
+        int range = random.nextInt(3) == 0 ? 100 : 1 << (6 + random.nextInt(14));
+        long delay = 1 + random.nextInt(range);
+        timers.add(wheel.schedule(timers.size(), wheel.tick() + delay));
+      }
+      if (!timers.isEmpty() && random.nextInt(3) == 0) {
+        TimingWheel.Timer<Integer> timer = timers.get(random.nextInt(timers.size()));
+        if (timer.isScheduled()) {
+          canceled.add(timer.item);
+        }
+        wheel.cancel(timer);
+      }
+      long before = wheel.tick();
+      long now = before + (random.nextInt(4) == 0 ? random.nextInt(5000) : random.nextInt(10));
+      wheel.advance(now, firing);
+      for (int item : firing) {
+        long deadline = timers.get(item).deadline;
+        assertTrue(item + " due " + deadline + " fired at " + now, deadline <= now);
+        assertTrue(item + " due " + deadline + " fired after " + before, deadline > before);
+        assertFalse(canceled.contains(item));
+        assertTrue(fired.add(item));
+      }
+      firing.clear();
+      if (step % 10 == 0) {
+        for (TimingWheel.Timer<Integer> timer : timers) {
+          assertTrue(timer.item + " due " + timer.deadline + " missed at " + now,
+                  !timer.isScheduled() || timer.deadline > now);
+        }
+      }
+    }
+    assertEquals(timers.size() - canceled.size() - fired.size(), wheel.size());
+  }
+}
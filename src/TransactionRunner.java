@@ -0,0 +1,171 @@
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a session's transactions, retrying those the database gave up on.
+ *
+ * SQL Server ends a transaction it picks as a deadlock victim (error 1205) or that hits an
+ * update conflict (3960, SQL state 40001) and the same work usually succeeds if it is simply
+ * run again. Such transactions are rolled back and run again from the start, after a random
+ * pause that doubles with each attempt (up to a cap), so that the transactions that collided
+ * do not collide again. Any other error, or running out of attempts, rolls back and fails the
+ * transaction with its failure response.
+ *
+ * A transaction that decides not to commit throws {@link Abort} with its response: the
+ * runner rolls back and returns the response, so no path can leave a transaction open.
+ *
+ * Counters are kept for all sessions together.
+ */
+public class TransactionRunner
+{
+  private static final int DEADLOCK_VICTIM = 1205;
+  private static final int SNAPSHOT_UPDATE_CONFLICT = 3960;
+  private static final String SERIALIZATION_FAILURE = "40001";
+
+  private static final AtomicLong runs = new AtomicLong();
+  private static final AtomicLong retries = new AtomicLong();
+  private static final AtomicLong aborts = new AtomicLong();
+  private static final AtomicLong failures = new AtomicLong();
+
+  /** Work done in one transaction, from begin to commit. */
+  public interface Transaction
+  {
+    /** Begins, runs and commits the transaction, and returns the response. */
+    String run() throws SQLException, Abort;
+  }
+
+  /** Ends the current transaction without committing it. */
+  public interface Rollback
+  {
+    void rollback() throws SQLException;
+  }
+
+  /** Thrown by a transaction to roll back and respond with {@link #response}. */
+  public static class Abort extends Exception
+  {
+    private static final long serialVersionUID = 1L;
+
+    public final String response;
+
+    public Abort(String response)
+    {
+      super(response, null, false, false);
+      this.response = response;
+    }
+  }
+
+  private final Rollback rollback;
+  private final int maxRetries;
+  private final long baseBackoffMillis;
+  private final long maxBackoffMillis;
+
+  /**
+   * @param maxRetries how many times a transaction is run again before it fails
+   * @param baseBackoffMillis most a transaction waits before its first retry; doubles with
+   * each retry up to {@code maxBackoffMillis}
+   */
+  public TransactionRunner(Rollback rollback, int maxRetries, long baseBackoffMillis, long maxBackoffMillis)
+  {
+    this.rollback = rollback;
+    this.maxRetries = Math.max(maxRetries, 0);
+    this.baseBackoffMillis = Math.max(baseBackoffMillis, 1);
+    this.maxBackoffMillis = Math.max(maxBackoffMillis, this.baseBackoffMillis);
+  }
+
+  /**
+   * Runs {@code transaction} until it commits, aborts or fails.
+   *
+   * @return the transaction's response; {@code failure} if it failed
+   */
+  public String run(Transaction transaction, String failure)
+  {
+    runs.incrementAndGet();
+    for (int attempt = 0; ; attempt++) {
+      try {
+        return transaction.run();
+      } catch (Abort abort) {
+        aborts.incrementAndGet();
+        rollBack();
+        return abort.response;
+      } catch (SQLException error) {
+        rollBack();
+        if (!isRetryable(error) || attempt >= maxRetries) {
+          error.printStackTrace();
+          failures.incrementAndGet();
+          return failure;
+        }
+        retries.incrementAndGet();
+        if (!backOff(attempt)) {
+          failures.incrementAndGet();
+          return failure;
+        }
+      }
+    }
+  }
+
+  /** Whether the database ended the transaction in a way that running it again can fix. */
+  public static boolean isRetryable(SQLException error)
+  {
+    for (Throwable t = error; t != null; t = t.getCause()) {
+      if (t instanceof SQLException) {
+        for (SQLException e = (SQLException) t; e != null; e = e.getNextException()) {
+          if (e.getErrorCode() == DEADLOCK_VICTIM || e.getErrorCode() == SNAPSHOT_UPDATE_CONFLICT
+                  || SERIALIZATION_FAILURE.equals(e.getSQLState())) {
+            return true;
+          }
+        }
+      }
+    }
+    return false;
+  }
+
+  // the server may already have rolled back, in which case ROLLBACK fails: that is fine
+  private void rollBack()
+  {
+    try {
+      rollback.rollback();
+    } catch (SQLException ignored) {
+    }
+  }
+
+  // full jitter: anywhere between 0 and the current cap
+  private boolean backOff(int attempt)
+  {
+    long cap = Math.min(maxBackoffMillis, baseBackoffMillis << Math.min(attempt, 30));
+    try {
+      Thread.sleep(ThreadLocalRandom.current().nextLong(cap + 1));
+      return true;
+    } catch (InterruptedException error) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  public static long runs()
+  {
+    return runs.get();
+  }
+
+  public static long retries()
+  {
+    return retries.get();
+  }
+
+  public static long aborts()
+  {
+    return aborts.get();
+  }
+
+  public static long failures()
+  {
+    return failures.get();
+  }
+
+  /** Counters of all sessions. */
+  public static String counters()
+  {
+    return "TransactionRunner{runs=" + runs + ", retries=" + retries + ", aborts=" + aborts
+            + ", failures=" + failures + "}";
+  }
+}
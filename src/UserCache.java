@@ -0,0 +1,146 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.TreeMap;
+
+/**
+ * The logged in user's balance and reservations, kept by their session.
+ *
+ * The cache is loaded at login and written through by the session's own bookings, payments
+ * and cancellations once they commit. Every transaction that changes a user's balance or
+ * reservations also increments USERS.version, so a cache is current exactly when its
+ * version is the one in the table; a session that finds another version (another session or
+ * node wrote in between) loads the cache again.
+ *
+ * The days the user has a reservation on are a bitmap, one bit per day of the month, so the
+ * same-day check of a booking is a single test.
+ */
+public class UserCache
+{
+  public final String username;
+  private int version;
+  private int balance;
+  // bit (day - 1) is set if the user has a reservation that day
+  private int days;
+  private final TreeMap<Integer, Reservation> reservations = new TreeMap<>();
+
+  private UserCache(String username, int version, int balance)
+  {
+    this.username = username;
+    this.version = version;
+    this.balance = balance;
+  }
+
+  /**
+   * Loads the reservations of {@code username} with {@code listReservations}, which takes
+   * the username as its only parameter.
+   *
+   * The version and balance must have been read before the reservations: if a write commits
+   * in between, the cache then holds an older version than the table and is loaded again
+   * the next time it is checked, rather than passing for current.
+   */
+  public static UserCache load(PreparedStatement listReservations, String username, int version, int balance)
+          throws SQLException
+  {
+    UserCache user = new UserCache(username, version, balance);
+    listReservations.clearParameters();
+    listReservations.setString(1, username);
+    ResultSet rs = listReservations.executeQuery();
+    while (rs.next()) {
+      user.add(new Reservation(rs));
+    }
+    rs.close();
+    return user;
+  }
+
+  private static int bit(int dayOfMonth)
+  {
+    return 1 << (dayOfMonth - 1);
+  }
+
+  private void add(Reservation reservation)
+  {
+    reservations.put(reservation.id, reservation);
+    days |= bit(reservation.dayOfMonth);
+  }
+
+  public int version()
+  {
+    return version;
+  }
+
+  public int balance()
+  {
+    return balance;
+  }
+
+  public boolean hasReservationOn(int dayOfMonth)
+  {
+    return (days & bit(dayOfMonth)) != 0;
+  }
+
+  /** Returns the user's reservation {@code id}, or null if they have none with that ID. */
+  public Reservation get(int id)
+  {
+    return reservations.get(id);
+  }
+
+  /** The user's reservations with an ID above {@code id}, in ID order. */
+  public Collection<Reservation> after(int id)
+  {
+    return Collections.unmodifiableCollection(reservations.tailMap(id, false).values());
+  }
+
+  public boolean isEmpty()
+  {
+    return reservations.isEmpty();
+  }
+
+  /**
+   * Records the reservations of one committed booking. The version moves on once, as the
+   * transaction moved USERS.version once, however many reservations it made.
+   */
+  public void booked(Reservation[] booked)
+  {
+    for (Reservation reservation : booked) {
+      add(reservation);
+    }
+    version++;
+  }
+
+  /** Records a committed payment of reservation {@code id}. */
+  public void paid(int id, int newBalance)
+  {
+    reservations.get(id).paid = true;
+    balance = newBalance;
+    version++;
+  }
+
+  /** Records a committed cancellation of reservation {@code id}. */
+  public void canceled(int id, int newBalance)
+  {
+    Reservation reservation = reservations.remove(id);
+    // at most one reservation per day, so the day is free again
+    days &= ~bit(reservation.dayOfMonth);
+    balance = newBalance;
+    version++;
+  }
+
+  /** Appends the reservations in ID order, as listed by {@code transaction_reservations}. */
+  public StringBuilder appendTo(StringBuilder sb)
+  {
+    for (Reservation reservation : reservations.values()) {
+      reservation.appendTo(sb);
+    }
+    return sb;
+  }
+
+  @Override
+  public String toString()
+  {
+    return "UserCache{username=" + username + ", version=" + version + ", balance=" + balance
+            + ", reservations=" + reservations.size() + "}";
+  }
+}
@@ -28,49 +28,52 @@ CREATE TABLE FLIGHTS (fid int,
 CREATE TABLE USERS (
     username varchar(20) PRIMARY KEY,
     password varchar(20),
-    balance int);
+    balance int,
+    -- incremented by every change to the user's balance or reservations, see UserCache
+    version int NOT NULL DEFAULT 0);
 
+-- only what the booking decided: the flights' carrier, number, cities, durations and
+-- capacities are read from FLIGHTS when the reservations are listed (see Reservation).
+-- fid2 is -1 for a direct reservation. migrateReservations.sql converts older, wide tables.
 CREATE TABLE RESERVATIONS (
     reservation_id int PRIMARY KEY,
-    paid int,
-    fid1 int,
-    fid2 int,
-    day int,
-    total_price int,
-    capacity1 int,
-    capacity2 int,
-    carrier1 varchar(30),
-    carrier2 varchar(30),
-    flight_num1 varchar(30),
-    flight_num2 varchar(30),
-    origin_city1 varchar(30),
-    origin_city2 varchar(30),
-    dest_city1 varchar(30),
-    dest_city2 varchar(30),
-    duration1 int,
-    duration2 int,
-    price2 int,
-    direct int);
+    username varchar(20) NOT NULL REFERENCES USERS(username),
+    paid bit NOT NULL,
+    fid1 int NOT NULL,
+    fid2 int NOT NULL,
+    day tinyint NOT NULL,
+    total_price int NOT NULL,
+    seats smallint NOT NULL DEFAULT 1);
 
-CREATE TABLE ITINERARIES (
-    itinerary_id int,
-    fid1 int,
-    fid2 int,
-    day int,
-    capacity1 int,
-    capacity2 int,
-    total_price int,
-    carrier1 varchar(30),
-    carrier2 varchar(30),
-    flight_num1 varchar(30),
-    flight_num2 varchar(30),
-    origin_city1 varchar(30),
-    origin_city2 varchar(30),
-    dest_city1 varchar(30),
-    dest_city2 varchar(30),
-    duration1 int,
-    duration2 int,
-    price2 int,
-    direct int);
+-- reservations are only ever read for one user: listing, pay/cancel by ID, same-day check.
+-- A user has at most one reservation per day, so the second index also enforces that rule.
+CREATE INDEX IX_RESERVATIONS_USER ON RESERVATIONS (username, reservation_id);
+CREATE UNIQUE INDEX UX_RESERVATIONS_USER_DAY ON RESERVATIONS (username, day);
 
+-- the flights of the listed reservations are looked up by fid, without reading the table
+CREATE UNIQUE INDEX UX_FLIGHTS_FID ON FLIGHTS (fid)
+    INCLUDE (carrier_id, flight_num, origin_city, dest_city, actual_time, capacity, price);
 
+-- next reservation ID not yet handed out, claimed in blocks by ReservationIdAllocator
+CREATE TABLE RESERVATIONIDS (
+    next_id int NOT NULL);
+INSERT INTO RESERVATIONIDS VALUES (1);
+
+-- seats booked on each flight, kept at or below FLIGHTS.capacity by Query.reserveSeat
+CREATE TABLE BOOKEDSEATS (
+    fid int PRIMARY KEY,
+    booked int NOT NULL);
+
+-- sequence number of the last BookingJournal entry applied to the tables above
+CREATE TABLE JOURNALWATERMARK (
+    applied_seq bigint NOT NULL);
+INSERT INTO JOURNALWATERMARK VALUES (0);
+
+-- unpaid reservations canceled by HoldExpiry once their hold TTL passed
+CREATE TABLE EXPIREDHOLDS (
+    reservation_id int PRIMARY KEY,
+    username varchar(20) NOT NULL,
+    fid1 int NOT NULL,
+    fid2 int NOT NULL,
+    seats smallint NOT NULL,
+    expired_at datetime2 NOT NULL);
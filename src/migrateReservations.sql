@@ -0,0 +1,42 @@
+-- Converts a RESERVATIONS table created before the narrow layout of createTables.sql, which
+-- copied the carrier, number, cities, durations, capacities and second price of each flight
+-- into every row. Those columns are dropped: they are read from FLIGHTS when the
+-- reservations are listed. Run it once, with the service stopped.
+--
+-- To compare the bytes stored per reservation, run this before and after:
+--   SELECT SUM(used_page_count) * 8192 / NULLIF(SUM(row_count), 0) AS bytes_per_row
+--   FROM sys.dm_db_partition_stats
+--   WHERE object_id = OBJECT_ID('RESERVATIONS') AND index_id IN (0, 1);
+-- and for the log written by one booking, inside its transaction, before the COMMIT:
+--   SELECT database_transaction_log_bytes_used FROM sys.dm_tran_database_transactions
+--   WHERE transaction_id = CURRENT_TRANSACTION_ID();
+
+BEGIN TRANSACTION;
+
+CREATE TABLE RESERVATIONS_NARROW (
+    reservation_id int PRIMARY KEY,
+    username varchar(20) NOT NULL REFERENCES USERS(username),
+    paid bit NOT NULL,
+    fid1 int NOT NULL,
+    fid2 int NOT NULL,
+    day tinyint NOT NULL,
+    total_price int NOT NULL,
+    seats smallint NOT NULL DEFAULT 1);
+
+INSERT INTO RESERVATIONS_NARROW (reservation_id, username, paid, fid1, fid2, day, total_price, seats)
+    SELECT reservation_id, username, CASE WHEN paid = 1 THEN 1 ELSE 0 END, fid1,
+           CASE WHEN direct = 1 THEN -1 ELSE fid2 END, day, total_price, seats
+    FROM RESERVATIONS;
+
+-- its indexes go with it
+DROP TABLE RESERVATIONS;
+EXEC sp_rename 'RESERVATIONS_NARROW', 'RESERVATIONS';
+
+CREATE INDEX IX_RESERVATIONS_USER ON RESERVATIONS (username, reservation_id);
+CREATE UNIQUE INDEX UX_RESERVATIONS_USER_DAY ON RESERVATIONS (username, day);
+
+IF NOT EXISTS (SELECT * FROM sys.indexes WHERE name = 'UX_FLIGHTS_FID' AND object_id = OBJECT_ID('FLIGHTS'))
+    CREATE UNIQUE INDEX UX_FLIGHTS_FID ON FLIGHTS (fid)
+        INCLUDE (carrier_id, flight_num, origin_city, dest_city, actual_time, capacity, price);
+
+COMMIT TRANSACTION;